@@ -3,23 +3,21 @@ import java.text.SimpleDateFormat;
 
 public class ChatWindow {
     private String nickname;
-    private String clientId;
+    private int clientId;
     private MulticastManager multicastManager;
     private Scanner scanner;
 
-    // Tracks active users: maps nickname - last-seen timestamp (ms)
+    // Tracks active users: maps nickname - time (ms) after which we consider them offline
     private final Map<String, Long> activeUsers = new HashMap<>();
-    // How often we broadcast "i am here" (10 seconds)
-    private static final long PRESENCE_INTERVAL = 10000;
-    // If we haven’t heard from a user in 20 seconds, we consider them offline
-    private static final long TIMEOUT = 20000;
+    // How often we broadcast "i am here" (10 seconds by default, longer in big groups)
+    private final HeartbeatPolicy heartbeatPolicy = new HeartbeatPolicy();
 
     // Constructor: initialize fields, start background threads, then go into chat
     // loop
     public ChatWindow(String nickname) {
         this.nickname = nickname;
-        // Generate a random UUID so we can ignore our own packets when receiving
-        this.clientId = UUID.randomUUID().toString();
+        // Random numeric id sent in every packet header so we can ignore our own packets
+        this.clientId = new Random().nextInt();
         this.scanner = new Scanner(System.in);
         // Link networking code with this chat window
         multicastManager = new MulticastManager(nickname, clientId, this);
@@ -32,13 +30,17 @@ public class ChatWindow {
         startChat();
     }
 
-    // Fires off "I'm alive" messages every PRESENCE_INTERVAL ms
+    // Fires off "I'm alive" messages at a jittered interval that grows with the group,
+    // unless a chat message we sent recently already did the job
     private void startPresenceThread() {
         Thread presenceThread = new Thread(() -> {
             while (true) {
                 try {
-                    Thread.sleep(PRESENCE_INTERVAL);
-                    multicastManager.sendPresence();
+                    int groupSize = getGroupSize();
+                    Thread.sleep(heartbeatPolicy.nextDelay(groupSize));
+                    if (!heartbeatPolicy.canSkip(multicastManager.getLastChatSent(), groupSize)) {
+                        multicastManager.sendPresence(heartbeatPolicy.interval(groupSize));
+                    }
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
@@ -61,21 +63,48 @@ public class ChatWindow {
                         System.out.println("Exiting chat...");
                         break;
                     } else if ("/help".equals(input)) {
-                        System.out.println("Commands: /exit, /users, /pm <nickname> <message>, /help");
+                        System.out.println("Commands: /exit, /users, /pm <nickname> <message>, /join <room>, /leave [room], /rooms, /config, /stats, /help");
+                    } else if ("/config".equals(input)) {
+                        System.out.println(Config.describe());
+                        System.out.println(multicastManager.describeSocketOptions());
+                    } else if ("/stats".equals(input)) {
+                        System.out.println(multicastManager.describeReceiveStats());
                     } else if ("/users".equals(input)) {
                         synchronized (this) {
                             System.out.println("Active users: " + String.join(", ", activeUsers.keySet()));
                         }
                     }
+                    // Rooms: /join switches to a room (joining it first if needed)
+                    else if (input.startsWith("/join ")) {
+                        String room = Room.normalizeName(input.substring(6));
+                        if (room != null) {
+                            System.out.println(multicastManager.joinRoom(room));
+                        } else {
+                            System.out.println("Room names are up to 32 letters, digits, '-' or '_'");
+                        }
+                    } else if ("/leave".equals(input) || input.startsWith("/leave ")) {
+                        String room = input.length() > 6 ? Room.normalizeName(input.substring(6))
+                                                         : multicastManager.getCurrentRoom();
+                        if (room != null) {
+                            System.out.println(multicastManager.leaveRoom(room));
+                        } else {
+                            System.out.println("Usage: /leave [room]");
+                        }
+                    } else if ("/rooms".equals(input)) {
+                        String current = multicastManager.getCurrentRoom();
+                        StringBuilder rooms = new StringBuilder("Rooms:");
+                        for (String room : multicastManager.getRooms()) {
+                            rooms.append(room.equals(current) ? " *#" : " #").append(room);
+                        }
+                        System.out.println(rooms);
+                    }
                     // Handle private-message command separately
                     else if (input.startsWith("/pm ")) {
                         String[] parts = input.substring(4).trim().split(" ", 2);
                         if (parts.length == 2) {
                             String targetNickname = parts[0];
                             String pmMessage = parts[1];
-                            String time = new SimpleDateFormat("HH:mm").format(new Date());
-                            String fullMessage = "[" + time + "] " + nickname + ": " + pmMessage;
-                            multicastManager.sendPrivateMessage(targetNickname, fullMessage);
+                            multicastManager.sendPrivateMessage(targetNickname, pmMessage);
                         } else {
                             System.out.println("Usage: /pm <nickname> <message>");
                         }
@@ -93,34 +122,34 @@ public class ChatWindow {
         }
     }
 
-    // Called by MulticastManager when a presence packet arrives
-    public synchronized void updateUserList(String nickname, long timestamp) {
-        activeUsers.put(nickname, timestamp);
-        activeUsers.entrySet().removeIf(entry -> System.currentTimeMillis() - entry.getValue() > TIMEOUT);
+    // Called by MulticastManager when a presence packet arrives; expiry comes
+    // from the interval the sender announced
+    public synchronized void updateUserList(String nickname, long expiry) {
+        long now = System.currentTimeMillis();
+        activeUsers.put(nickname, now + expiry);
+        activeUsers.entrySet().removeIf(entry -> entry.getValue() < now);
     }
 
-     // Display an incoming message, color-coding by sender
-    public void appendMessage(String message) {
-        int colonIndex = message.indexOf(": ");
-        if (colonIndex != -1) {
-             // Split off the "[HH:mm] nick" part vs. the actual message text
-            String senderInfo = message.substring(0, colonIndex);
-            String text = message.substring(colonIndex + 2);
-            int bracketIndex = senderInfo.indexOf("] ");
-            if (bracketIndex != -1) {
-                String timestamp = senderInfo.substring(0, bracketIndex + 1);
-                String nickname = senderInfo.substring(bracketIndex + 2);
-                // Pick a consistent ANSI color based on nickname’s hash
-                String color = getColorForNickname(nickname);
-                String displayMessage = color + timestamp + " " + nickname + ": " + text + "\u001B[0m";
-                System.out.println(displayMessage);
-            } else {
-                // Fallback: just print raw if parsing fails
-                System.out.println(message);
-            }
-        } else {
-            System.out.println(message);
-        }
+    // Called when a chat message arrives; never shortens what a presence packet allowed
+    public synchronized void touchUser(String nickname) {
+        activeUsers.merge(nickname, System.currentTimeMillis() + HeartbeatPolicy.expiryFor(0), Math::max);
+    }
+
+    // Users we know of, ourselves included once our own presence packet comes back
+    private synchronized int getGroupSize() {
+        return Math.max(1, activeUsers.size());
+    }
+
+    // Display an incoming message with the time it arrived, color-coding by sender.
+    // Messages from a room other than the one we chat in are marked with its name;
+    // room is null for private messages
+    public void appendMessage(String room, String nickname, String text) {
+        String timestamp = "[" + new SimpleDateFormat("HH:mm").format(new Date()) + "]";
+        String where = room == null ? ""
+                : room.equals(multicastManager.getCurrentRoom()) ? "" : "#" + room + " ";
+        // Pick a consistent ANSI color based on nickname’s hash
+        String color = getColorForNickname(nickname);
+        System.out.println(color + timestamp + " " + where + nickname + ": " + text + "\u001B[0m");
     }
 
     // Map each nickname deterministically to one of six colors
@@ -132,7 +161,7 @@ public class ChatWindow {
         return colors[colorIndex];
     }
 
-    public String getClientId() {
+    public int getClientId() {
         return clientId;
     }
 
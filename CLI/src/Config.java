@@ -0,0 +1,183 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+// Runtime settings, so the client can be tuned without recompiling.
+// Lookup order, later wins: code default < properties file (lc32.properties,
+// or --config=FILE / LC32_CONFIG) < environment (LC32_SOCKET_RCVBUF for
+// socket.rcvbuf) < system property (-Dlc32.socket.rcvbuf) < --socket.rcvbuf=...
+// Every lookup is recorded so the values in effect can be printed at startup.
+public class Config {
+    private static final String DEFAULT_FILE = "lc32.properties";
+    private static final String ENV_PREFIX = "LC32_";
+    private static final String PROPERTY_PREFIX = "lc32.";
+
+    private static final class Setting {
+        final String value;
+        final String source;
+
+        Setting(String value, String source) {
+            this.value = value;
+            this.source = source;
+        }
+    }
+
+    private static Properties fileSettings = new Properties();
+    private static String fileName;
+    private static final Properties flagSettings = new Properties();
+    private static final Map<String, Setting> used = new TreeMap<>();
+    private static boolean loaded = false;
+
+    // Parse --name=value / --name value flags and read the properties file;
+    // call before any other class reads a setting
+    public static synchronized void load(String[] args) {
+        flagSettings.clear();
+        String configFile = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--") || arg.length() == 2) {
+                throw new IllegalArgumentException("Unknown argument: " + arg + " (settings look like --name=value)");
+            }
+            String name;
+            String value;
+            int equals = arg.indexOf('=');
+            if (equals > 0) {
+                name = arg.substring(2, equals);
+                value = arg.substring(equals + 1);
+            } else if (i + 1 < args.length) {
+                name = arg.substring(2);
+                value = args[++i];
+            } else {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            if (name.equals("config")) {
+                configFile = value;
+            } else {
+                flagSettings.setProperty(name, value);
+            }
+        }
+        loadFile(configFile);
+        used.clear();
+        loaded = true;
+    }
+
+    public static synchronized String getString(String name, String defaultValue) {
+        Setting setting = find(name);
+        if (setting == null) {
+            setting = new Setting(defaultValue, "default");
+        }
+        used.put(name, setting);
+        return setting.value;
+    }
+
+    // Like getString, but the value is masked in describe()
+    public static synchronized String getSecret(String name, String defaultValue) {
+        String value = getString(name, defaultValue);
+        used.put(name, new Setting("********", used.get(name).source));
+        return value;
+    }
+
+    // Falls back to the default (with a warning) if the value is not a number
+    public static synchronized long getLong(String name, long defaultValue) {
+        Setting setting = find(name);
+        if (setting != null) {
+            try {
+                long value = Long.parseLong(setting.value.trim());
+                used.put(name, new Setting(String.valueOf(value), setting.source));
+                return value;
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring setting " + name + "=" + setting.value + " from " + setting.source +
+                                   ": not a number");
+            }
+        }
+        used.put(name, new Setting(String.valueOf(defaultValue), "default"));
+        return defaultValue;
+    }
+
+    public static int getInt(String name, int defaultValue) {
+        long value = getLong(name, defaultValue);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            System.err.println("Ignoring setting " + name + "=" + value + ": out of range");
+            synchronized (Config.class) {
+                used.put(name, new Setting(String.valueOf(defaultValue), "default"));
+            }
+            return defaultValue;
+        }
+        return (int) value;
+    }
+
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        return Boolean.parseBoolean(getString(name, String.valueOf(defaultValue)).trim());
+    }
+
+    // One "name = value (source)" line per setting looked up so far
+    public static synchronized String describe() {
+        StringBuilder text = new StringBuilder();
+        text.append("Configuration (file: ").append(fileName != null ? fileName : "none").append("):");
+        for (Map.Entry<String, Setting> entry : used.entrySet()) {
+            text.append("\n  ").append(entry.getKey()).append(" = ").append(entry.getValue().value)
+                .append(" (").append(entry.getValue().source).append(")");
+        }
+        return text.toString();
+    }
+
+    private static Setting find(String name) {
+        if (!loaded) {
+            load(new String[0]);
+        }
+        String value = flagSettings.getProperty(name);
+        if (value != null) {
+            return new Setting(value, "command line");
+        }
+        value = System.getProperty(PROPERTY_PREFIX + name);
+        if (value != null) {
+            return new Setting(value, "system property");
+        }
+        String envName = ENV_PREFIX + name.toUpperCase(Locale.ROOT).replace('.', '_');
+        value = System.getenv(envName);
+        if (value != null) {
+            return new Setting(value, "environment " + envName);
+        }
+        value = fileSettings.getProperty(name);
+        if (value != null) {
+            return new Setting(value, fileName);
+        }
+        return null;
+    }
+
+    // A file named explicitly must exist; the default one is optional
+    private static void loadFile(String configFile) {
+        fileSettings = new Properties();
+        fileName = null;
+        boolean required = true;
+        if (configFile == null) {
+            configFile = System.getenv(ENV_PREFIX + "CONFIG");
+        }
+        if (configFile == null) {
+            configFile = System.getProperty(PROPERTY_PREFIX + "config");
+        }
+        if (configFile == null) {
+            configFile = DEFAULT_FILE;
+            required = false;
+        }
+        Path path = Paths.get(configFile);
+        if (!Files.exists(path)) {
+            if (required) {
+                throw new IllegalArgumentException("Configuration file not found: " + configFile);
+            }
+            return;
+        }
+        try (InputStream in = Files.newInputStream(path)) {
+            fileSettings.load(in);
+            fileName = path.toAbsolutePath().toString();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read configuration file " + configFile + ": " + e.getMessage(), e);
+        }
+    }
+}
@@ -1,47 +1,70 @@
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
-import java.util.Base64;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 
 /**
  * Utility for AES-128 encryption/decryption of chat packets.
  * Uses ECB mode with PKCS5 padding. In real systems, use a more secure mode!
+ * Works on ByteBuffers so packets are encrypted in place, without Base64.
  */
 
 public class EncryptionUtils {
     private static final String ALGORITHM = "AES";
     // AES mode: ECB + PKCS5 padding for block alignment
     private static final String TRANSFORMATION = "AES/ECB/PKCS5Padding";
-    private static final String KEY = "1234567890123456"; // 16-byte key for AES-128
+    // 16-byte key for AES-128 (24 or 32 bytes for AES-192/256); everyone needs the same one
+    private static final String KEY = Config.getSecret("key", "1234567890123456");
+    private static final int BLOCK_SIZE = 16;
+    private static final int MAX_PACKET_SIZE = 65536;
 
+    // Symmetric key from static 16-byte secret, built once
+    private static final SecretKeySpec SECRET_KEY = createKey(KEY);
+    // Cipher objects are not thread-safe, so keep one per thread
+    private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    // Scratch array for decrypting; the cipher would allocate temporary arrays for direct buffers
+    private static final ThreadLocal<byte[]> CIPHER_TEXT = ThreadLocal.withInitial(() -> new byte[MAX_PACKET_SIZE]);
 
-    // Encrypts a plaintext string and returns Base64-encoded ciphertext
-    public static String encrypt(String message) throws Exception {
-        // Prepare symmetric key from static 16-byte secret
-        SecretKeySpec secretKey = new SecretKeySpec(KEY.getBytes(), ALGORITHM);
-        // Cipher instance with specified mode and padding
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-        // Initialize for encryption
-        cipher.init(Cipher.ENCRYPT_MODE, secretKey);
-        // Encrypt the plaintext message (as bytes)
-        byte[] encryptedBytes = cipher.doFinal(message.getBytes());
-        // Convert binary ciphertext into a string-safe Base64 format
-        return Base64.getEncoder().encodeToString(encryptedBytes);
+    // Fail fast on a bad key instead of sending packets nobody can read
+    private static SecretKeySpec createKey(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length != 16 && bytes.length != 24 && bytes.length != 32) {
+            throw new IllegalStateException("The key setting must be 16, 24 or 32 bytes long, not " + bytes.length);
+        }
+        return new SecretKeySpec(bytes, ALGORITHM);
     }
 
-    
-    // Decrypts a Base64-encoded ciphertext back into plaintext
-    public static String decrypt(String encryptedMessage) throws Exception {
-        // Prepare symmetric key from static 16-byte secret
-        SecretKeySpec secretKey = new SecretKeySpec(KEY.getBytes(), ALGORITHM);
-        // Cipher instance for decryption with same configuration
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-        // Initialize cipher for decryption mode
-        cipher.init(Cipher.DECRYPT_MODE, secretKey);
-        // Decode from Base64 to raw encrypted bytes
-        byte[] decodedBytes = Base64.getDecoder().decode(encryptedMessage);
-        // Perform decryption operation
-        byte[] decryptedBytes = cipher.doFinal(decodedBytes);
-        // Return decrypted text
-        return new String(decryptedBytes);
+    // Size of the cipher text for a plaintext of the given size (padding included)
+    public static int encryptedSize(int plainBytes) {
+        return (plainBytes / BLOCK_SIZE + 1) * BLOCK_SIZE;
     }
-}
\ No newline at end of file
+
+    // Encrypts plaintext (position to limit) and appends the cipher text to out
+    public static void encrypt(ByteBuffer plaintext, ByteBuffer out) throws GeneralSecurityException {
+        Cipher cipher = CIPHER.get();
+        cipher.init(Cipher.ENCRYPT_MODE, SECRET_KEY);
+        cipher.doFinal(plaintext, out);
+    }
+
+    // Decrypts cipher text (position to limit, may be direct) into the reusable heap buffer out,
+    // which then holds the plaintext from position to limit
+    public static void decrypt(ByteBuffer encrypted, ByteBuffer out) throws GeneralSecurityException {
+        int size = encrypted.remaining();
+        if (size == 0 || size > MAX_PACKET_SIZE) {
+            throw new GeneralSecurityException("Bad cipher text size: " + size);
+        }
+        byte[] cipherText = CIPHER_TEXT.get();
+        encrypted.get(cipherText, 0, size);
+        Cipher cipher = CIPHER.get();
+        cipher.init(Cipher.DECRYPT_MODE, SECRET_KEY);
+        out.clear();
+        out.limit(cipher.doFinal(cipherText, 0, size, out.array(), out.arrayOffset()));
+    }
+}
@@ -0,0 +1,39 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+// How often we send presence packets. The interval grows with the number of
+// users so the whole group sends about GROUP_RATE packets a minute, each delay
+// is jittered so clients started together drift apart, and a presence packet
+// is skipped if a chat message went out within the interval. Presence packets
+// carry the interval so receivers know when to give up on the sender.
+public class HeartbeatPolicy {
+    private static final long BASE_INTERVAL = Config.getLong("heartbeat.interval", 10000);
+    private static final long MAX_INTERVAL = Math.max(BASE_INTERVAL, Config.getLong("heartbeat.max", 60000));
+    private static final long GROUP_RATE = Math.max(1, Config.getLong("heartbeat.perminute", 120));
+    // Never drop a user sooner than this, whatever interval they announce
+    private static final long USER_TIMEOUT = Config.getLong("user.timeout", 20000);
+    private static final double JITTER = 0.25;
+    private static final int MISSED_HEARTBEATS = 3;
+
+    // groupSize counts ourselves too
+    public long interval(int groupSize) {
+        long spread = groupSize * 60000L / GROUP_RATE;
+        return Math.min(MAX_INTERVAL, Math.max(BASE_INTERVAL, spread));
+    }
+
+    // Interval plus or minus 25%
+    public long nextDelay(int groupSize) {
+        double factor = 1 - JITTER + 2 * JITTER * ThreadLocalRandom.current().nextDouble();
+        return (long) (interval(groupSize) * factor);
+    }
+
+    // A recent chat message already showed we're here; the gap between two
+    // signs of life stays below MISSED_HEARTBEATS intervals even with jitter
+    public boolean canSkip(long lastChatSent, int groupSize) {
+        return System.currentTimeMillis() - lastChatSent < interval(groupSize);
+    }
+
+    // announcedInterval is 0 for clients that don't send one
+    public static long expiryFor(long announcedInterval) {
+        return Math.max(USER_TIMEOUT, MISSED_HEARTBEATS * Math.max(BASE_INTERVAL, announcedInterval));
+    }
+}
@@ -2,7 +2,15 @@ import java.util.Scanner;
 
 public class Main {
     public static void main(String[] args) {
-        
+        // Settings from --name=value flags, the properties file and LC32_* variables
+        try {
+            Config.load(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java Main [--config=FILE] [--name=value ...]");
+            System.exit(1);
+        }
+
         // Prompt user once for a nickname before launching the chat UI
         Scanner scanner = new Scanner(System.in);
         System.out.print("Enter your nickname: ");
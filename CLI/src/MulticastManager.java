@@ -1,140 +1,359 @@
 import java.io.IOException;
 import java.net.*;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
 import java.util.Enumeration;
-import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MulticastManager {
-    // Group address and port for UDP multicast
-    private static final String MULTICAST_GROUP = "230.0.0.1";
-    private static final int PORT = 5000;
-    // Raw socket for sending; MulticastSocket for receiving
-    private DatagramSocket socket;
-    private InetAddress group;
+    // Socket options for the sending channel; 0 keeps the system default
+    private static final int SEND_BUFFER_SIZE = Config.getInt("socket.sndbuf", 0);
+    private static final int MULTICAST_TTL = Config.getInt("multicast.ttl", 1);
+    private static final boolean MULTICAST_LOOPBACK = Config.getBoolean("multicast.loopback", true);
+    // DSCP traffic class (e.g. 46 = EF); sent as the top six bits of IP_TOS
+    private static final int DSCP = Config.getInt("socket.dscp", 0);
+    // Channel for sending; it also receives private messages sent straight to us
+    private DatagramChannel channel;
+    // The channel is non-blocking for the receive engine, so a full send buffer
+    // is waited out on this selector instead (input and presence threads take turns)
+    private final Object sendLock = new Object();
+    private Selector writeSelector;
+    // Interface the room groups are joined on
+    private NetworkInterface nif;
+    private ReceiveEngine engine;
+    // Every room has its own group and channel; we only join the rooms we're in
+    private final Map<String, DatagramChannel> rooms = new ConcurrentHashMap<>();
+    private final Map<String, Room> roomInfo = new ConcurrentHashMap<>();
+    // Where our chat messages go; null after leaving every room
+    private volatile String currentRoom;
+    // Where other users can be reached directly, learned from their presence packets
+    private final PeerDirectory peers = new PeerDirectory();
 
     private String nickname;
-    private String clientId;
+    private int clientId;
     private ChatWindow chatWindow;
+    // Sequence number for the packet header; sent from both the input and presence threads
+    private final AtomicInteger nextSequence = new AtomicInteger();
+    // When we last sent a chat message, so the presence thread can skip a beat
+    private volatile long lastChatSent = 0;
+    // Interval in our last presence packet, announced again in rooms we join
+    private volatile long lastPresenceInterval = 10000;
+    // Reused by the receive thread for every packet; the rest happens in the sender's session
+    private final WireProtocol.Header header = new WireProtocol.Header();
+    private final PeerSessions sessions = new PeerSessions(65536, this::handlePackets, createConsoleExecutor());
 
-    public MulticastManager(String nickname, String clientId, ChatWindow chatWindow) {
+    public MulticastManager(String nickname, int clientId, ChatWindow chatWindow) {
         this.nickname = nickname;
         this.clientId = clientId;
         this.chatWindow = chatWindow;
         setupNetworking();
+        System.out.println(joinRoom(Room.DEFAULT_ROOM));
     }
 
-    // Create a DatagramSocket and resolve the multicast group address
+    // Open the sending channel, pick the interface and start the receive engine.
+    // Non-blocking, since the ReceiveEngine reads unicast packets from it too
     private void setupNetworking() {
         try {
-            socket = new DatagramSocket();
-            group = InetAddress.getByName(MULTICAST_GROUP);
+            channel = DatagramChannel.open(StandardProtocolFamily.INET);
+            if (SEND_BUFFER_SIZE > 0) {
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER_SIZE);
+            }
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, MULTICAST_TTL);
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, MULTICAST_LOOPBACK);
+            if (DSCP > 0) {
+                channel.setOption(StandardSocketOptions.IP_TOS, (DSCP & 0x3F) << 2);
+            }
+            channel.bind(new InetSocketAddress(0));
+            channel.configureBlocking(false);
+            nif = findInterface();
+            engine = new ReceiveEngine(this::handleBatch);
+            // Direct packets have no room
+            engine.register(channel, null);
+            System.out.println(Config.describe());
+            System.out.println(describeSocketOptions());
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    // Send a public chat message (encrypted) to the multicast group
-    public void sendMessage(String message) {
+    // Socket options the OS actually applied (Linux doubles and caps buffer sizes)
+    public String describeSocketOptions() {
         try {
-            String time = new SimpleDateFormat("HH:mm").format(new Date());
-            String fullMessage = clientId + "|[" + time + "] " + nickname + ": " + message;
+            DatagramChannel roomChannel = rooms.values().stream().findFirst().orElse(null);
+            String receiveBuffer = roomChannel != null
+                    ? String.valueOf(roomChannel.getOption(StandardSocketOptions.SO_RCVBUF)) : "-";
+            return "Socket options in effect: SO_SNDBUF=" + channel.getOption(StandardSocketOptions.SO_SNDBUF) +
+                   " SO_RCVBUF=" + receiveBuffer +
+                   " TTL=" + channel.getOption(StandardSocketOptions.IP_MULTICAST_TTL) +
+                   " loopback=" + channel.getOption(StandardSocketOptions.IP_MULTICAST_LOOP) +
+                   " DSCP=" + (channel.getOption(StandardSocketOptions.IP_TOS) >> 2);
+        } catch (IOException e) {
+            return "Socket options: " + e.getMessage();
+        }
+    }
 
-            String encryptedMessage = EncryptionUtils.encrypt(fullMessage);
-            byte[] buffer = encryptedMessage.getBytes();
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length, group, PORT);
-            socket.send(packet);
+    // Automatically pick a usable IPv4 interface
+    private static NetworkInterface findInterface() throws IOException {
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while (interfaces.hasMoreElements()) {
+            NetworkInterface i = interfaces.nextElement();
+            if (i.isUp() && !i.isLoopback() && i.supportsMulticast()) {
+                return i;
+            }
+        }
+        throw new IOException("No suitable IPv4 network interface found.");
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+    // Join a room's group (if we aren't in it yet) and make it the one we chat in
+    public synchronized String joinRoom(String name) {
+        if (!rooms.containsKey(name)) {
+            Room room = new Room(name);
+            try {
+                DatagramChannel roomChannel = ReceiveEngine.openGroupChannel(room.getGroup(), room.getPort());
+                try {
+                    roomChannel.join(room.getGroup(), nif);
+                } catch (IOException e) {
+                    roomChannel.close();
+                    throw e;
+                }
+                rooms.put(name, roomChannel);
+                roomInfo.put(name, room);
+                engine.register(roomChannel, room);
+            } catch (Exception e) {
+                return "Cannot join #" + name + ": " + e.getMessage();
+            }
+            currentRoom = name;
+            // Let the room know we're here right away
+            sendPresence(room, lastPresenceInterval);
+            return "Joined #" + name + " (" + room.getGroup().getHostAddress() + ":" + room.getPort() + ")";
         }
+        currentRoom = name;
+        return "Now chatting in #" + name;
     }
 
-    // Send a private message marked with "pm" and the target nickname
-    public void sendPrivateMessage(String targetNickname, String message) {
+    // Leave a room's group; closing the channel drops the membership and its selector key
+    public synchronized String leaveRoom(String name) {
+        DatagramChannel roomChannel = rooms.remove(name);
+        roomInfo.remove(name);
+        if (roomChannel == null) {
+            return "You're not in #" + name;
+        }
         try {
-            String fullMessage = clientId + "|pm|" + targetNickname + "|" + message;
-            String encryptedMessage = EncryptionUtils.encrypt(fullMessage);
+            roomChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (name.equals(currentRoom)) {
+            currentRoom = rooms.containsKey(Room.DEFAULT_ROOM) ? Room.DEFAULT_ROOM
+                    : rooms.keySet().stream().findFirst().orElse(null);
+        }
+        return "Left #" + name + (currentRoom != null ? ", now chatting in #" + currentRoom : " - /join a room to chat");
+    }
+
+    public String getCurrentRoom() {
+        return currentRoom;
+    }
+
+    public List<String> getRooms() {
+        return new ArrayList<>(rooms.keySet());
+    }
 
-            byte[] buffer = encryptedMessage.getBytes();
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length, group, PORT);
-            socket.send(packet);
+    // The room our messages go to, or null (with a hint printed) if we're in none
+    private Room current() {
+        String name = currentRoom;
+        Room room = name != null ? roomInfo.get(name) : null;
+        if (room == null) {
+            System.out.println("You're not in any room - /join one first");
+        }
+        return room;
+    }
+
+    // Header + encrypted frame, written straight into one buffer and sent to a room
+    private void sendFrame(byte[] frame, Room room) throws Exception {
+        sendFrame(frame, room.getAddress(), (byte) 0);
+    }
+
+    private void sendFrame(byte[] frame, SocketAddress target, byte flags) throws Exception {
+        ByteBuffer packet = ByteBuffer.allocate(WireProtocol.HEADER_SIZE + EncryptionUtils.encryptedSize(frame.length));
+        WireProtocol.writeHeader(packet, flags, clientId, nextSequence.getAndIncrement());
+        EncryptionUtils.encrypt(ByteBuffer.wrap(frame), packet);
+        packet.flip();
+        send(packet, target);
+    }
+
+    // Like a blocking send: waits until the socket buffer has room rather than dropping the packet
+    private void send(ByteBuffer packet, SocketAddress target) throws IOException {
+        synchronized (sendLock) {
+            while (channel.send(packet, target) == 0) {
+                if (writeSelector == null) {
+                    writeSelector = Selector.open();
+                    channel.register(writeSelector, SelectionKey.OP_WRITE);
+                }
+                writeSelector.select(100);
+                writeSelector.selectedKeys().clear();
+            }
+        }
+    }
 
+    // Send a public chat message (encrypted) to the multicast group
+    public void sendMessage(String message) {
+        try {
+            Room room = current();
+            if (room == null) {
+                return;
+            }
+            lastChatSent = System.currentTimeMillis();
+            sendFrame(WireProtocol.frame(WireProtocol.TYPE_CHAT, nickname, message), room);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    // Send a presence heartbeat so others know we’re online
-    public void sendPresence() {
+    // Send a private message carrying the target nickname: straight to the target
+    // if we know its address, so nobody else decrypts it; otherwise via the current room
+    public void sendPrivateMessage(String targetNickname, String message) {
         try {
-            String presenceMessage = clientId + "|presence|" + nickname;
-            String encryptedMessage = EncryptionUtils.encrypt(presenceMessage);
+            byte[] frame = WireProtocol.frame(WireProtocol.TYPE_PM, nickname, targetNickname, message);
+            SocketAddress address = peers.lookup(targetNickname);
+            if (address != null) {
+                sendFrame(frame, address, WireProtocol.FLAG_UNICAST);
+            } else {
+                Room room = current();
+                if (room != null) {
+                    sendFrame(frame, room);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
-            byte[] buffer = encryptedMessage.getBytes();
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length, group, PORT);
-            socket.send(packet);
+    public long getLastChatSent() {
+        return lastChatSent;
+    }
 
+    // Send a presence heartbeat to every room we're in so others know we’re online,
+    // with our current interval so they know how long to wait for the next one
+    public void sendPresence(long intervalMillis) {
+        lastPresenceInterval = intervalMillis;
+        for (Room room : roomInfo.values()) {
+            sendPresence(room, intervalMillis);
+        }
+    }
+
+    private void sendPresence(Room room, long intervalMillis) {
+        try {
+            String seconds = String.valueOf((intervalMillis + 999) / 1000);
+            sendFrame(WireProtocol.frame(WireProtocol.TYPE_PRESENCE, nickname, seconds), room);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    // Continuously listen for incoming multicast packets
+    // Continuously listen for incoming packets from our rooms and direct ones; the
+    // ReceiveEngine drains every queued datagram per wakeup and hands them over in batches
     public void receiveMessages() {
-        try (MulticastSocket multicastSocket = new MulticastSocket(PORT)) {
+        if (engine != null) {
+            engine.run();
+        }
+    }
 
-            NetworkInterface nif = null;
+    public String describeReceiveStats() {
+        return sessions.describe();
+    }
 
-            // Automatically pick a usable IPv4 interface
-            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
-            while (interfaces.hasMoreElements()) {
-                NetworkInterface i = interfaces.nextElement();
-                if (i.isUp() && !i.isLoopback() && i.supportsMulticast()) {
-                    nif = i;
-                    break;
-                }
-            }
+    // Received messages are printed on one thread, in the order the workers finish
+    private static Executor createConsoleExecutor() {
+        return Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "Console");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
 
-            if (nif == null) {
-                throw new IOException("No suitable IPv4 network interface found.");
+    // Receive thread: check the plain header, copy the packet out of the
+    // engine's buffer and queue it for the sender's session
+    private void handleBatch(List<ReceiveEngine.Datagram> batch) {
+        for (ReceiveEngine.Datagram datagram : batch) {
+            ByteBuffer data = datagram.data;
+            if (!WireProtocol.readHeader(data, header)) {
+                continue;
             }
+            // A room we just left may still have a few packets queued
+            Room room = (Room) datagram.tag;
+            if (room != null && !rooms.containsKey(room.getName())) {
+                continue;
+            }
+            PeerSessions.Packet packet = sessions.acquire(data.remaining());
+            packet.room = room;
+            packet.source = datagram.source;
+            packet.flags = header.flags;
+            packet.senderId = header.senderId;
+            packet.data.put(data).flip();
+            sessions.dispatch(packet);
+        }
+    }
+
+    // Receive worker: decrypt one sender's packets; console output goes into updates
+    private void handlePackets(PeerSessions.Session session, List<PeerSessions.Packet> packets, List<Runnable> updates) {
+        boolean fromMe = session.senderId == clientId;
+        for (PeerSessions.Packet packet : packets) {
+            try {
+                EncryptionUtils.decrypt(packet.data, session.decryptBuffer);
+                ByteBuffer frame = session.decryptBuffer;
+                if (frame.remaining() < WireProtocol.FRAME_HEADER_SIZE) {
+                    continue;
+                }
+                byte type = frame.get();
+                frame.getShort(); // body length; one frame per packet
 
-            SocketAddress groupAddr = new InetSocketAddress(group, PORT);
-            multicastSocket.joinGroup(groupAddr, nif);
-
-            // multicastSocket.joinGroup(group);
-            byte[] buffer = new byte[1024];
-
-            while (true) {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                multicastSocket.receive(packet);
-
-                String encryptedReceived = new String(packet.getData(), 0, packet.getLength());
-                String received = EncryptionUtils.decrypt(encryptedReceived);
-                // Split into up to 4 parts based on our simple protocol
-                String[] parts = received.split("\\|", 4);
-
-                // Private message?
-                if (parts.length == 4 && "pm".equals(parts[1])) {
-                    String senderClientId = parts[0];
-                    String targetNickname = parts[2];
-                    String message = parts[3];
-                    // Only deliver if it’s addressed to me and not from me
-                    if (targetNickname.equals(nickname) && !senderClientId.equals(clientId)) {
-                        chatWindow.appendMessage(message);
+                // Private message? Only deliver if it’s addressed to me and not from me
+                if (type == WireProtocol.TYPE_PM) {
+                    String sender = WireProtocol.readString(frame);
+                    String targetNickname = WireProtocol.readString(frame);
+                    String message = WireProtocol.readString(frame);
+                    if (targetNickname.equals(nickname) && !fromMe) {
+                        updates.add(() -> chatWindow.appendMessage(null, sender, message));
                     }
                 }
                 // Presence update?
-                else if (parts.length == 3 && "presence".equals(parts[1])) {
-                    chatWindow.updateUserList(parts[2], System.currentTimeMillis());
+                else if (type == WireProtocol.TYPE_PRESENCE) {
+                    String user = WireProtocol.readString(frame);
+                    // Older clients send only the nickname
+                    long interval = 0;
+                    if (frame.hasRemaining()) {
+                        try {
+                            interval = Long.parseLong(WireProtocol.readString(frame)) * 1000;
+                        } catch (NumberFormatException e) {
+                            // Keep the default expiry
+                        }
+                    }
+                    long expiry = HeartbeatPolicy.expiryFor(interval);
+                    peers.record(user, packet.source, expiry);
+                    updates.add(() -> chatWindow.updateUserList(user, expiry));
                 }
                 // Regular public message?
-                else if (parts.length == 2 && !parts[0].equals(clientId)) {
-                    chatWindow.appendMessage(parts[1]);
+                else if (type == WireProtocol.TYPE_CHAT && !fromMe && packet.room != null) {
+                    String sender = WireProtocol.readString(frame);
+                    String message = WireProtocol.readString(frame);
+                    String roomName = packet.room.getName();
+                    updates.add(() -> chatWindow.appendMessage(roomName, sender, message));
+                    // Senders skip presence packets while chatting, so this counts as one
+                    peers.touch(sender, packet.source);
+                    updates.add(() -> chatWindow.touchUser(sender));
                 }
+            } catch (Exception e) {
+                // One bad packet must not stop the rest
+                e.printStackTrace();
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,43 @@
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Learns where each user can be reached directly: the source address of
+// their presence packets is their sending socket, which also receives
+// private messages sent straight to them
+public class PeerDirectory {
+    private static final class Peer {
+        final SocketAddress address;
+        final long lastSeen;
+        // From the interval the user announced (see HeartbeatPolicy.expiryFor)
+        final long expiry;
+
+        Peer(SocketAddress address, long lastSeen, long expiry) {
+            this.address = address;
+            this.lastSeen = lastSeen;
+            this.expiry = expiry;
+        }
+    }
+
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+
+    public void record(String nickname, SocketAddress address, long expiry) {
+        peers.put(nickname, new Peer(address, System.currentTimeMillis(), expiry));
+    }
+
+    // A chat message also shows the user is there; keep the expiry we already know
+    public void touch(String nickname, SocketAddress address) {
+        long now = System.currentTimeMillis();
+        peers.compute(nickname, (name, old) ->
+                new Peer(address, now, old != null ? old.expiry : HeartbeatPolicy.expiryFor(0)));
+    }
+
+    // Null if we never heard from the user, or not recently enough to trust the address
+    public SocketAddress lookup(String nickname) {
+        Peer peer = peers.get(nickname);
+        if (peer == null || System.currentTimeMillis() - peer.lastSeen > peer.expiry) {
+            return null;
+        }
+        return peer.address;
+    }
+}
@@ -0,0 +1,265 @@
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Receive pipeline, three stages joined by lock-free RingBuffers:
+//   1. the receive thread copies each packet into a preallocated pool packet
+//      and puts it into its sender's session mailbox; sessions with work go
+//      into the ready queue
+//   2. receive.workers threads (default: one per core) run sessions, at most
+//      one worker per session at a time, so each sender's packets stay in
+//      order and per-sender state needs no locks
+//   3. output goes through one more queue to the UI executor, in the order
+//      workers finished
+// Backpressure: an empty pool makes the receive thread wait (the socket
+// buffer absorbs the burst), a full UI queue makes workers wait, and a full
+// mailbox drops that sender's packet without stalling the others.
+public class PeerSessions {
+    private static final int WORKERS = Math.max(1, Config.getInt("receive.workers",
+                                                                 Runtime.getRuntime().availableProcessors()));
+    private static final int IN_FLIGHT = Math.max(16, Config.getInt("receive.inflight", 1024));
+    private static final int MAILBOX_SIZE = Math.max(2, Config.getInt("session.mailbox", 512));
+    // Forget a session after this long without packets
+    private static final long IDLE_MILLIS = Config.getLong("session.idle", 30000);
+
+    private static final int POOLED_BUFFER_SIZE = 2048;
+    // Then the session goes to the back of the line
+    private static final int MAX_PACKETS_PER_TURN = 64;
+    private static final int READY_QUEUE_SIZE = 4096;
+    private static final int UI_QUEUE_SIZE = 1024;
+    private static final long WAIT_NANOS = 50_000;
+    private static final long SWEEP_INTERVAL_MILLIS = 5000;
+
+    public interface Handler {
+        // packets are in arrival order and go back to the pool afterwards
+        void handle(Session session, List<Packet> packets, List<Runnable> updates);
+    }
+
+    public static final class Packet {
+        // Room it was sent to; null if it was sent straight to us
+        public Room room;
+        public SocketAddress source;
+        public byte flags;
+        public int senderId;
+        // Encrypted part, from position to limit
+        public final ByteBuffer data;
+
+        Packet(int capacity) {
+            this.data = ByteBuffer.allocate(capacity);
+        }
+    }
+
+    public final class Session {
+        public final int senderId;
+        public final ByteBuffer decryptBuffer;
+        // Written by the receive thread only
+        private final RingBuffer<Packet> mailbox = new RingBuffer<>(MAILBOX_SIZE);
+        // In the ready queue or being run by a worker
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // Receive thread only
+        private long lastPacket;
+
+        Session(int senderId) {
+            this.senderId = senderId;
+            this.decryptBuffer = ByteBuffer.allocate(decryptBufferSize);
+        }
+    }
+
+    private final class Worker extends Thread {
+        final AtomicBoolean parked = new AtomicBoolean();
+        final List<Packet> packets = new ArrayList<>(MAX_PACKETS_PER_TURN);
+
+        Worker(int number) {
+            super("Receive-Worker-" + number);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Session session = readyQueue.poll();
+                if (session != null) {
+                    runSession(session, packets);
+                    continue;
+                }
+                // Announce we're going to sleep, then look once more so no wakeup is missed
+                parked.set(true);
+                idleWorkers.offer(this);
+                session = readyQueue.poll();
+                if (session != null) {
+                    parked.set(false); // our idleWorkers entry is now stale
+                    runSession(session, packets);
+                    continue;
+                }
+                while (parked.get()) {
+                    LockSupport.park(this);
+                }
+            }
+        }
+    }
+
+    private final RingBuffer<Packet> pool = new RingBuffer<>(IN_FLIGHT);
+    private final RingBuffer<Session> readyQueue = new RingBuffer<>(READY_QUEUE_SIZE);
+    private final RingBuffer<Runnable> uiQueue = new RingBuffer<>(UI_QUEUE_SIZE);
+    private final Queue<Worker> idleWorkers = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean uiDrainPosted = new AtomicBoolean();
+    private final Map<Integer, Session> sessions = new ConcurrentHashMap<>();
+
+    private final AtomicLong droppedPackets = new AtomicLong();
+    private final AtomicLong readerWaits = new AtomicLong();
+    private final AtomicLong workerWaits = new AtomicLong();
+
+    private final int decryptBufferSize;
+    private final Handler handler;
+    private final Executor uiExecutor;
+    private long lastSweep = System.currentTimeMillis();
+
+    public PeerSessions(int decryptBufferSize, Handler handler, Executor uiExecutor) {
+        this.decryptBufferSize = decryptBufferSize;
+        this.handler = handler;
+        this.uiExecutor = uiExecutor;
+        for (int i = 0; i < pool.capacity(); i++) {
+            pool.offer(new Packet(POOLED_BUFFER_SIZE));
+        }
+        for (int i = 0; i < WORKERS; i++) {
+            new Worker(i).start();
+        }
+    }
+
+    // Receive thread only; waits while every pooled packet is in use
+    public Packet acquire(int size) {
+        if (size > POOLED_BUFFER_SIZE) {
+            return new Packet(size);
+        }
+        Packet packet = pool.poll();
+        while (packet == null) {
+            readerWaits.incrementAndGet();
+            LockSupport.parkNanos(WAIT_NANOS);
+            packet = pool.poll();
+        }
+        packet.data.clear();
+        return packet;
+    }
+
+    // Receive thread only, which keeps each sender's packets in order
+    public void dispatch(Packet packet) {
+        long now = System.currentTimeMillis();
+        Session session = sessions.computeIfAbsent(packet.senderId, Session::new);
+        session.lastPacket = now;
+        if (!session.mailbox.offer(packet)) {
+            droppedPackets.incrementAndGet();
+            release(packet);
+        }
+        if (session.scheduled.compareAndSet(false, true)) {
+            makeReady(session);
+        }
+        if (now - lastSweep > SWEEP_INTERVAL_MILLIS) {
+            lastSweep = now;
+            sweepIdleSessions(now);
+        }
+    }
+
+    // Queue output behind everything already waiting; waits while the UI queue is full
+    public void post(Runnable update) {
+        while (!uiQueue.offer(update)) {
+            workerWaits.incrementAndGet();
+            postUiDrain();
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+        postUiDrain();
+    }
+
+    // Depth now / high-water mark / capacity per stage
+    public String describe() {
+        int inFlight = pool.capacity() - pool.size();
+        return "Receive pipeline: " + WORKERS + " workers, " + sessions.size() + " sessions\n" +
+               "  packets in flight: " + inFlight + "/" + pool.capacity() + ", receive thread waited " + readerWaits.get() + " times\n" +
+               "  ready queue: " + readyQueue.size() + " (max " + readyQueue.maxDepth() + ")/" + readyQueue.capacity() + "\n" +
+               "  output queue: " + uiQueue.size() + " (max " + uiQueue.maxDepth() + ")/" + uiQueue.capacity() +
+               ", workers waited " + workerWaits.get() + " times\n" +
+               "  dropped (mailbox full): " + droppedPackets.get();
+    }
+
+    private void makeReady(Session session) {
+        while (!readyQueue.offer(session)) {
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+        Worker worker;
+        while ((worker = idleWorkers.poll()) != null) {
+            if (worker.parked.compareAndSet(true, false)) {
+                LockSupport.unpark(worker);
+                return;
+            }
+        }
+    }
+
+    private void runSession(Session session, List<Packet> packets) {
+        Packet packet;
+        while (packets.size() < MAX_PACKETS_PER_TURN && (packet = session.mailbox.poll()) != null) {
+            packets.add(packet);
+        }
+        List<Runnable> updates = new ArrayList<>();
+        try {
+            handler.handle(session, packets, updates);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            for (Packet done : packets) {
+                release(done);
+            }
+            packets.clear();
+        }
+        // Post before releasing the session so its output stays in order
+        if (!updates.isEmpty()) {
+            post(() -> updates.forEach(Runnable::run));
+        }
+        session.scheduled.set(false);
+        if (!session.mailbox.isEmpty() && session.scheduled.compareAndSet(false, true)) {
+            makeReady(session);
+        }
+    }
+
+    private void postUiDrain() {
+        if (!uiQueue.isEmpty() && uiDrainPosted.compareAndSet(false, true)) {
+            uiExecutor.execute(this::drainUiQueue);
+        }
+    }
+
+    private void drainUiQueue() {
+        Runnable update;
+        while ((update = uiQueue.poll()) != null) {
+            update.run();
+        }
+        uiDrainPosted.set(false);
+        postUiDrain();
+    }
+
+    // Only the receive thread adds packets, so an empty, unscheduled session
+    // can't become busy while we remove it
+    private void sweepIdleSessions(long now) {
+        Iterator<Session> iterator = sessions.values().iterator();
+        while (iterator.hasNext()) {
+            Session session = iterator.next();
+            if (now - session.lastPacket > IDLE_MILLIS && !session.scheduled.get() && session.mailbox.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void release(Packet packet) {
+        packet.source = null;
+        if (packet.data.capacity() == POOLED_BUFFER_SIZE) {
+            pool.offer(packet);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Non-blocking receive loop: one thread waits on a Selector for any number of
+// DatagramChannels (one per group membership) and drains every queued datagram
+// on each wakeup, handing them to the listener in batches.
+// A batch is received straight into one direct buffer and the Datagram objects
+// pointing into it are reused, so receiving allocates nothing per packet.
+public class ReceiveEngine implements Runnable {
+    private static final int MAX_DATAGRAM_SIZE = 65536;
+    // Hand over a batch at least this often during a burst
+    private static final int MAX_BATCH_SIZE = Math.max(1, Config.getInt("receive.batch", 256));
+    private static final int BATCH_BUFFER_SIZE = Math.max(MAX_DATAGRAM_SIZE, Config.getInt("receive.buffer", 1 << 20));
+    // Larger kernel buffer so bursts are not dropped before we drain them
+    private static final int RECEIVE_BUFFER_SIZE = Config.getInt("socket.rcvbuf", 1 << 20);
+
+    public interface BatchListener {
+        // The list, the datagrams and their data are reused by the engine;
+        // do not keep any of them after returning
+        void onBatch(List<Datagram> batch);
+    }
+
+    public static final class Datagram {
+        public Object tag;
+        public SocketAddress source;
+        // View of the batch buffer; position to limit is the packet
+        public final ByteBuffer data;
+
+        Datagram(ByteBuffer batchBuffer) {
+            this.data = batchBuffer.duplicate();
+        }
+    }
+
+    private final Selector selector;
+    private final BatchListener listener;
+    private final ByteBuffer batchBuffer = ByteBuffer.allocateDirect(BATCH_BUFFER_SIZE);
+    private final Datagram[] datagrams = new Datagram[MAX_BATCH_SIZE];
+    private final List<Datagram> batch = new ArrayList<>(MAX_BATCH_SIZE);
+    // Registrations requested from other threads, applied by the receive thread
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    public ReceiveEngine(BatchListener listener) throws IOException {
+        this.listener = listener;
+        this.selector = Selector.open();
+        for (int i = 0; i < datagrams.length; i++) {
+            datagrams[i] = new Datagram(batchBuffer);
+        }
+    }
+
+    // Open a non-blocking IPv4 channel for one group, ready to join it. Bound to the
+    // group address so rooms sharing a port don't get each other's packets;
+    // where that isn't allowed (Windows), bound to the port only
+    public static DatagramChannel openGroupChannel(InetAddress group, int port) throws IOException {
+        DatagramChannel channel = openReusableChannel();
+        try {
+            channel.bind(new InetSocketAddress(group, port));
+        } catch (IOException e) {
+            channel.close();
+            channel = openReusableChannel();
+            channel.bind(new InetSocketAddress(port));
+        }
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    private static DatagramChannel openReusableChannel() throws IOException {
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+        return channel;
+    }
+
+    // Start reading from a channel; safe to call from any thread
+    public void register(DatagramChannel channel, Object tag) {
+        pendingTasks.add(() -> {
+            try {
+                channel.register(selector, SelectionKey.OP_READ, tag);
+            } catch (ClosedChannelException e) {
+                e.printStackTrace();
+            }
+        });
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                Runnable task;
+                while ((task = pendingTasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        drain((DatagramChannel) key.channel(), key.attachment());
+                    }
+                }
+                flushBatch();
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Read until the channel's queue is empty
+    private void drain(DatagramChannel channel, Object tag) {
+        while (true) {
+            // Keep room for the largest datagram behind the previous one
+            if (batchBuffer.remaining() < MAX_DATAGRAM_SIZE) {
+                flushBatch();
+            }
+            SocketAddress source;
+            int start = batchBuffer.position();
+            try {
+                source = channel.receive(batchBuffer);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            if (source == null) {
+                return;
+            }
+            Datagram datagram = datagrams[batch.size()];
+            datagram.tag = tag;
+            datagram.source = source;
+            datagram.data.limit(batchBuffer.position()).position(start);
+            batch.add(datagram);
+            if (batch.size() >= MAX_BATCH_SIZE) {
+                flushBatch();
+            }
+        }
+    }
+
+    private void flushBatch() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            listener.onBatch(batch);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            batch.clear();
+            batchBuffer.clear();
+        }
+    }
+
+    public void close() {
+        running = false;
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+// A chat room and the multicast group it lives on. The group and port are
+// hashed from the name exactly like the GUI does, so every client finds the
+// same group without asking; the lobby keeps the classic group and port.
+public class Room {
+    public static final String DEFAULT_ROOM = "lobby";
+    private static final String DEFAULT_GROUP = Config.getString("group", "230.0.0.1");
+    private static final int DEFAULT_PORT = Config.getInt("port", 5000);
+    // Other rooms: 239.192.x.y, ports 5001-6000
+    private static final int FIRST_ROOM_PORT = 5001;
+    private static final int ROOM_PORTS = 1000;
+    private static final int MAX_NAME_LENGTH = 32;
+
+    private final String name;
+    private final InetSocketAddress address;
+
+    public Room(String name) {
+        this.name = name;
+        this.address = addressFor(name);
+    }
+
+    // "#Dev-Team " and "dev-team" are the same room; null if it isn't a valid name
+    public static String normalizeName(String input) {
+        String name = input.trim().toLowerCase(Locale.ROOT);
+        if (name.startsWith("#")) {
+            name = name.substring(1);
+        }
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH || !name.matches("[a-z0-9_-]+")) {
+            return null;
+        }
+        return name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public InetAddress getGroup() {
+        return address.getAddress();
+    }
+
+    public int getPort() {
+        return address.getPort();
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    // CRC32 of the UTF-8 name: the low 16 bits pick the group, the high 16 bits the port
+    private static InetSocketAddress addressFor(String name) {
+        try {
+            if (name.equals(DEFAULT_ROOM)) {
+                return new InetSocketAddress(InetAddress.getByName(DEFAULT_GROUP), DEFAULT_PORT);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(name.getBytes(StandardCharsets.UTF_8));
+            long hash = crc.getValue();
+            byte[] group = { (byte) 239, (byte) 192, (byte) (hash >>> 8), (byte) hash };
+            int port = FIRST_ROOM_PORT + (int) ((hash >>> 16) % ROOM_PORTS);
+            return new InetSocketAddress(InetAddress.getByAddress(group), port);
+        } catch (UnknownHostException e) {
+            // Only literal addresses are looked up
+            throw new IllegalStateException(e);
+        }
+    }
+}
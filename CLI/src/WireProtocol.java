@@ -0,0 +1,86 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Binary packet format, written and read directly with ByteBuffers.
+//
+// Plain header (not encrypted, so receivers can filter before decrypting):
+//   byte 0     magic/version (0xC2 = LC32 console dialect; the GUI's varint
+//              frames use 0xC1, so each side drops the other's packets here)
+//   byte 1     flags (bit 1: sent straight to one user instead of the group)
+//   bytes 2-5  numeric sender id
+//   bytes 6-9  sequence number
+// Encrypted body: one frame
+//   byte 0     message type
+//   bytes 1-2  body length
+//   bytes 3-   body made of length-prefixed UTF-8 fields
+public class WireProtocol {
+    public static final byte MAGIC_VERSION = (byte) 0xC2;
+    public static final int HEADER_SIZE = 10;
+    public static final int FRAME_HEADER_SIZE = 3;
+
+    // Header flags
+    public static final byte FLAG_UNICAST = 0x02;
+
+    // Message types
+    public static final byte TYPE_CHAT = 1;      // nickname, text
+    public static final byte TYPE_PRESENCE = 2;  // nickname, heartbeat interval in seconds (optional)
+    public static final byte TYPE_PM = 4;        // sender nickname, target nickname, text
+
+    // Filled in by readHeader; the receiver reuses one per thread
+    public static final class Header {
+        public byte flags;
+        public int senderId;
+        public int sequence;
+    }
+
+    public static void writeHeader(ByteBuffer out, byte flags, int senderId, int sequence) {
+        out.put(MAGIC_VERSION);
+        out.put(flags);
+        out.putInt(senderId);
+        out.putInt(sequence);
+    }
+
+    // Returns false for packets that are too short or not ours
+    public static boolean readHeader(ByteBuffer in, Header header) {
+        if (in.remaining() < HEADER_SIZE || in.get() != MAGIC_VERSION) {
+            return false;
+        }
+        header.flags = in.get();
+        header.senderId = in.getInt();
+        header.sequence = in.getInt();
+        return true;
+    }
+
+    // Build a frame: type, body length, then each field as length + UTF-8 bytes
+    public static byte[] frame(byte type, String... fields) {
+        byte[][] encoded = new byte[fields.length][];
+        int bodyLength = 0;
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            bodyLength += 2 + encoded[i].length;
+        }
+        if (bodyLength > 0xFFFF) {
+            throw new IllegalArgumentException("Message too large for one frame (" + bodyLength + " bytes)");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(FRAME_HEADER_SIZE + bodyLength);
+        buffer.put(type);
+        buffer.putShort((short) bodyLength);
+        for (byte[] field : encoded) {
+            buffer.putShort((short) field.length);
+            buffer.put(field);
+        }
+        return buffer.array();
+    }
+
+    // Decode one length-prefixed field without copying the bytes first
+    public static String readString(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+}
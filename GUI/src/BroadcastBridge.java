@@ -0,0 +1,212 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Forwards a room's packets between the users who receive it by multicast
+ * and the users who fell back to subnet broadcast, so both halves of a
+ * network segment stay in one conversation.
+ *
+ * Every client that has multicast working also listens for the room's
+ * broadcasts. Once it hears a broadcast user, it becomes a bridge: packets
+ * it sees first on one side are forwarded to the other. The packets are
+ * forwarded as they are, encrypted, with only the {@link WireProtocol#FLAG_RELAYED}
+ * flag set, so receivers know the source address is the bridge's.
+ *
+ * Usually several clients could bridge. So that not all of them forward
+ * every packet, each one waits a random moment first, and cancels if a
+ * copy shows up on the other side in the meantime - the same trick that
+ * keeps everyone from answering a roster request at once. A packet is
+ * identified by its sender id and sequence number; one that was seen in
+ * the last bridge.window milliseconds isn't forwarded again, which also
+ * stops bridges from passing a packet back and forth. Retransmissions
+ * come later than that, so they do get forwarded.
+ *
+ * Settings (see {@link Config}):
+ * <ul>
+ *   <li>bridge.delay - the longest random wait before forwarding, in ms (20)</li>
+ *   <li>bridge.window - how long a packet counts as seen, in ms (200)</li>
+ * </ul>
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class BroadcastBridge {
+    private static final int MAX_DELAY_MICROS = Math.max(0, Config.getInt("bridge.delay", 20)) * 1000;
+    private static final long SEEN_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(Math.max(1, Config.getLong("bridge.window", 200)));
+    private static final int TABLE_SIZE = 4096; // Recently seen packets we remember (a power of two)
+
+    /**
+     * Sends a forwarded packet to the other side.
+     */
+    public interface Target {
+        /**
+         * Sends the packet.
+         *
+         * @param packet The packet to send, with the relayed flag set
+         * @throws IOException If it couldn't be sent
+         */
+        void send(ByteBuffer packet) throws IOException;
+    }
+
+    /**
+     * A packet waiting to be forwarded.
+     */
+    private static final class Relay {
+        final boolean toBroadcast;         // Which side it's going to
+        ScheduledFuture<?> future;
+
+        Relay(boolean toBroadcast) {
+            this.toBroadcast = toBroadcast;
+        }
+    }
+
+    // Recently seen packets: their ids and when they were seen. A newer packet
+    // with the same slot pushes an older one out, which at worst forwards it twice.
+    private final long[] seenIds = new long[TABLE_SIZE];
+    private final long[] seenAt = new long[TABLE_SIZE];
+    private final Map<Long, Relay> pending = new ConcurrentHashMap<>(); // Packets waiting to be forwarded, by id
+    private final ScheduledExecutorService relayExecutor;
+    private final WireProtocol.Header header = new WireProtocol.Header(); // Only used while holding the lock
+    private final LongAdder forwarded = new LongAdder();  // Packets we forwarded
+    private final LongAdder suppressed = new LongAdder(); // Packets another bridge forwarded first
+
+    /**
+     * Creates a bridge with its own thread for forwarding.
+     */
+    public BroadcastBridge() {
+        relayExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Broadcast-Bridge");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Remembers a packet we sent ourselves, so it isn't forwarded when it comes back to us.
+     *
+     * @param packet The packet, from position to limit (the position isn't moved)
+     */
+    public synchronized void sent(ByteBuffer packet) {
+        long id = readId(packet);
+        if (id != -1) {
+            markSeen(id, System.nanoTime());
+        }
+    }
+
+    /**
+     * Handles a packet received on one side. If it's new, it's forwarded to
+     * the other side after a random wait, unless it shows up there first.
+     *
+     * @param packet The packet, from position to limit (the position isn't moved)
+     * @param viaBroadcast True if it arrived by broadcast, false if by multicast
+     * @param target Where to forward it, or null to only remember it
+     * @return True if it's a packet we haven't seen recently
+     */
+    public synchronized boolean received(ByteBuffer packet, boolean viaBroadcast, Target target) {
+        long id = readId(packet);
+        if (id == -1) {
+            return false;
+        }
+
+        // Somebody else already got it to this side - we don't need to
+        Relay relay = pending.get(id);
+        if (relay != null && relay.toBroadcast == viaBroadcast && pending.remove(id, relay)) {
+            relay.future.cancel(false);
+            suppressed.increment();
+        }
+
+        long now = System.nanoTime();
+        if (!markSeen(id, now)) {
+            return false;
+        }
+        if (target != null) {
+            forwardLater(id, copyRelayed(packet), !viaBroadcast, target);
+        }
+        return true;
+    }
+
+    /**
+     * Describes what the bridge did, for the /config command.
+     *
+     * @return A one-line summary
+     */
+    public String describe() {
+        return "forwarded " + forwarded.sum() + ", left to other bridges " + suppressed.sum();
+    }
+
+    /**
+     * Stops forwarding; packets still waiting are dropped.
+     */
+    public void close() {
+        relayExecutor.shutdownNow();
+        pending.clear();
+    }
+
+    /**
+     * Schedules a packet to be forwarded after a random wait.
+     */
+    private void forwardLater(long id, ByteBuffer copy, boolean toBroadcast, Target target) {
+        Relay relay = new Relay(toBroadcast);
+        pending.put(id, relay); // Before it's scheduled, since it may run right away
+        try {
+            relay.future = relayExecutor.schedule(() -> {
+                if (pending.remove(id, relay)) {
+                    try {
+                        target.send(copy);
+                        forwarded.increment();
+                    } catch (IOException e) {
+                        System.err.println("Error forwarding packet: " + e.getMessage());
+                    }
+                }
+            }, MAX_DELAY_MICROS > 0 ? ThreadLocalRandom.current().nextInt(MAX_DELAY_MICROS) : 0, TimeUnit.MICROSECONDS);
+        } catch (RejectedExecutionException e) {
+            pending.remove(id, relay); // The bridge is closed
+        }
+    }
+
+    /**
+     * Remembers that a packet was seen.
+     *
+     * @return False if it was already seen within the window
+     */
+    private boolean markSeen(long id, long now) {
+        int slot = (int) (id ^ (id >>> 29)) & (TABLE_SIZE - 1);
+        if (seenIds[slot] == id && seenAt[slot] != 0 && now - seenAt[slot] < SEEN_WINDOW_NANOS) {
+            return false;
+        }
+        seenIds[slot] = id;
+        seenAt[slot] = now;
+        return true;
+    }
+
+    /**
+     * Reads a packet's id - sender id and sequence number - from its plain header.
+     *
+     * @return The id, or -1 if it isn't one of our room packets
+     */
+    private long readId(ByteBuffer packet) {
+        if (!WireProtocol.readHeader(packet.duplicate(), header) || (header.flags & WireProtocol.FLAG_UNICAST) != 0) {
+            return -1;
+        }
+        return ((long) header.senderId << 32) | (header.sequence & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Copies a packet out of the receive buffer (which is reused) and marks it as relayed.
+     */
+    private static ByteBuffer copyRelayed(ByteBuffer packet) {
+        ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+        copy.put(packet.duplicate()).flip();
+        copy.put(1, (byte) (copy.get(1) | WireProtocol.FLAG_RELAYED)); // The flags follow the magic byte
+        return copy;
+    }
+}
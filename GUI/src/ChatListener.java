@@ -0,0 +1,76 @@
+/**
+ * Gets told about everything that happens on the network, so the
+ * {@link MulticastManager} doesn't need to know who shows it.
+ *
+ * The {@link ChatWindow} is the usual listener. A test or a benchmark can
+ * use its own to count messages instead of drawing them. All methods are
+ * called on the UI executor given to the MulticastManager (the Swing thread
+ * for the chat window).
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public interface ChatListener {
+    /**
+     * A chat message arrived in a room.
+     *
+     * @param room The room's name
+     * @param sender The sender's nickname
+     * @param content The message text
+     */
+    void appendMessage(String room, String sender, String content);
+
+    /**
+     * A private message arrived for us.
+     *
+     * @param sender The sender's nickname
+     * @param target Our nickname
+     * @param content The message text
+     */
+    void appendPrivateMessage(String sender, String target, String content);
+
+    /**
+     * Something the user should know about, like an error.
+     *
+     * @param message The text to show
+     */
+    void appendSystemMessage(String message);
+
+    /**
+     * A user is in a room.
+     *
+     * @param room The room's name
+     * @param username The user's nickname
+     */
+    void addUserToList(String room, String username);
+
+    /**
+     * A user left a room.
+     *
+     * @param room The room's name
+     * @param username The user's nickname
+     */
+    void removeUserFromList(String room, String username);
+
+    /**
+     * The network details for the status bar changed.
+     *
+     * @param networkInfo The new details
+     */
+    void updateNetworkStatus(String networkInfo);
+
+    /**
+     * We sent a packet.
+     *
+     * @param messageSize Its size in bytes
+     */
+    void updateSentStatistics(int messageSize);
+
+    /**
+     * We received some packets.
+     *
+     * @param packetCount How many
+     * @param byteCount Their total size in bytes
+     */
+    void updateReceivedStatistics(int packetCount, long byteCount);
+}
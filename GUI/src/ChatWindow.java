@@ -1,5 +1,6 @@
 import javax.swing.*;
 import javax.swing.border.*;
+import javax.swing.event.ChangeEvent;
 import javax.swing.text.JTextComponent;
 import java.awt.*;
 import java.awt.event.*;
@@ -9,21 +10,26 @@ import java.net.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Modern Swing-based chat window with enhanced UI.
  * Sends via MulticastManager, displays decrypted messages.
  */
-public class ChatWindow {
+public class ChatWindow implements ChatListener {
     private JTextComponent messageField; // Changed to JTextComponent to support both JTextField and JTextArea
     private JButton sendButton;
     private final MulticastManager multicastManager;
     private final String nickname;
     private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm");
     private JList<String> userList;
-    private DefaultListModel<String> userListModel;
-    private final Set<String> activeUsers = new HashSet<>();
-    private ChatPanel chatPanel;
+    private DefaultListModel<String> userListModel; // User list of the room we're looking at
+    private Set<String> activeUsers;                // Users of the room we're looking at
+    private ChatPanel chatPanel;                    // Chat of the room we're looking at
+    private JTabbedPane roomTabs;                   // One tab per room we're in
+    private final Map<String, RoomView> roomViews = new LinkedHashMap<>(); // Every room's chat and users, by name
+    private String currentRoom;                     // The room whose tab is selected
     private JFrame frame;
 
     private JButton themeButton;
@@ -35,9 +41,37 @@ public class ChatWindow {
     private int messagesReceived = 0;
     private long bytesTransferred = 0;
 
+    /**
+     * Everything the window shows for one room: its chat and who is in it.
+     */
+    private static class RoomView {
+        final ChatPanel chatPanel;
+        final DefaultListModel<String> userListModel = new DefaultListModel<>();
+        final Set<String> activeUsers = new HashSet<>();
+
+        RoomView(String nickname) {
+            chatPanel = new ChatPanel(nickname);
+            // We're always in our own rooms
+            userListModel.addElement(nickname);
+            activeUsers.add(nickname);
+        }
+    }
+
     public ChatWindow(String nickname) {
+        // Any impair.* settings make the network behave badly, see ImpairedTransport.
+        // If a host hub runs on this computer, the rooms come from it instead, see HubTransport
+        this(nickname, HubTransport.attachIfRunning(ImpairedTransport.wrapIfConfigured(new UdpTransport(), 0)));
+    }
+
+    /**
+     * Opens the chat window on any transport, like a recorded trace for {@link TraceReplay}.
+     *
+     * @param nickname The user's nickname
+     * @param transport Sends and receives the packets
+     */
+    public ChatWindow(String nickname, Transport transport) {
         this.nickname = nickname;
-        multicastManager = new MulticastManager(nickname, this);
+        multicastManager = new MulticastManager(nickname, this, transport, SwingUtilities::invokeLater);
 
         // Apply theme
         ThemeManager.applyTheme();
@@ -111,8 +145,12 @@ public class ChatWindow {
         headerPanel.add(titleLabel, BorderLayout.WEST);
         headerPanel.add(statusIndicator, BorderLayout.EAST);
         
-        // Create chat panel
-        chatPanel = new ChatPanel(nickname);
+        // Create a tab for each room's chat, starting with the default room
+        roomTabs = new JTabbedPane(JTabbedPane.TOP);
+        roomTabs.setBackground(ThemeManager.getCurrentTheme().backgroundColor);
+        roomTabs.setForeground(ThemeManager.getCurrentTheme().textPrimaryColor);
+        roomTabs.addChangeListener((ChangeEvent e) -> showSelectedRoom());
+        openRoomView(Room.DEFAULT_ROOM);
         
         // Toolbar with buttons
         JPanel toolbarPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
@@ -165,7 +203,7 @@ public class ChatWindow {
                     if (txt.startsWith("/")) {
                         processCommand(txt);
                     } else {
-                        multicastManager.sendMessage(txt);
+                        sendChatMessage(txt);
                     }
                     textArea.setText("");
                 }
@@ -194,7 +232,8 @@ public class ChatWindow {
             "Type your message or use commands:<br>" +
             "<span style='color: #3399ff;'>/help</span> - Show available commands<br>" +
             "<span style='color: #3399ff;'>/tech</span> - Toggle technical info<br>" +
-            "<span style='color: #3399ff;'>/stats</span> - Show network statistics<br><br>" +
+            "<span style='color: #3399ff;'>/stats</span> - Show network statistics<br>" +
+            "<span style='color: #3399ff;'>/join</span> - Join another room<br><br>" +
             "<b>CODE BLOCKS:</b><br>" +
             "Format code with:<br>" +
             "<span style='color: #3399ff;'>```language<br>code here<br>```</span><br>" +
@@ -213,7 +252,7 @@ public class ChatWindow {
                 if (txt.startsWith("/")) {
                     processCommand(txt);
                 } else {
-                    multicastManager.sendMessage(txt);
+                    sendChatMessage(txt);
                 }
                 messageField.setText("");
             }
@@ -300,7 +339,7 @@ public class ChatWindow {
         
         // Add the header panel to the top
         leftPanel.add(headerPanel, BorderLayout.NORTH);
-        leftPanel.add(chatPanel.getScrollPane(), BorderLayout.CENTER);
+        leftPanel.add(roomTabs, BorderLayout.CENTER);
         leftPanel.add(bottomPanel, BorderLayout.SOUTH);
         
         // User list panel (right side) with improved responsiveness
@@ -328,11 +367,7 @@ public class ChatWindow {
         userCountLabel.setForeground(ThemeManager.getCurrentTheme().textSecondaryColor);
         userCountLabel.setBorder(new EmptyBorder(5, 5, 15, 5));
         
-        // User list
-        userListModel = new DefaultListModel<>();
-        userListModel.addElement(nickname);
-        activeUsers.add(nickname);
-        
+        // User list (shows the users of the selected room)
         userList = new JList<>(userListModel);
         userList.setCellRenderer(new UserListRenderer(nickname));
         userList.setBackground(ThemeManager.getCurrentTheme().cardColor);
@@ -436,24 +471,37 @@ public class ChatWindow {
         // Focus on message field
         messageField.requestFocus();
         
-        // Start heartbeat timer to periodically announce presence
-        javax.swing.Timer heartbeatTimer = new javax.swing.Timer(10000, e -> multicastManager.sendHeartbeat());
-        heartbeatTimer.setRepeats(true);
-        heartbeatTimer.start();
+        // Announce our presence now and periodically from the network thread,
+        // so heartbeats keep going even while the UI is busy painting
+        multicastManager.startHeartbeat();
         
         // Add shutdown hook to send goodbye message when app closes
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            multicastManager.sendGoodbye();
             try {
-                // Give some time for the message to be sent
-                Thread.sleep(500);
-            } catch (InterruptedException ex) {
-                // Ignore
+                // Give the message up to half a second to be sent
+                multicastManager.sendGoodbye().get(500, TimeUnit.MILLISECONDS);
+            } catch (Exception ex) {
+                // Ignore - we're exiting anyway
             }
+            multicastManager.shutdown();
         }));
-        
-        // Send initial heartbeat
-        multicastManager.sendHeartbeat();
+    }
+
+    /**
+     * Sends a chat message without blocking the Swing thread.
+     * If sending fails, the reason is shown in the chat once the network thread reports back.
+     *
+     * @param message The message to send
+     */
+    private void sendChatMessage(String message) {
+        multicastManager.sendMessage(currentRoom, message).whenComplete((ignored, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                SwingUtilities.invokeLater(() ->
+                    appendSystemMessage("Error sending message: " + cause.getMessage()));
+            }
+        });
     }
     
 
@@ -474,7 +522,9 @@ public class ChatWindow {
         SwingUtilities.updateComponentTreeUI(frame);
         
         // Update specific components that need special handling
-        chatPanel.applyTheme();
+        for (RoomView view : roomViews.values()) {
+            view.chatPanel.applyTheme();
+        }
         
         // Update colors for various panels
         updateComponentColors(frame);
@@ -523,52 +573,112 @@ public class ChatWindow {
     }
 
     /**
-     * Appends a message to the chat panel.
+     * Opens a tab for a room and switches to it.
+     *
+     * @param room The name of the room
+     * @return The room's view
+     */
+    private RoomView openRoomView(String room) {
+        RoomView view = roomViews.get(room);
+        if (view == null) {
+            view = new RoomView(nickname);
+            roomViews.put(room, view);
+            roomTabs.addTab("#" + room, view.chatPanel.getScrollPane());
+        }
+        roomTabs.setSelectedComponent(view.chatPanel.getScrollPane());
+        showSelectedRoom();
+        return view;
+    }
+
+    /**
+     * Closes the tab of a room we've left.
+     *
+     * @param room The name of the room
+     */
+    private void closeRoomView(String room) {
+        RoomView view = roomViews.remove(room);
+        if (view != null) {
+            roomTabs.remove(view.chatPanel.getScrollPane());
+        }
+    }
+
+    /**
+     * Points the chat, the user list and the commands at the room whose tab is selected.
+     */
+    private void showSelectedRoom() {
+        int index = roomTabs.getSelectedIndex();
+        if (index < 0) {
+            return;
+        }
+        currentRoom = roomTabs.getTitleAt(index).substring(1); // Strip the '#'
+        RoomView view = roomViews.get(currentRoom);
+        chatPanel = view.chatPanel;
+        userListModel = view.userListModel;
+        activeUsers = view.activeUsers;
+
+        // The user list is created after the first tab
+        if (userList != null) {
+            userList.setModel(userListModel);
+            updateUserCount();
+        }
+    }
+
+    /**
+     * Appends a message from a sender to a room's chat panel.
+     *
+     * @param room The room it was sent to
+     * @param sender The nickname of the sender
+     * @param content The message text
      */
-    public void appendMessage(String message) {
+    public void appendMessage(String room, String sender, String content) {
         try {
-            // Check if message contains a colon
-            int colonIndex = message.indexOf(":");
-            if (colonIndex <= 0) {
-                // Malformed message, show as system message
-                appendSystemMessage("Received: " + message);
-                return;
-            }
-            
-            String sender = message.substring(0, colonIndex).trim();
-            String content = message.substring(colonIndex + 1).trim();
-            
-            // Skip empty messages
-            if (content.isEmpty()) {
+            // Skip empty messages, and messages for rooms we've just left
+            RoomView view = roomViews.get(room);
+            if (content.isEmpty() || view == null) {
                 return;
             }
             
             // Add user to the list if not already there
-            if (!activeUsers.contains(sender)) {
-                activeUsers.add(sender);
-                SwingUtilities.invokeLater(() -> userListModel.addElement(sender));
+            if (!view.activeUsers.contains(sender)) {
+                view.activeUsers.add(sender);
+                SwingUtilities.invokeLater(() -> {
+                    view.userListModel.addElement(sender);
+                    updateUserCount();
+                });
             }
             
-            // Generate technical packet information for display
-            boolean isFromCurrentUser = sender.equals(nickname);
-            String packetInfo = generatePacketInfo(message, isFromCurrentUser);
-            
             // Add to chat panel with technical packet info if enabled
             if (isShowingTechnicalInfo) {
-                chatPanel.addMessage(sender, packetInfo + "\n" + content);
+                // Generate technical packet information for display
+                boolean isFromCurrentUser = sender.equals(nickname);
+                String packetInfo = generatePacketInfo(sender + ": " + content, isFromCurrentUser);
+                view.chatPanel.addMessage(sender, packetInfo + "\n" + content);
             } else {
-                chatPanel.addMessage(sender, content);
+                view.chatPanel.addMessage(sender, content);
             }
             
             // Print debug info to console
-            System.out.println("Message from: " + sender + ", content: " + content);
+            System.out.println("Message in #" + room + " from: " + sender + ", content: " + content);
         } catch (Exception e) {
             // Fallback for malformed messages
             System.err.println("Error parsing message: " + e.getMessage());
-            appendSystemMessage("Received: " + message);
+            appendSystemMessage("Received: " + sender + ": " + content);
         }
     }
     
+    /**
+     * Appends a private message to the chat panel, marked so it's clear
+     * nobody else can see it.
+     *
+     * @param sender The nickname of the sender
+     * @param target The nickname of the user it was sent to
+     * @param content The message text
+     */
+    public void appendPrivateMessage(String sender, String target, String content) {
+        String label = sender.equals(nickname) ? "[private to " + target + "] " : "[private] ";
+        chatPanel.addMessage(sender, label + content);
+    }
+
     // Flag to toggle technical information display
     private boolean isShowingTechnicalInfo = false;
     
@@ -624,28 +734,30 @@ public class ChatWindow {
     }
     
     /**
-     * Add a user to the online users list
+     * Add a user to a room's online users list
      */
-    public void addUserToList(String username) {
-        if (!activeUsers.contains(username)) {
-            activeUsers.add(username);
+    public void addUserToList(String room, String username) {
+        RoomView view = roomViews.get(room);
+        if (view != null && !view.activeUsers.contains(username)) {
+            view.activeUsers.add(username);
             SwingUtilities.invokeLater(() -> {
-                userListModel.addElement(username);
+                view.userListModel.addElement(username);
                 updateUserCount();
             });
         }
     }
     
     /**
-     * Remove a user from the online users list
+     * Remove a user from a room's online users list
      */
-    public void removeUserFromList(String username) {
-        if (activeUsers.contains(username) && !username.equals(nickname)) {
-            activeUsers.remove(username);
+    public void removeUserFromList(String room, String username) {
+        RoomView view = roomViews.get(room);
+        if (view != null && view.activeUsers.contains(username) && !username.equals(nickname)) {
+            view.activeUsers.remove(username);
             SwingUtilities.invokeLater(() -> {
-                userListModel.removeElement(username);
+                view.userListModel.removeElement(username);
                 updateUserCount();
-                appendSystemMessage(username + " left");
+                view.chatPanel.addSystemMessage(username + " left");
             });
         }
     }
@@ -743,12 +855,13 @@ public class ChatWindow {
     }
     
     /**
-     * Update statistics when a message is received
-     * @param messageSize The size of the message in bytes
+     * Update statistics when a batch of packets is received
+     * @param packetCount How many packets were received
+     * @param byteCount Their total size in bytes
      */
-    public void updateReceivedStatistics(int messageSize) {
-        messagesReceived++;
-        bytesTransferred += messageSize;
+    public void updateReceivedStatistics(int packetCount, long byteCount) {
+        messagesReceived += packetCount;
+        bytesTransferred += byteCount;
         updateStatisticsDisplay();
     }
     
@@ -799,6 +912,21 @@ public class ChatWindow {
             case "/ping":
                 pingUser(args);
                 break;
+            case "/pm":
+                sendPrivateMessage(args);
+                break;
+            case "/join":
+                joinRoom(args);
+                break;
+            case "/leave":
+                leaveRoom(args);
+                break;
+            case "/rooms":
+                showRooms();
+                break;
+            case "/config":
+                appendSystemMessage(Config.describe() + "\n" + multicastManager.describeSocketOptions());
+                break;
             case "/netinfo":
                 showNetworkInfo();
                 break;
@@ -831,7 +959,12 @@ public class ChatWindow {
         help.append("/stats - Show network statistics\n");
         help.append("/tech - Toggle technical packet information\n");
         help.append("/ping [user] - Ping a user or all users\n");
+        help.append("/pm <user> <message> - Send a private message\n");
+        help.append("/join <room> - Join a room (or switch to it)\n");
+        help.append("/leave [room] - Leave a room (the current one by default)\n");
+        help.append("/rooms - Show the rooms you're in\n");
         help.append("/netinfo - Show detailed network information\n");
+        help.append("/config - Show the settings in effect\n");
         help.append("/clear - Clear the chat window\n");
         help.append("/theme - Show current theme\n");
         help.append("/time - Show server time\n");
@@ -849,22 +982,129 @@ public class ChatWindow {
         stats.append("Messages sent: ").append(messagesSent).append("\n");
         stats.append("Messages received: ").append(messagesReceived).append("\n");
         stats.append("Total bytes transferred: ").append(formatBytes(bytesTransferred)).append("\n");
+        stats.append("Room: #").append(currentRoom).append("\n");
         stats.append("Active users: ").append(activeUsers.size()).append("\n");
+        stats.append("Direct peers: ").append(multicastManager.getDirectPeerCount()).append("\n");
+        stats.append(multicastManager.getReceiveStats()).append("\n");
+        stats.append("Send rate: ").append(formatBytes(multicastManager.getSendRate())).append("/s");
+        double rateFactor = multicastManager.getRateFactor();
+        if (rateFactor < 1.0) {
+            // We slowed down because peers reported losses
+            stats.append(" (congestion back-off: ").append(Math.round(rateFactor * 100)).append("% of limit)");
+        }
+        stats.append("\n");
+        String reliabilityStats = multicastManager.getReliabilityStats(currentRoom);
+        if (reliabilityStats != null) {
+            stats.append(reliabilityStats).append("\n");
+        }
         stats.append("Encryption: AES-128/ECB");
         
         appendSystemMessage(stats.toString());
     }
     
+    /**
+     * Send a private message to one user
+     */
+    private void sendPrivateMessage(String args) {
+        String[] parts = args.split("\\s+", 2);
+        if (parts.length < 2 || parts[0].isEmpty() || parts[1].isEmpty()) {
+            appendSystemMessage("Usage: /pm <user> <message>");
+            return;
+        }
+        String target = parts[0];
+        String message = parts[1];
+
+        // Show it right away - unlike group messages, it won't come back to us
+        appendPrivateMessage(nickname, target, message);
+        multicastManager.sendPrivateMessage(currentRoom, target, message).whenComplete((ignored, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                SwingUtilities.invokeLater(() ->
+                    appendSystemMessage("Error sending private message: " + cause.getMessage()));
+            }
+        });
+    }
+
+    /**
+     * Join a room, or switch to its tab if we're already in it
+     */
+    void joinRoom(String args) {
+        String room = Room.normalizeName(args);
+        if (room == null) {
+            appendSystemMessage("Usage: /join <room> (letters, digits, '-' and '_', up to 32 characters)");
+            return;
+        }
+        if (roomViews.containsKey(room)) {
+            openRoomView(room);
+            return;
+        }
+
+        // Open the tab first, so nothing the room sends right after we join gets lost
+        openRoomView(room);
+        multicastManager.joinRoom(room).whenComplete((joined, error) -> SwingUtilities.invokeLater(() -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                closeRoomView(room);
+                appendSystemMessage("Could not join #" + room + ": " + cause.getMessage());
+            } else {
+                RoomView view = roomViews.get(room);
+                if (view != null) {
+                    view.chatPanel.addSystemMessage("Joined #" + room + " (" +
+                        joined.getGroup().getHostAddress() + ":" + joined.getPort() + ")");
+                }
+            }
+        }));
+    }
+
+    /**
+     * Leave a room (the current one if no name is given)
+     */
+    private void leaveRoom(String args) {
+        String room = args.isEmpty() ? currentRoom : Room.normalizeName(args);
+        if (room == null || !roomViews.containsKey(room)) {
+            appendSystemMessage("You're not in room " + (args.isEmpty() ? "#" + currentRoom : args));
+            return;
+        }
+        if (roomViews.size() == 1) {
+            appendSystemMessage("You can't leave your last room - /join another one first");
+            return;
+        }
+
+        closeRoomView(room);
+        appendSystemMessage("Left #" + room);
+        multicastManager.leaveRoom(room).whenComplete((ignored, error) -> {
+            if (error != null) {
+                System.err.println("Error leaving room #" + room + ": " + error.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Show the rooms we're in and where they live on the network
+     */
+    private void showRooms() {
+        StringBuilder rooms = new StringBuilder("Your rooms:");
+        for (Map.Entry<String, RoomView> entry : roomViews.entrySet()) {
+            Room room = new Room(entry.getKey());
+            rooms.append("\n").append(entry.getKey().equals(currentRoom) ? "* #" : "  #").append(entry.getKey())
+                 .append(" - ").append(room.getGroup().getHostAddress()).append(":").append(room.getPort())
+                 .append(" - ").append(entry.getValue().activeUsers.size()).append(" online");
+        }
+        appendSystemMessage(rooms.toString());
+    }
+
     /**
      * Ping a user or all users
      */
     private void pingUser(String username) {
         if (username.isEmpty()) {
             appendSystemMessage("Pinging all users...");
-            multicastManager.sendMessage("/ping all");
+            sendChatMessage("/ping all");
         } else {
             appendSystemMessage("Pinging user: " + username);
-            multicastManager.sendMessage("/ping " + username);
+            sendChatMessage("/ping " + username);
         }
     }
     
@@ -881,19 +1121,15 @@ public class ChatWindow {
             info.append("Local hostname: ").append(localhost.getHostName()).append("\n");
             info.append("Local IP: ").append(localhost.getHostAddress()).append("\n");
             
-            // Get network interfaces
+            // Get network interfaces (the list the network thread keeps up to date)
             info.append("\nNetwork Interfaces:\n");
-            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
-            while (interfaces.hasMoreElements()) {
-                NetworkInterface nif = interfaces.nextElement();
-                if (nif.isUp() && !nif.isLoopback() && !nif.isVirtual()) {
-                    info.append("- ").append(nif.getDisplayName()).append("\n");
-                    info.append("  MAC: ").append(formatMacAddress(nif.getHardwareAddress())).append("\n");
-                    info.append("  MTU: ").append(nif.getMTU()).append("\n");
+            for (InterfaceMonitor.Interface nif : InterfaceMonitor.poll().getInterfaces()) {
+                if (nif.up && !nif.loopback && !nif.virtual) {
+                    info.append("- ").append(nif.displayName).append("\n");
+                    info.append("  MAC: ").append(formatMacAddress(nif.mac)).append("\n");
+                    info.append("  MTU: ").append(nif.mtu).append("\n");
                     
-                    Enumeration<InetAddress> addresses = nif.getInetAddresses();
-                    while (addresses.hasMoreElements()) {
-                        InetAddress addr = addresses.nextElement();
+                    for (InetAddress addr : nif.addresses) {
                         if (addr instanceof Inet4Address) {
                             info.append("  IPv4: ").append(addr.getHostAddress()).append("\n");
                         } else if (addr instanceof Inet6Address) {
@@ -944,7 +1180,7 @@ public class ChatWindow {
                            "Supported languages include: js, java, python, html, css, and more.");
         
         // Send an example to the chat
-        multicastManager.sendMessage("```java\n" +
+        sendChatMessage("```java\n" +
                                     "public class HelloWorld {\n" +
                                     "    public static void main(String[] args) {\n" +
                                     "        System.out.println(\"Hello, World!\");\n" +
@@ -0,0 +1,122 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses chat data before it gets encrypted.
+ *
+ * Chat text and code compress well, but a single chat line is too short for
+ * the compressor to find much to repeat. So both sides start from the same
+ * preset dictionary of words and symbols that are common in chat and code;
+ * even a short line can then refer back to it.
+ *
+ * Encrypted data looks random and can't be compressed, so this has to
+ * happen before {@link EncryptionUtils#encrypt}. Tiny payloads are left
+ * alone, and so is anything that doesn't actually get smaller.
+ *
+ * IMPORTANT: every client must use exactly the same dictionary. Changing it
+ * means changing the protocol version in {@link WireProtocol}.
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class Compression {
+    // Payloads smaller than this aren't worth compressing
+    public static final int MIN_COMPRESS_SIZE = 96;
+
+    // Common chat and code tokens. The compressor likes the most common
+    // strings at the END of the dictionary, since those are the closest.
+    private static final byte[] DICTIONARY = (
+        "public private protected static final void class interface extends implements " +
+        "import package return new null true false this super throws throw try catch finally " +
+        "if else for while do switch case break continue default " +
+        "int long double float boolean char byte short String Integer List Map " +
+        "System.out.println( System.err.println( @Override " +
+        "def self None elif print( function const let var => console.log( " +
+        "#include <stdio.h> int main() std:: printf( " +
+        "</div> <div class=\" http:// https:// www. .com .org " +
+        "joined left Welcome! please thanks thank you sorry what when where why how " +
+        "because about would could should there their they have this that with from " +
+        "hello hi hey lol ok okay yes no the and you for are not but " +
+        "() {} [] ; \n    \n        \n    }\n}\n"
+    ).getBytes(StandardCharsets.UTF_8);
+
+    // Creating these for every packet is slow, so each thread keeps its own
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    /**
+     * Compresses some bytes with the preset dictionary.
+     *
+     * @param data The bytes to compress
+     * @param offset Where they start in the array
+     * @param length How many there are
+     * @return The compressed bytes, or null if compression doesn't make them smaller
+     *         (or they are too short to bother)
+     */
+    public static byte[] compress(byte[] data, int offset, int length) {
+        if (length < MIN_COMPRESS_SIZE) {
+            return null;
+        }
+
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+
+        // Only keep the result if it's smaller - stop as soon as it isn't
+        byte[] out = new byte[length];
+        int size = 0;
+        while (!deflater.finished() && size < out.length) {
+            size += deflater.deflate(out, size, out.length - size);
+        }
+        if (!deflater.finished()) {
+            return null;
+        }
+        byte[] result = new byte[size];
+        System.arraycopy(out, 0, result, 0, size);
+        return result;
+    }
+
+    /**
+     * Decompresses bytes made by {@link #compress}.
+     *
+     * @param compressed The compressed bytes (read from position to limit)
+     * @param originalSize The size of the data before compression
+     * @param maxSize The biggest size we accept, so a bad packet can't make us allocate too much
+     * @return A buffer holding the original bytes
+     * @throws DataFormatException If the data is damaged or the size doesn't match
+     */
+    public static ByteBuffer decompress(ByteBuffer compressed, int originalSize, int maxSize) throws DataFormatException {
+        if (originalSize < 0 || originalSize > maxSize) {
+            throw new DataFormatException("Compressed data too large (" + originalSize + " bytes)");
+        }
+
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(compressed.array(), compressed.arrayOffset() + compressed.position(), compressed.remaining());
+
+        byte[] out = new byte[originalSize];
+        int size = 0;
+        while (!inflater.finished()) {
+            int n = inflater.inflate(out, size, out.length - size);
+            size += n;
+            if (n == 0) {
+                if (inflater.needsDictionary()) {
+                    inflater.setDictionary(DICTIONARY);
+                } else if (size == out.length || inflater.needsInput()) {
+                    // More data than announced, or the data was cut short
+                    throw new DataFormatException("Compressed data doesn't match its size");
+                }
+            }
+        }
+        if (size != originalSize) {
+            throw new DataFormatException("Compressed data doesn't match its size");
+        }
+        compressed.position(compressed.limit());
+        return ByteBuffer.wrap(out);
+    }
+}
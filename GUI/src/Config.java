@@ -0,0 +1,288 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Holds the settings of our chat app, so they can be tuned without recompiling.
+ *
+ * Every setting has a name like "socket.rcvbuf" and a built-in default.
+ * The value can come from several places; later ones win:
+ * <ol>
+ *   <li>the default written in the code</li>
+ *   <li>a properties file - lc32.properties in the working directory, or the
+ *       file named with --config=FILE or the LC32_CONFIG environment variable</li>
+ *   <li>an environment variable - LC32_SOCKET_RCVBUF for "socket.rcvbuf"</li>
+ *   <li>a Java system property - -Dlc32.socket.rcvbuf=...</li>
+ *   <li>a command-line flag - --socket.rcvbuf=... (or --socket.rcvbuf ...)</li>
+ * </ol>
+ *
+ * We remember every setting that was looked up, with its value and where it
+ * came from, so the values actually in effect can be printed at startup.
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class Config {
+    // Where settings come from
+    private static final String DEFAULT_FILE = "lc32.properties";
+    private static final String ENV_PREFIX = "LC32_";
+    private static final String PROPERTY_PREFIX = "lc32.";
+
+    /**
+     * A value we found for a setting, and where we found it.
+     */
+    private static final class Setting {
+        final String value;
+        final String source;
+
+        Setting(String value, String source) {
+            this.value = value;
+            this.source = source;
+        }
+    }
+
+    private static Properties fileSettings = new Properties();           // From the properties file
+    private static String fileName;                                      // Which file that was (null if none)
+    private static final Properties flagSettings = new Properties();     // From the command line
+    private static final Map<String, Setting> used = new TreeMap<>();    // Every setting looked up so far
+    private static boolean loaded = false;
+
+    /**
+     * Reads the properties file and the command-line flags.
+     * Call this first thing in main, before any other class reads a setting.
+     *
+     * @param args The command-line arguments
+     * @throws IllegalArgumentException If an argument isn't a --name=value flag
+     */
+    public static synchronized void load(String[] args) {
+        flagSettings.clear();
+        String configFile = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--") || arg.length() == 2) {
+                throw new IllegalArgumentException("Unknown argument: " + arg + " (settings look like --name=value)");
+            }
+
+            // Accept both --name=value and --name value
+            String name;
+            String value;
+            int equals = arg.indexOf('=');
+            if (equals > 0) {
+                name = arg.substring(2, equals);
+                value = arg.substring(equals + 1);
+            } else if (i + 1 < args.length) {
+                name = arg.substring(2);
+                value = args[++i];
+            } else {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+
+            if (name.equals("config")) {
+                configFile = value;
+            } else {
+                flagSettings.setProperty(name, value);
+            }
+        }
+
+        loadFile(configFile);
+        used.clear();
+        loaded = true;
+    }
+
+    /**
+     * Gets a text setting.
+     *
+     * @param name The setting's name, like "group"
+     * @param defaultValue The value to use if it isn't set anywhere
+     * @return The value in effect
+     */
+    public static synchronized String getString(String name, String defaultValue) {
+        Setting setting = find(name);
+        if (setting == null) {
+            setting = new Setting(defaultValue, "default");
+        }
+        used.put(name, setting);
+        return setting.value;
+    }
+
+    /**
+     * Gets a setting that must not show up in logs, like the encryption key.
+     * The startup report only says where it came from.
+     *
+     * @param name The setting's name, like "key"
+     * @param defaultValue The value to use if it isn't set anywhere
+     * @return The value in effect
+     */
+    public static synchronized String getSecret(String name, String defaultValue) {
+        String value = getString(name, defaultValue);
+        used.put(name, new Setting("********", used.get(name).source));
+        return value;
+    }
+
+    /**
+     * Gets a whole-number setting. A value that isn't a number is reported
+     * and the default is used instead, so a typo can't stop the chat from starting.
+     *
+     * @param name The setting's name, like "port"
+     * @param defaultValue The value to use if it isn't set (or isn't a number)
+     * @return The value in effect
+     */
+    public static synchronized long getLong(String name, long defaultValue) {
+        Setting setting = find(name);
+        if (setting != null) {
+            try {
+                long value = Long.parseLong(setting.value.trim());
+                used.put(name, new Setting(String.valueOf(value), setting.source));
+                return value;
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring setting " + name + "=" + setting.value + " from " + setting.source +
+                                   ": not a number");
+            }
+        }
+        used.put(name, new Setting(String.valueOf(defaultValue), "default"));
+        return defaultValue;
+    }
+
+    /**
+     * Gets a whole-number setting that fits in an int.
+     *
+     * @param name The setting's name
+     * @param defaultValue The value to use if it isn't set (or isn't a valid int)
+     * @return The value in effect
+     */
+    public static int getInt(String name, int defaultValue) {
+        long value = getLong(name, defaultValue);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            System.err.println("Ignoring setting " + name + "=" + value + ": out of range");
+            synchronized (Config.class) {
+                used.put(name, new Setting(String.valueOf(defaultValue), "default"));
+            }
+            return defaultValue;
+        }
+        return (int) value;
+    }
+
+    /**
+     * Gets a decimal setting, like a percentage. A value that isn't a number
+     * is reported and the default is used instead.
+     *
+     * @param name The setting's name, like "impair.loss"
+     * @param defaultValue The value to use if it isn't set (or isn't a number)
+     * @return The value in effect
+     */
+    public static synchronized double getDouble(String name, double defaultValue) {
+        Setting setting = find(name);
+        if (setting != null) {
+            try {
+                double value = Double.parseDouble(setting.value.trim());
+                used.put(name, new Setting(String.valueOf(value), setting.source));
+                return value;
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring setting " + name + "=" + setting.value + " from " + setting.source +
+                                   ": not a number");
+            }
+        }
+        used.put(name, new Setting(String.valueOf(defaultValue), "default"));
+        return defaultValue;
+    }
+
+    /**
+     * Gets a yes/no setting ("true" or "false").
+     *
+     * @param name The setting's name, like "compress"
+     * @param defaultValue The value to use if it isn't set
+     * @return The value in effect
+     */
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        return Boolean.parseBoolean(getString(name, String.valueOf(defaultValue)).trim());
+    }
+
+    /**
+     * Describes every setting that has been looked up, for the startup log and /config.
+     *
+     * @return One "name = value (source)" line per setting
+     */
+    public static synchronized String describe() {
+        StringBuilder text = new StringBuilder();
+        text.append("Configuration (file: ").append(fileName != null ? fileName : "none").append("):");
+        for (Map.Entry<String, Setting> entry : used.entrySet()) {
+            text.append("\n  ").append(entry.getKey()).append(" = ").append(entry.getValue().value)
+                .append(" (").append(entry.getValue().source).append(")");
+        }
+        return text.toString();
+    }
+
+    /**
+     * Looks a setting up in all places, the most important one first.
+     *
+     * @return The value and where it came from, or null if it isn't set anywhere
+     */
+    private static Setting find(String name) {
+        if (!loaded) {
+            // Nobody called load() (e.g. a test) - use the file, environment and properties only
+            load(new String[0]);
+        }
+
+        String value = flagSettings.getProperty(name);
+        if (value != null) {
+            return new Setting(value, "command line");
+        }
+        value = System.getProperty(PROPERTY_PREFIX + name);
+        if (value != null) {
+            return new Setting(value, "system property");
+        }
+        String envName = ENV_PREFIX + name.toUpperCase(Locale.ROOT).replace('.', '_');
+        value = System.getenv(envName);
+        if (value != null) {
+            return new Setting(value, "environment " + envName);
+        }
+        value = fileSettings.getProperty(name);
+        if (value != null) {
+            return new Setting(value, fileName);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the properties file, if there is one.
+     *
+     * @param configFile The file given on the command line, or null to look in the usual places
+     */
+    private static void loadFile(String configFile) {
+        fileSettings = new Properties();
+        fileName = null;
+
+        // A file that was asked for by name has to exist; the default one is optional
+        boolean required = true;
+        if (configFile == null) {
+            configFile = System.getenv(ENV_PREFIX + "CONFIG");
+        }
+        if (configFile == null) {
+            configFile = System.getProperty(PROPERTY_PREFIX + "config");
+        }
+        if (configFile == null) {
+            configFile = DEFAULT_FILE;
+            required = false;
+        }
+
+        Path path = Paths.get(configFile);
+        if (!Files.exists(path)) {
+            if (required) {
+                throw new IllegalArgumentException("Configuration file not found: " + configFile);
+            }
+            return;
+        }
+        try (InputStream in = Files.newInputStream(path)) {
+            fileSettings.load(in);
+            fileName = path.toAbsolutePath().toString();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read configuration file " + configFile + ": " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers which packets we've already received so that copies of the
+ * same packet can be thrown away. Copies show up for several reasons:
+ * when we join the group on several network interfaces (wired, Wi-Fi,
+ * VPN...) every packet reaches us once per interface, multicast loopback
+ * hands us our own packets, and lost packets get retransmitted to everyone.
+ *
+ * A packet is identified by its sender id and sequence number from the
+ * plain packet header, so copies are recognised before we decrypt them.
+ *
+ * For every sender we keep a sliding window over its most recent sequence
+ * numbers: one bit per packet, set once the packet has arrived. Checking a
+ * packet is a single bit test, and the memory per sender is fixed no matter
+ * how many packets it sends. Packets older than the window are dropped too,
+ * since we can no longer tell whether we've seen them.
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class DuplicateFilter {
+    // How many recent sequence numbers each sender's window covers (a multiple of 64)
+    private static final int WINDOW_SIZE = 1024;
+    // How many senders we keep windows for - the least recently heard one is forgotten first
+    private static final int MAX_SENDERS = Config.getInt("dedup.senders", 1024);
+
+    /**
+     * The sliding window for one sender.
+     */
+    private static final class Window {
+        final long[] bits = new long[WINDOW_SIZE / 64]; // One bit per sequence number, indexed by sequence % WINDOW_SIZE
+        int highest;                                    // Highest sequence number seen
+
+        Window(int highest) {
+            this.highest = highest;
+        }
+    }
+
+    // Windows by sender id, in access order so the eldest is the least recently heard sender
+    private final Map<Integer, Window> windows = new LinkedHashMap<Integer, Window>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Window> eldest) {
+            return size() > MAX_SENDERS;
+        }
+    };
+
+    /**
+     * Checks if we've already seen this packet, and remembers it if we haven't.
+     *
+     * @param senderId The sender id from the packet header
+     * @param sequence The sequence number from the packet header
+     * @return true if the packet is a copy of one we've already seen (or too old to tell)
+     */
+    public synchronized boolean isDuplicate(int senderId, int sequence) {
+        Window window = windows.get(senderId);
+        if (window == null) {
+            // First packet from this sender
+            window = new Window(sequence);
+            windows.put(senderId, window);
+            setBit(window, sequence);
+            return false;
+        }
+
+        int ahead = sequence - window.highest; // Works even when the numbers wrap around
+        if (ahead > 0) {
+            // A newer packet - slide the window forward, forgetting the sequence
+            // numbers that fall out of it (at most one full window to clear)
+            if (ahead >= WINDOW_SIZE) {
+                Arrays.fill(window.bits, 0L);
+            } else {
+                for (int seq = window.highest + 1; seq != sequence; seq++) {
+                    clearBit(window, seq);
+                }
+            }
+            window.highest = sequence;
+            setBit(window, sequence);
+            return false;
+        }
+
+        if (-ahead >= WINDOW_SIZE) {
+            return true; // Too old - it fell out of the window
+        }
+        if (isBitSet(window, sequence)) {
+            return true;
+        }
+        setBit(window, sequence);
+        return false;
+    }
+
+    /**
+     * Checks whether a sequence number's bit is set in the window.
+     */
+    private static boolean isBitSet(Window window, int sequence) {
+        int index = Math.floorMod(sequence, WINDOW_SIZE);
+        return (window.bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Marks a sequence number as received.
+     */
+    private static void setBit(Window window, int sequence) {
+        int index = Math.floorMod(sequence, WINDOW_SIZE);
+        window.bits[index >>> 6] |= 1L << index;
+    }
+
+    /**
+     * Marks a sequence number as not received yet.
+     */
+    private static void clearBit(Window window, int sequence) {
+        int index = Math.floorMod(sequence, WINDOW_SIZE);
+        window.bits[index >>> 6] &= ~(1L << index);
+    }
+}
@@ -2,13 +2,18 @@ import javax.crypto.Cipher;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
-import java.util.Base64;
 
 /**
  * This class handles the encryption and decryption of our chat messages.
  * It uses AES-128 encryption in CBC mode to keep messages secure.
- * 
+ *
+ * Everything works directly on ByteBuffers, so a packet can be encrypted
+ * straight into the buffer that gets sent, and decrypted straight from the
+ * buffer it was received in - no Base64 and no extra copies.
+ *
  * @author LC32 Team
  * @version 1.0
  */
@@ -16,90 +21,104 @@ public class EncryptionUtils {
     // The encryption settings
     private static final String ALGORITHM      = "AES";                  // Advanced Encryption Standard
     private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding"; // CBC mode with padding
-    private static final String KEY            = "1234567890123456";     // 16-byte encryption key
+    private static final String KEY            = Config.getSecret("key", "1234567890123456"); // 16, 24 or 32 bytes
     private static final int IV_SIZE           = 16;                     // 16 bytes for AES initialization vector
-    private static final int MAX_MESSAGE_SIZE  = 8192;                   // 8KB max message size
+    private static final int BLOCK_SIZE        = 16;                     // AES works on 16-byte blocks
+    private static final int MAX_PACKET_SIZE   = 65536;                  // Largest packet we ever decrypt
+
+    // Shared crypto objects - creating these for every packet is slow
+    private static final SecretKeySpec KEY_SPEC = createKey(KEY);
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES is not available", e);
+        }
+    });
+
+    // Per-thread scratch space for decrypting. The cipher copies direct buffers
+    // into new temporary arrays on every call, so we copy into our own array instead.
+    private static final ThreadLocal<byte[]> IV = ThreadLocal.withInitial(() -> new byte[IV_SIZE]);
+    private static final ThreadLocal<byte[]> CIPHER_TEXT = ThreadLocal.withInitial(() -> new byte[MAX_PACKET_SIZE]);
 
     /**
-     * Encrypts a message so it can be sent securely.
-     * 
-     * @param message The plain text message to encrypt
-     * @return The encrypted message as a Base64 string
-     * @throws Exception If encryption fails
+     * Turns the configured key into an AES key. Everyone in the chat needs
+     * the same key, so a key of the wrong length stops the app right away
+     * instead of quietly producing packets nobody can read.
      */
-    public static String encrypt(String message) throws Exception {
-        // First, check if the message is too long
-        if (message.length() > MAX_MESSAGE_SIZE) {
-            // If it's too long, cut it off and add a note
-            message = message.substring(0, MAX_MESSAGE_SIZE) + "... [Message truncated due to size]";
+    private static SecretKeySpec createKey(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length != 16 && bytes.length != 24 && bytes.length != 32) {
+            throw new IllegalStateException("The key setting must be 16, 24 or 32 bytes long, not " + bytes.length);
         }
-        
+        return new SecretKeySpec(bytes, ALGORITHM);
+    }
+
+    /**
+     * Works out how many bytes the encrypted form of a message takes up,
+     * including the IV and padding.
+     *
+     * @param plainBytes The size of the plain text
+     * @return The size of IV + cipher text
+     */
+    public static int encryptedSize(int plainBytes) {
+        return IV_SIZE + (plainBytes / BLOCK_SIZE + 1) * BLOCK_SIZE;
+    }
+
+    /**
+     * Encrypts a message so it can be sent securely.
+     * The IV followed by the cipher text is written into the output buffer.
+     *
+     * @param plaintext The plain bytes to encrypt (read from position to limit)
+     * @param out The buffer to write IV + cipher text into
+     * @throws GeneralSecurityException If encryption fails
+     */
+    public static void encrypt(ByteBuffer plaintext, ByteBuffer out) throws GeneralSecurityException {
         // Create a random initialization vector (IV) for security
         // Using a different IV for each message prevents pattern analysis
         byte[] iv = new byte[IV_SIZE];
-        SecureRandom random = new SecureRandom();
-        random.nextBytes(iv);
-        IvParameterSpec ivSpec = new IvParameterSpec(iv);
-        
-        // Set up the encryption key
-        SecretKeySpec keySpec = new SecretKeySpec(KEY.getBytes(), ALGORITHM);
-        
+        RANDOM.nextBytes(iv);
+
         // Initialize the encryption engine with our key and IV
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-        cipher.init(Cipher.ENCRYPT_MODE, keySpec, ivSpec);
-        
-        // Encrypt the message
-        byte[] encrypted = cipher.doFinal(message.getBytes());
-        
-        // Combine the IV and encrypted data
+        Cipher cipher = CIPHER.get();
+        cipher.init(Cipher.ENCRYPT_MODE, KEY_SPEC, new IvParameterSpec(iv));
+
         // We need to include the IV with the message so it can be decrypted later
-        ByteBuffer byteBuffer = ByteBuffer.allocate(iv.length + encrypted.length);
-        byteBuffer.put(iv);
-        byteBuffer.put(encrypted);
-        
-        // Convert to Base64 for safe transmission
-        // Base64 ensures the binary data can be sent as text
-        return Base64.getEncoder().encodeToString(byteBuffer.array());
+        out.put(iv);
+        cipher.doFinal(plaintext, out);
     }
 
     /**
-     * Decrypts a message that was encrypted with our system.
-     * 
-     * @param encryptedMessage The Base64 encoded encrypted message
-     * @return The decrypted plain text message
-     * @throws Exception If decryption fails
+     * Decrypts a message that was encrypted with our system into a buffer
+     * the caller reuses for every packet, so receiving doesn't create garbage.
+     *
+     * @param encrypted The IV + cipher text (read from position to limit); may be a direct buffer
+     * @param out A heap buffer to decrypt into; it's overwritten from the start
+     *            and afterwards holds the plain bytes from position to limit.
+     *            It may be the encrypted buffer itself, to decrypt in place.
+     * @throws GeneralSecurityException If decryption fails, e.g. a wrong key, a damaged packet
+     *                                  or an output buffer that is too small
      */
-    public static String decrypt(String encryptedMessage) throws Exception {
-        try {
-            // Convert from Base64 back to binary
-            byte[] encryptedData = Base64.getDecoder().decode(encryptedMessage);
-            
-            // Extract the IV from the beginning of the data
-            ByteBuffer byteBuffer = ByteBuffer.wrap(encryptedData);
-            byte[] iv = new byte[IV_SIZE];
-            byteBuffer.get(iv);
-            
-            // Extract the actual encrypted message (everything after the IV)
-            byte[] cipherText = new byte[byteBuffer.remaining()];
-            byteBuffer.get(cipherText);
-            
-            // Set up the decryption parameters
-            IvParameterSpec ivSpec = new IvParameterSpec(iv);
-            SecretKeySpec keySpec = new SecretKeySpec(KEY.getBytes(), ALGORITHM);
-            
-            // Initialize the decryption engine
-            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-            cipher.init(Cipher.DECRYPT_MODE, keySpec, ivSpec);
-            
-            // Decrypt the message
-            byte[] decrypted = cipher.doFinal(cipherText);
-            
-            // Convert from bytes back to a string
-            return new String(decrypted);
-        } catch (Exception e) {
-            // If something goes wrong, log it and return an error message
-            System.err.println("Decryption error: " + e.getMessage());
-            return "[Decryption failed: " + e.getMessage() + "]";
+    public static void decrypt(ByteBuffer encrypted, ByteBuffer out) throws GeneralSecurityException {
+        int cipherTextSize = encrypted.remaining() - IV_SIZE;
+        if (cipherTextSize < BLOCK_SIZE || cipherTextSize > MAX_PACKET_SIZE) {
+            throw new GeneralSecurityException("Packet has the wrong size to decrypt");
         }
+
+        // Extract the IV from the beginning of the data
+        byte[] iv = IV.get();
+        encrypted.get(iv);
+
+        // Initialize the decryption engine
+        Cipher cipher = CIPHER.get();
+        cipher.init(Cipher.DECRYPT_MODE, KEY_SPEC, new IvParameterSpec(iv));
+
+        // Decrypt the rest of the packet, array to array
+        byte[] cipherText = CIPHER_TEXT.get();
+        encrypted.get(cipherText, 0, cipherTextSize);
+        out.clear();
+        int plainSize = cipher.doFinal(cipherText, 0, cipherTextSize, out.array(), out.arrayOffset());
+        out.limit(plainSize);
     }
 }
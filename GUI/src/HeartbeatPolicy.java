@@ -0,0 +1,80 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides how often we send heartbeats.
+ *
+ * With a fixed 10 second interval, the heartbeat traffic grows with every
+ * user that joins, and clients that were started together (say, after a
+ * power cut on the floor) keep sending their heartbeats at the same moment.
+ * So instead:
+ * <ul>
+ *   <li>the interval grows with the number of users we know, so the whole
+ *       group sends about the same number of heartbeats per minute no matter
+ *       how big it is (between the base interval and a maximum)</li>
+ *   <li>every delay gets some random jitter, so clients drift apart</li>
+ *   <li>a heartbeat is skipped if we've sent a chat message within the
+ *       interval, because that already shows everyone we're here</li>
+ * </ul>
+ *
+ * Receivers can't guess our interval, so every heartbeat tells them what
+ * it is, and they treat us as gone after {@link #MISSED_HEARTBEATS} of them.
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class HeartbeatPolicy {
+    // Settings (see Config)
+    private static final long BASE_INTERVAL = Config.getLong("heartbeat.interval", 10000);    // Interval for small groups
+    private static final long MAX_INTERVAL = Math.max(BASE_INTERVAL,                          // Never wait longer than this
+                                                      Config.getLong("heartbeat.max", 60000));
+    private static final long GROUP_RATE = Math.max(1, Config.getLong("heartbeat.perminute", 120)); // Heartbeats per minute for the whole group
+    private static final double JITTER = 0.25;   // Each delay is the interval plus or minus 25%
+
+    // A user counts as gone after missing this many heartbeats in a row
+    public static final int MISSED_HEARTBEATS = 3;
+
+    /**
+     * Works out the heartbeat interval for a group of the given size.
+     *
+     * @param groupSize How many users we know of, including ourselves
+     * @return The interval in milliseconds
+     */
+    public long interval(int groupSize) {
+        long spread = groupSize * 60000L / GROUP_RATE;
+        return Math.min(MAX_INTERVAL, Math.max(BASE_INTERVAL, spread));
+    }
+
+    /**
+     * Picks the delay until the next heartbeat, with random jitter.
+     *
+     * @param groupSize How many users we know of, including ourselves
+     * @return The delay in milliseconds
+     */
+    public long nextDelay(int groupSize) {
+        double factor = 1 - JITTER + 2 * JITTER * ThreadLocalRandom.current().nextDouble();
+        return (long) (interval(groupSize) * factor);
+    }
+
+    /**
+     * Checks whether a heartbeat can be skipped because we sent a chat message recently.
+     * Even with jitter, the gap between two signs of life stays below
+     * {@link #MISSED_HEARTBEATS} intervals, so nobody thinks we're gone.
+     *
+     * @param lastChatSent When we last sent a chat message (0 if never)
+     * @param groupSize How many users we know of, including ourselves
+     * @return True if the chat message already showed we're here
+     */
+    public boolean canSkip(long lastChatSent, int groupSize) {
+        return System.currentTimeMillis() - lastChatSent < interval(groupSize);
+    }
+
+    /**
+     * Works out how long to wait before treating a user as gone.
+     *
+     * @param announcedInterval The interval the user's heartbeat announced (0 if it didn't)
+     * @return The timeout in milliseconds
+     */
+    public static long expiryFor(long announcedInterval) {
+        return MISSED_HEARTBEATS * Math.max(BASE_INTERVAL, announcedInterval);
+    }
+}
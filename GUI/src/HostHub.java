@@ -0,0 +1,275 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Receives the chat rooms once for all clients of one user on this
+ * computer, like a terminal server where 30 sessions run LC32 under the
+ * same account.
+ *
+ * Without the hub, each client receives every packet of the room
+ * and decrypts it - 30 times the same work. The hub is the only one that
+ * joins the rooms' groups: it receives, throws away duplicates, asks for
+ * lost packets, decrypts and decompresses, and writes the result into a
+ * memory-mapped {@link HubRing}. The clients ({@link HubTransport}) read it
+ * from there and only parse the frames. They still send their own
+ * messages and get private messages themselves, and the hub is never seen
+ * in anybody's user list.
+ *
+ * Clients ask for rooms by leaving a file in the hub's rooms directory;
+ * the hub scans it a few times a second, and leaves a room once nobody on
+ * this computer is in it any more. Until then a client receives the room
+ * itself; once the hub is in the room it notes that in the ring for every
+ * new request, and the client leaves the group to the hub. The ring holds the decrypted messages
+ * and clients show them without checking, so the hub directory and the
+ * ring are private to the user running the hub (see {@link HubRing}), and
+ * clients only use the hub with hub=true.
+ *
+ * Settings (see {@link Config}), on top of the usual network settings:
+ * <ul>
+ *   <li>hub.dir - where the ring and the room requests go (lc32-hub-USER in the temp directory)</li>
+ *   <li>hub.ring - size of the ring in MB (64)</li>
+ *   <li>hub.rooms - rooms to receive even if nobody asked, like lobby (none)</li>
+ * </ul>
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class HostHub {
+    private static final long SCAN_INTERVAL = 250;       // How often we look for new room requests (ms)
+    private static final long HEARTBEAT_INTERVAL = 1000; // How often we tell the clients we're alive (ms)
+    private static final long STATS_INTERVAL = 60000;    // How often we print what we did (ms)
+
+    /**
+     * Logs what the manager would have shown, since the hub has no window.
+     */
+    private static final class LogListener implements ChatListener {
+        final LongAdder packets = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+
+        @Override
+        public void appendMessage(String room, String sender, String content) {
+        }
+
+        @Override
+        public void appendPrivateMessage(String sender, String target, String content) {
+        }
+
+        @Override
+        public void appendSystemMessage(String message) {
+            System.err.println(message);
+        }
+
+        @Override
+        public void addUserToList(String room, String username) {
+        }
+
+        @Override
+        public void removeUserFromList(String room, String username) {
+        }
+
+        @Override
+        public void updateNetworkStatus(String networkInfo) {
+            System.out.println(networkInfo);
+        }
+
+        @Override
+        public void updateSentStatistics(int messageSize) {
+        }
+
+        @Override
+        public void updateReceivedStatistics(int packetCount, long byteCount) {
+            packets.add(packetCount);
+            bytes.add(byteCount);
+        }
+    }
+
+    private final MulticastManager manager;
+    private final HubRing.Writer ring;
+    private final Path roomsDirectory;
+    private final UserPrincipal us;                         // Only our own user's requests count
+    private final Set<String> fixedRooms = new HashSet<>(); // From hub.rooms
+    private final Set<String> carried = new HashSet<>();    // Rooms we're receiving (scan thread only)
+    private final Set<String> joined = ConcurrentHashMap.newKeySet(); // Rooms whose group we're in
+    private final Set<String> acknowledged = new HashSet<>(); // Requests we noted in the ring (scan thread only)
+
+    private HostHub(MulticastManager manager, HubRing.Writer ring, Path roomsDirectory) throws IOException {
+        this.manager = manager;
+        this.ring = ring;
+        this.roomsDirectory = roomsDirectory;
+        this.us = roomsDirectory.getFileSystem().getUserPrincipalLookupService()
+                                .lookupPrincipalByName(System.getProperty("user.name"));
+        for (String room : Config.getString("hub.rooms", "").split(",")) {
+            String name = room.isBlank() ? null : Room.normalizeName(room);
+            if (name != null) {
+                fixedRooms.add(name);
+            }
+        }
+    }
+
+    /**
+     * Joins the rooms somebody asked for and leaves the ones nobody wants
+     * any more. Requests from processes that are gone, and anything that
+     * isn't a plain file of our own user, are deleted. Every new request
+     * for a room we're in gets a note in the ring, so its client stops
+     * receiving the room itself.
+     */
+    private void scanRooms() {
+        Set<String> wanted = new HashSet<>(fixedRooms);
+        Map<String, String> requested = new HashMap<>(); // Request file name -> room
+        try (DirectoryStream<Path> requests = Files.newDirectoryStream(roomsDirectory)) {
+            for (Path request : requests) {
+                // The file name is room.pid
+                String fileName = request.getFileName().toString();
+                int dot = fileName.lastIndexOf('.');
+                String room = dot > 0 ? Room.normalizeName(fileName.substring(0, dot)) : null;
+                if (room == null || !isOurs(request) || !isRunning(fileName.substring(dot + 1))) {
+                    try {
+                        Files.deleteIfExists(request);
+                    } catch (IOException e) {
+                        // Gone already; it's ignored all the same
+                    }
+                    continue;
+                }
+                wanted.add(room);
+                requested.put(fileName, room);
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading room requests: " + e.getMessage());
+            return;
+        }
+
+        for (String room : wanted) {
+            if (carried.add(room)) {
+                manager.listenToRoom(room).whenComplete((result, error) -> {
+                    if (error != null) {
+                        System.err.println("Cannot receive room #" + room + ": " + error.getMessage());
+                    } else {
+                        joined.add(room);
+                    }
+                });
+            }
+        }
+        carried.removeIf(room -> {
+            if (wanted.contains(room)) {
+                return false;
+            }
+            System.out.println("Nobody is in room #" + room + " any more - leaving it");
+            joined.remove(room);
+            manager.leaveRoom(room);
+            return true;
+        });
+
+        // Note each room once per scan, however many new requests it got
+        acknowledged.retainAll(requested.keySet());
+        Set<String> noted = new HashSet<>();
+        requested.forEach((request, room) -> {
+            if (joined.contains(room) && acknowledged.add(request) && noted.add(room)) {
+                ring.publishJoined(room);
+            }
+        });
+    }
+
+    /**
+     * Checks that a request is a plain file made by our own user. The
+     * directory is private, so anything else got there by mistake.
+     */
+    private boolean isOurs(Path request) {
+        try {
+            return Files.isRegularFile(request, LinkOption.NOFOLLOW_LINKS)
+                   && Files.getOwner(request, LinkOption.NOFOLLOW_LINKS).equals(us);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks whether a process id from a request file belongs to a running process.
+     */
+    private static boolean isRunning(String pid) {
+        try {
+            return ProcessHandle.of(Long.parseLong(pid)).map(ProcessHandle::isAlive).orElse(false);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Starts the hub and runs until it's stopped.
+     *
+     * @param args Settings like --hub.rooms=lobby --hub.ring=128 (see {@link Config})
+     * @throws Exception If we're interrupted
+     */
+    public static void main(String[] args) throws Exception {
+        try {
+            Config.load(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java HostHub [--hub.dir=DIR] [--hub.ring=MB] [--hub.rooms=lobby,...]");
+            System.exit(1);
+        }
+        Path directory = HubRing.directory();
+        Path roomsDirectory = HubRing.roomsDirectory(directory);
+        long ringBytes = Config.getLong("hub.ring", 64) << 20;
+
+        // Only our own user's clients may ask for rooms or read the ring
+        HubRing.Writer ring;
+        try {
+            HubRing.createPrivateDirectory(directory);
+            HubRing.createPrivateDirectory(roomsDirectory);
+            ring = new HubRing.Writer(HubRing.ringFile(directory), ringBytes);
+        } catch (IOException e) {
+            System.err.println("Cannot create the hub's ring in " + directory + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        System.out.println("Host hub writing to " + HubRing.ringFile(directory));
+
+        // A normal client that passes the decrypted packets on instead of showing them
+        LogListener listener = new LogListener();
+        Transport transport = ImpairedTransport.wrapIfConfigured(new UdpTransport(), 0);
+        MulticastManager manager = new MulticastManager(Config.getString("hub.nickname", "hub"), listener, transport, Runnable::run);
+        manager.setFrameSink(ring::publish);
+        HostHub hub;
+        try {
+            hub = new HostHub(manager, ring, roomsDirectory);
+        } catch (IOException e) {
+            System.err.println("Cannot find out who we run as: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Hub-Rooms");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(hub::scanRooms, 0, SCAN_INTERVAL, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(ring::heartbeat, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(() -> System.out.println("Hub: " + listener.packets.sum() + " packets, " +
+                                                               listener.bytes.sum() + " bytes received; " + ring.describe()),
+                                      STATS_INTERVAL, STATS_INTERVAL, TimeUnit.MILLISECONDS);
+
+        // On Ctrl+C the clients are told right away, so they receive for themselves again
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            ring.close();
+            manager.shutdown();
+        }));
+
+        Thread receiver = new Thread(manager::receiveMessages, "Receiver-Thread");
+        receiver.start();
+        receiver.join();
+    }
+}
@@ -0,0 +1,579 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The memory-mapped ring buffer through which the {@link HostHub} hands the
+ * packets it decrypted to the chat clients on the same computer
+ * ({@link HubTransport}).
+ *
+ * There is one writer, the hub, and any number of readers in other
+ * processes. Nobody waits for anybody: the writer goes round and round the
+ * ring, and every reader follows at its own pace with its own position. A
+ * reader that falls a whole ring behind has lost its place; it skips to
+ * the newest record and carries on, like a receiver that missed a few
+ * packets.
+ *
+ * The file starts with a 4096 byte header, with every field that changes
+ * on its own cache line:
+ * <ul>
+ *   <li>0: magic "LC32HUB1", then the ring's capacity and the hub's process id</li>
+ *   <li>64: the write position - everything before it is complete</li>
+ *   <li>128: the overwrite limit - the writer may be overwriting anything
+ *       before this minus the capacity, so a reader checks it after copying a record</li>
+ *   <li>192: when the hub last said it's alive (ms), or 0 once it stopped</li>
+ * </ul>
+ * Positions only ever grow; a record at position p is at p modulo the
+ * capacity in the ring. Each record is: length of the whole record (4
+ * bytes, a multiple of 8), kind (1 byte: a packet, padding up to the end
+ * of the ring, or a note that the hub now receives a room), room name
+ * length (1 byte), source IPv4 address and port (6 bytes, zeros if
+ * unknown), packet length (4 bytes, 0 for a note), the room name and the
+ * packet: a normal plain header followed by the decrypted, decompressed
+ * frames. Clients receive a room directly until they read the note that
+ * the hub has it, so they don't miss what's said while it joins.
+ *
+ * A hub that starts again writes a new file and moves it over the old
+ * one, so clients that still have the old one mapped never see it shrink.
+ *
+ * The ring holds decrypted messages, and whatever is in it is shown
+ * without being checked again, so the hub directory and the ring belong
+ * to one user and nobody else may even read them: the directory is
+ * created with mode 0700 and the ring with 0600, and a client refuses to
+ * use either if they are someone else's or anybody else may get at them.
+ * That means a hub only serves the clients of the user who runs it.
+ *
+ * Settings (see {@link Config}):
+ * <ul>
+ *   <li>hub.dir - the directory with the ring and the room requests (lc32-hub-USER in the temp directory)</li>
+ * </ul>
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class HubRing {
+    private static final byte[] MAGIC = "LC32HUB1".getBytes(StandardCharsets.US_ASCII);
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int PID_OFFSET = 16;
+    private static final int WRITE_OFFSET = 64;
+    private static final int LIMIT_OFFSET = 128;
+    private static final int HEARTBEAT_OFFSET = 192;
+    private static final int DATA_START = 4096;
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final byte KIND_PACKET = 1;
+    private static final byte KIND_PADDING = 2;
+    private static final byte KIND_JOINED = 3;
+    private static final long MIN_CAPACITY = 1 << 20;
+    private static final long MAX_CAPACITY = 1L << 30;
+    private static final String RING_FILE = "frames.ring";
+    private static final String ROOMS_DIRECTORY = "rooms";
+    private static final Set<PosixFilePermission> DIRECTORY_MODE = PosixFilePermissions.fromString("rwx------");
+    private static final Set<PosixFilePermission> FILE_MODE = PosixFilePermissions.fromString("rw-------");
+
+    /** The largest packet a record holds: a header and 64 KB of frames. */
+    public static final int MAX_PACKET_SIZE = WireProtocol.HEADER_SIZE + 65536;
+
+    // Reads and writes the header's positions with the memory ordering we need,
+    // which plain ByteBuffer gets and puts don't give
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    /**
+     * Gets the directory the hub and its clients share.
+     *
+     * @return The hub directory from hub.dir
+     */
+    public static Path directory() {
+        String dir = Config.getString("hub.dir", "");
+        return dir.isEmpty() ? Paths.get(System.getProperty("java.io.tmpdir"), "lc32-hub-" + System.getProperty("user.name"))
+                             : Paths.get(dir);
+    }
+
+    /**
+     * Creates a directory only we may use (mode 0700), or checks that an
+     * existing one is like that.
+     *
+     * @param directory The directory
+     * @throws IOException If it can't be created, or it's someone else's or open to others
+     */
+    public static void createPrivateDirectory(Path directory) throws IOException {
+        if (!Files.exists(directory, LinkOption.NOFOLLOW_LINKS)) {
+            Path parent = directory.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            if (isPosix(parent != null ? parent : directory)) {
+                Files.createDirectory(directory, PosixFilePermissions.asFileAttribute(DIRECTORY_MODE));
+            } else {
+                Files.createDirectory(directory);
+            }
+        }
+        checkPrivate(directory, true);
+    }
+
+    /**
+     * Checks that a file or directory belongs to the user we run as and that
+     * nobody else may get at it: mode 0700 for a directory, 0600 for a file.
+     * Symbolic links are refused. Where there are no POSIX permissions
+     * (Windows), only the owner is checked.
+     *
+     * @param path The file or directory
+     * @param directory True if it has to be a directory, false for a regular file
+     * @throws IOException If it's missing, someone else's, or open to others
+     */
+    public static void checkPrivate(Path path, boolean directory) throws IOException {
+        UserPrincipal us = path.getFileSystem().getUserPrincipalLookupService()
+                               .lookupPrincipalByName(System.getProperty("user.name"));
+        if (isPosix(path)) {
+            PosixFileAttributes attributes = Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (directory ? !attributes.isDirectory() : !attributes.isRegularFile()) {
+                throw new IOException(path + " is not a " + (directory ? "directory" : "regular file"));
+            }
+            if (!attributes.owner().equals(us)) {
+                throw new IOException(path + " belongs to " + attributes.owner().getName() + ", not to us");
+            }
+            Set<PosixFilePermission> expected = directory ? DIRECTORY_MODE : FILE_MODE;
+            if (!attributes.permissions().equals(expected)) {
+                throw new IOException(path + " has mode " + PosixFilePermissions.toString(attributes.permissions()) +
+                                      " instead of " + PosixFilePermissions.toString(expected));
+            }
+        } else {
+            UserPrincipal owner = Files.getOwner(path, LinkOption.NOFOLLOW_LINKS);
+            if (!owner.equals(us)) {
+                throw new IOException(path + " belongs to " + owner.getName() + ", not to us");
+            }
+        }
+    }
+
+    private static boolean isPosix(Path path) {
+        return path.getFileSystem().supportedFileAttributeViews().contains("posix");
+    }
+
+    /**
+     * Gets the ring file in a hub directory.
+     *
+     * @param directory The hub directory
+     * @return The ring file
+     */
+    public static Path ringFile(Path directory) {
+        return directory.resolve(RING_FILE);
+    }
+
+    /**
+     * Gets the directory where clients ask the hub for rooms. A client that
+     * wants a room creates an empty file named room.pid there; the hub
+     * carries every room that has a file from a process that's still running.
+     *
+     * @param directory The hub directory
+     * @return The room request directory
+     */
+    public static Path roomsDirectory(Path directory) {
+        return directory.resolve(ROOMS_DIRECTORY);
+    }
+
+    /**
+     * Writes packets into the ring. Only the hub writes, but its receive
+     * workers take turns, so writing is synchronized.
+     */
+    public static final class Writer {
+        private final MappedByteBuffer map;
+        private final ByteBuffer view;   // For writing packets into the ring (used while holding the lock)
+        private final long capacity;
+        private final Map<String, byte[]> roomNames = new HashMap<>();
+        private long position = 0;       // Where the next record goes
+        private long records = 0;
+        private long dropped = 0;        // Packets too big for a record
+        private boolean closed = false;
+
+        /**
+         * Creates a new ring file, replacing any old one.
+         *
+         * @param path Where to create it
+         * @param capacity How many bytes of records the ring holds (1 MB to 1 GB)
+         * @throws IOException If the file can't be created
+         */
+        public Writer(Path path, long capacity) throws IOException {
+            this.capacity = Math.min(MAX_CAPACITY, Math.max(MIN_CAPACITY, capacity)) & ~7L;
+
+            // Set the new file up beside the old one, then move it into place in one step.
+            // It's made afresh, so it never keeps the permissions of a leftover file
+            Path newFile = path.resolveSibling(path.getFileName() + ".new");
+            Files.deleteIfExists(newFile);
+            FileAttribute<?>[] ownerOnly = isPosix(newFile)
+                    ? new FileAttribute<?>[] { PosixFilePermissions.asFileAttribute(FILE_MODE) } : new FileAttribute<?>[0];
+            try (FileChannel file = FileChannel.open(newFile, Set.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                                                                     StandardOpenOption.WRITE), ownerOnly)) {
+                this.map = file.map(FileChannel.MapMode.READ_WRITE, 0, DATA_START + this.capacity);
+            }
+            map.order(ByteOrder.nativeOrder());
+            map.put(MAGIC);
+            map.putLong(CAPACITY_OFFSET, this.capacity);
+            map.putLong(PID_OFFSET, ProcessHandle.current().pid());
+            heartbeat();
+            this.view = map.duplicate();
+            Files.move(newFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Adds a decrypted packet to the ring.
+         *
+         * @param room The room it was sent to
+         * @param source Who sent it, or null if we don't know
+         * @param flags The flags from its header
+         * @param senderId The sender id from its header
+         * @param sequence The sequence number from its header
+         * @param frames The decrypted, decompressed frames, from position to limit (the position isn't moved)
+         */
+        public synchronized void publish(String room, SocketAddress source, byte flags, int senderId, int sequence,
+                                         ByteBuffer frames) {
+            if (closed) {
+                return;
+            }
+            byte[] name = roomNames.computeIfAbsent(room, r -> r.getBytes(StandardCharsets.UTF_8));
+            int packetLength = WireProtocol.HEADER_SIZE + frames.remaining();
+            if (name.length > 255 || packetLength > MAX_PACKET_SIZE) {
+                dropped++;
+                return;
+            }
+            int length = (RECORD_HEADER_SIZE + name.length + packetLength + 7) & ~7;
+            int at = startRecord(length, KIND_PACKET, name, source, packetLength);
+            flags &= ~WireProtocol.FLAG_COMPRESSED; // The frames are decompressed now
+            WireProtocol.writeHeader(view, flags, senderId, sequence);
+            int start = frames.position();
+            view.put(frames);
+            frames.position(start);
+            finishRecord(length);
+            records++;
+        }
+
+        /**
+         * Tells the clients we now receive a room, so those that are still
+         * receiving it directly can stop.
+         *
+         * @param room The room we joined
+         */
+        public synchronized void publishJoined(String room) {
+            if (closed) {
+                return;
+            }
+            byte[] name = roomNames.computeIfAbsent(room, r -> r.getBytes(StandardCharsets.UTF_8));
+            if (name.length > 255) {
+                return;
+            }
+            int length = (RECORD_HEADER_SIZE + name.length + 7) & ~7;
+            startRecord(length, KIND_JOINED, name, null, 0);
+            finishRecord(length);
+        }
+
+        /**
+         * Writes a record's header and room name at the write position, and
+         * leaves the view positioned for the packet.
+         *
+         * @return Where the record starts in the file
+         */
+        private int startRecord(int length, byte kind, byte[] name, SocketAddress source, int packetLength) {
+            // A record doesn't wrap around; if it doesn't fit before the end, the rest is padding
+            int offset = (int) (position % capacity);
+            int padding = offset + length > capacity ? (int) (capacity - offset) : 0;
+
+            // Tell readers what we're about to overwrite before we do
+            LONGS.setRelease(map, LIMIT_OFFSET, position + padding + length);
+            VarHandle.storeStoreFence();
+            if (padding > 0) {
+                map.putInt(DATA_START + offset, padding);
+                map.put(DATA_START + offset + 4, KIND_PADDING);
+                position += padding;
+                offset = 0;
+            }
+
+            int at = DATA_START + offset;
+            map.putInt(at, length);
+            map.put(at + 4, kind);
+            map.put(at + 5, (byte) name.length);
+            writeAddress(map, at + 6, source);
+            map.putInt(at + 12, packetLength);
+            view.limit(at + length).position(at + RECORD_HEADER_SIZE);
+            view.put(name);
+            return at;
+        }
+
+        /**
+         * Lets the readers have the record we just wrote.
+         */
+        private void finishRecord(int length) {
+            position += length;
+            LONGS.setRelease(map, WRITE_OFFSET, position);
+        }
+
+        /**
+         * Tells the clients the hub is still running. Call it every second or so.
+         */
+        public void heartbeat() {
+            LONGS.setRelease(map, HEARTBEAT_OFFSET, System.currentTimeMillis());
+        }
+
+        /**
+         * Describes what was written, for the hub's statistics.
+         *
+         * @return A one-line summary
+         */
+        public synchronized String describe() {
+            return records + " packets written, " + position + " bytes, " + dropped + " too big";
+        }
+
+        /**
+         * Tells the clients the hub stopped, so they receive for themselves again.
+         */
+        public synchronized void close() {
+            closed = true;
+            LONGS.setRelease(map, HEARTBEAT_OFFSET, 0L);
+            map.force();
+        }
+    }
+
+    /**
+     * What a reader found in one record. The packet itself is copied into the caller's buffer.
+     */
+    public static final class Record {
+        public String room;          // The room it was sent to
+        public SocketAddress source; // Who sent it, or null if the hub didn't know
+        public boolean joined;       // True if it's only the note that the hub now receives the room
+    }
+
+    /**
+     * Follows the ring from the position the writer had when we attached.
+     * Only one thread may use a reader.
+     */
+    public static final class Reader {
+        private static final int MAX_CACHED_SOURCES = 4096;
+
+        private final MappedByteBuffer map;
+        private final ByteBuffer view;   // For copying packets out of the ring
+        private final long capacity;
+        private final Path path;
+        private long position;           // The next record we read
+        private long records = 0;
+        private long resyncs = 0;        // Times the writer overtook us and we skipped ahead
+        private final byte[] nameBytes = new byte[255];
+        private byte[] lastName = new byte[0];
+        private String lastRoom;         // Most packets are for the same room as the one before
+        private final Map<Long, InetSocketAddress> sources = new HashMap<>();
+
+        private Reader(Path path, MappedByteBuffer map, long capacity) {
+            this.path = path;
+            this.map = map;
+            this.view = map.duplicate();
+            this.capacity = capacity;
+            this.position = (long) LONGS.getAcquire(map, WRITE_OFFSET);
+        }
+
+        /**
+         * Maps a hub's ring file for reading, if it and its directory are
+         * private to us (see {@link HubRing#checkPrivate}).
+         *
+         * @param path The ring file
+         * @return A reader that starts with the next packet the hub writes
+         * @throws IOException If there's no ring file, it isn't one, or it isn't private to us
+         */
+        public static Reader attach(Path path) throws IOException {
+            checkPrivate(path.toAbsolutePath().getParent(), true);
+            checkPrivate(path, false);
+            MappedByteBuffer map;
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS)) {
+                if (file.size() < DATA_START) {
+                    throw new IOException("Not a hub ring file: " + path);
+                }
+                map = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+            }
+            map.order(ByteOrder.nativeOrder());
+            byte[] magic = new byte[MAGIC.length];
+            map.duplicate().get(magic);
+            long capacity = map.getLong(CAPACITY_OFFSET);
+            if (!Arrays.equals(magic, MAGIC) || capacity < MIN_CAPACITY || DATA_START + capacity > map.capacity()) {
+                throw new IOException("Not a hub ring file: " + path);
+            }
+            return new Reader(path, map, capacity);
+        }
+
+        /**
+         * Checks whether the hub is still writing.
+         *
+         * @param timeoutMillis How long the hub may go without a heartbeat
+         * @return True if the hub said it's alive within the timeout
+         */
+        public boolean isWriterAlive(long timeoutMillis) {
+            long heartbeat = (long) LONGS.getAcquire(map, HEARTBEAT_OFFSET);
+            return heartbeat != 0 && System.currentTimeMillis() - heartbeat < timeoutMillis;
+        }
+
+        /**
+         * Reads the next packet, or note that the hub joined a room, if the hub has written one.
+         *
+         * @param record Gets the packet's room and source, or which room the hub joined
+         * @param out Gets the packet, at its position; needs room for {@link #MAX_PACKET_SIZE} bytes
+         * @return True if a record was read, false if there's nothing new (or we lost our place)
+         */
+        public boolean next(Record record, ByteBuffer out) {
+            while (true) {
+                long written = (long) LONGS.getAcquire(map, WRITE_OFFSET);
+                if (written == position) {
+                    return false;
+                }
+                if (written < position || written - position > capacity) {
+                    return resync(written);
+                }
+
+                int at = DATA_START + (int) (position % capacity);
+                int length = map.getInt(at);
+                byte kind = map.get(at + 4);
+                if (length < 8 || (length & 7) != 0 || at + length > DATA_START + capacity) {
+                    return resync(written);
+                }
+                if (kind == KIND_PADDING) {
+                    if (!intact(position)) {
+                        return resync(written);
+                    }
+                    position += length;
+                    continue;
+                }
+
+                // Copy it out, then make sure the writer didn't overwrite it while we did
+                int nameLength = map.get(at + 5) & 0xFF;
+                int packetLength = map.getInt(at + 12);
+                if (packetLength < 0 || packetLength > MAX_PACKET_SIZE || RECORD_HEADER_SIZE + nameLength + packetLength > length) {
+                    return resync(written);
+                }
+                long address = readAddress(map, at + 6);
+                int start = out.position();
+                view.limit(at + RECORD_HEADER_SIZE + nameLength + packetLength).position(at + RECORD_HEADER_SIZE);
+                view.get(nameBytes, 0, nameLength);
+                out.put(view);
+                VarHandle.loadLoadFence();
+                if (!intact(position)) {
+                    out.position(start);
+                    return resync(written);
+                }
+
+                record.room = roomName(nameLength);
+                record.source = source(address);
+                record.joined = kind == KIND_JOINED;
+                position += length;
+                records++;
+                return true;
+            }
+        }
+
+        /**
+         * Describes how reading went, for the /config command.
+         *
+         * @return A one-line summary
+         */
+        public String describe() {
+            return "Host hub " + path + ": " + records + " packets read, lost our place " + resyncs + " times";
+        }
+
+        /**
+         * Checks that the record at a position hasn't been overwritten yet.
+         */
+        private boolean intact(long recordPosition) {
+            return (long) LONGS.getAcquire(map, LIMIT_OFFSET) - capacity <= recordPosition;
+        }
+
+        /**
+         * Skips to the newest record after the writer overtook us.
+         *
+         * @return Always false, since there's no packet
+         */
+        private boolean resync(long written) {
+            position = written;
+            resyncs++;
+            return false;
+        }
+
+        /**
+         * Turns the room name we just copied into a string, reusing the last one if it's the same.
+         */
+        private String roomName(int length) {
+            if (lastRoom == null || !Arrays.equals(nameBytes, 0, length, lastName, 0, lastName.length)) {
+                lastName = Arrays.copyOf(nameBytes, length);
+                lastRoom = new String(lastName, StandardCharsets.UTF_8);
+            }
+            return lastRoom;
+        }
+
+        /**
+         * Turns a source address into a socket address, reusing the ones we've seen.
+         */
+        private SocketAddress source(long address) {
+            if (address == 0) {
+                return null;
+            }
+            InetSocketAddress source = sources.get(address);
+            if (source == null) {
+                if (sources.size() >= MAX_CACHED_SOURCES) {
+                    sources.clear();
+                }
+                byte[] ip = {(byte) (address >>> 40), (byte) (address >>> 32), (byte) (address >>> 24), (byte) (address >>> 16)};
+                try {
+                    source = new InetSocketAddress(InetAddress.getByAddress(ip), (int) (address & 0xFFFF));
+                } catch (UnknownHostException e) {
+                    return null; // Can't happen with four bytes
+                }
+                sources.put(address, source);
+            }
+            return source;
+        }
+    }
+
+    /**
+     * Writes an IPv4 address and port in 6 bytes; zeros if there's no IPv4 address.
+     */
+    private static void writeAddress(ByteBuffer buffer, int at, SocketAddress address) {
+        byte[] ip = {0, 0, 0, 0};
+        int port = 0;
+        if (address instanceof InetSocketAddress && ((InetSocketAddress) address).getAddress() instanceof Inet4Address) {
+            ip = ((InetSocketAddress) address).getAddress().getAddress();
+            port = ((InetSocketAddress) address).getPort();
+        }
+        for (int i = 0; i < 4; i++) {
+            buffer.put(at + i, ip[i]);
+        }
+        buffer.put(at + 4, (byte) (port >>> 8));
+        buffer.put(at + 5, (byte) port);
+    }
+
+    /**
+     * Reads what {@link #writeAddress} wrote, packed into one number (0 if there was no address).
+     */
+    private static long readAddress(ByteBuffer buffer, int at) {
+        long address = 0;
+        for (int i = 0; i < 6; i++) {
+            address = (address << 8) | (buffer.get(at + i) & 0xFF);
+        }
+        return address;
+    }
+}
@@ -0,0 +1,386 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Receives the rooms' packets from the {@link HostHub} on this computer
+ * instead of from the network, so that 30 sessions of one account on a
+ * terminal server don't each decrypt the same traffic.
+ *
+ * The hub writes every packet it decrypted into a {@link HubRing}, and we
+ * read them from there, already decrypted. Everything else is left to the
+ * transport we wrap (a {@link UdpTransport} normally): our own packets go
+ * out through it, and packets sent straight to us, like private messages,
+ * come in through it. We ask the hub for a room by leaving a file in its
+ * rooms directory.
+ *
+ * The hub only looks for requests a few times a second, and joining takes
+ * a moment, but the manager greets a room and asks who's there right
+ * away. So we also join the room's group ourselves, and leave it to the
+ * hub once it notes in the ring that it has the room. While both bring us
+ * the room's packets, the manager's duplicate filter keeps only the first
+ * copy of each, whichever way it came.
+ *
+ * If the hub stops, we notice within hub.timeout, join the groups of all
+ * our rooms on the wrapped transport and receive for ourselves again. A
+ * hub that starts later isn't picked up until the client restarts.
+ *
+ * Both sources are handed to the manager from our receive thread, since
+ * the sessions' mailboxes only have room for one writer. The wrapped
+ * transport receives on a thread of its own, so what it gets is copied
+ * and queued for ours.
+ *
+ * Settings (see {@link Config}):
+ * <ul>
+ *   <li>hub - use a hub if one is running on this computer for our user (false)</li>
+ *   <li>hub.timeout - how long the hub may be silent before we receive for ourselves, in ms (3000)</li>
+ * </ul>
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class HubTransport implements Transport {
+    // Settings (see Config)
+    private static final boolean USE_HUB = Config.getBoolean("hub", false);
+    private static final long HUB_TIMEOUT = Config.getLong("hub.timeout", 3000);
+
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final int BATCH_BUFFER_SIZE = 1 << 20;
+    private static final long MIN_IDLE_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long LIVENESS_CHECK_MILLIS = 500;
+
+    /**
+     * A datagram the wrapped transport received, copied out of its buffer.
+     */
+    private static final class Copy {
+        final Object tag;
+        final SocketAddress source;
+        final byte[] data;
+
+        Copy(ReceiveEngine.Datagram datagram) {
+            this.tag = datagram.tag;
+            this.source = datagram.source;
+            this.data = new byte[datagram.data.remaining()];
+            datagram.data.duplicate().get(data);
+        }
+    }
+
+    /**
+     * A room we're in.
+     */
+    private static final class Joined {
+        final Room room;
+        final Object tag;
+        final Path request;              // Our request file in the hub's rooms directory
+        volatile boolean direct = true;  // True while we're in the room's group on the wrapped transport
+        volatile boolean carried;        // True once the hub noted that it has the room
+
+        Joined(Room room, Object tag, Path request) {
+            this.room = room;
+            this.tag = tag;
+            this.request = request;
+        }
+    }
+
+    private final Transport inner;
+    private final HubRing.Reader reader;
+    private final Path roomsDirectory;
+    private final long pid = ProcessHandle.current().pid();
+    private final Map<String, Joined> rooms = new ConcurrentHashMap<>(); // By room name
+    private final Queue<Copy> received = new ConcurrentLinkedQueue<>();  // From the wrapped transport
+    private ReceiveEngine.BatchListener listener;
+    private volatile Thread receiveThread;
+    private volatile boolean attached = true; // False once the hub stopped and we receive for ourselves
+    private volatile boolean running = true;
+    private long lastLivenessCheck;           // Network thread only
+
+    // Reused for every batch
+    private final ByteBuffer batchBuffer = ByteBuffer.allocate(BATCH_BUFFER_SIZE);
+    private final ReceiveEngine.Datagram[] datagrams = new ReceiveEngine.Datagram[MAX_BATCH_SIZE];
+    private final List<ReceiveEngine.Datagram> batch = new ArrayList<>(MAX_BATCH_SIZE);
+    private final HubRing.Record record = new HubRing.Record();
+
+    /**
+     * Receives through the hub if hub is turned on and one is running on
+     * this computer. What comes out of the ring is shown without being
+     * decrypted or checked again, so a ring or hub directory that isn't
+     * ours alone is refused (see {@link HubRing#checkPrivate}).
+     *
+     * @param inner The transport to send with, and to receive with if there's no hub
+     * @return A transport that uses the hub, or the one given if there is none
+     */
+    public static Transport attachIfRunning(Transport inner) {
+        if (!USE_HUB) {
+            return inner;
+        }
+        Path directory = HubRing.directory();
+        Path ringFile = HubRing.ringFile(directory);
+        if (!Files.exists(ringFile, LinkOption.NOFOLLOW_LINKS)) {
+            return inner; // No hub on this computer
+        }
+        try {
+            HubRing.Reader reader = HubRing.Reader.attach(ringFile);
+            if (reader.isWriterAlive(HUB_TIMEOUT)) {
+                Path roomsDirectory = HubRing.roomsDirectory(directory);
+                HubRing.checkPrivate(roomsDirectory, true);
+                System.out.println("Receiving through the host hub in " + directory);
+                return new HubTransport(inner, reader, roomsDirectory);
+            }
+        } catch (IOException e) {
+            System.err.println("Not using the host hub: " + e.getMessage());
+        }
+        return inner;
+    }
+
+    private HubTransport(Transport inner, HubRing.Reader reader, Path roomsDirectory) {
+        this.inner = inner;
+        this.reader = reader;
+        this.roomsDirectory = roomsDirectory;
+        for (int i = 0; i < datagrams.length; i++) {
+            datagrams[i] = new ReceiveEngine.Datagram(batchBuffer);
+        }
+    }
+
+    @Override
+    public void open(ReceiveEngine.BatchListener listener) throws IOException {
+        this.listener = listener;
+        inner.open(batch -> {
+            for (ReceiveEngine.Datagram datagram : batch) {
+                received.add(new Copy(datagram));
+            }
+            LockSupport.unpark(receiveThread);
+        });
+        Thread thread = new Thread(inner::run, "Direct-Receive");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public int getMtu() {
+        return inner.getMtu();
+    }
+
+    @Override
+    public String describe() {
+        return attached ? "Host hub | " + inner.describe() : inner.describe();
+    }
+
+    @Override
+    public String describeSocketOptions() {
+        return inner.describeSocketOptions() + " | " + reader.describe() + (attached ? "" : " (hub stopped)");
+    }
+
+    /**
+     * Joins the room's group ourselves and asks the hub for the room, unless
+     * the hub stopped. We leave the group once the hub has the room.
+     */
+    @Override
+    public String joinGroup(Room room, Object tag) throws IOException {
+        Path request = roomsDirectory.resolve(room.getName() + "." + pid);
+        Joined joined = new Joined(room, tag, request);
+        String status = inner.joinGroup(room, tag);
+        rooms.put(room.getName(), joined);
+        if (!attached) {
+            return status;
+        }
+        try {
+            Files.createFile(request);
+        } catch (FileAlreadyExistsException e) {
+            // We asked before
+        } catch (IOException e) {
+            // We keep receiving the room ourselves
+            System.err.println("Cannot ask the host hub for room #" + room.getName() + ": " + e.getMessage());
+            return status;
+        }
+        return "Receiving #" + room.getName() + " through the host hub | " + status;
+    }
+
+    @Override
+    public void leaveGroup(Room room) {
+        Joined joined = rooms.remove(room.getName());
+        if (joined == null) {
+            return;
+        }
+        deleteRequest(joined);
+        if (joined.direct) {
+            inner.leaveGroup(room);
+        }
+    }
+
+    @Override
+    public void sendToGroup(Room room, ByteBuffer packet) throws IOException {
+        inner.sendToGroup(room, packet);
+    }
+
+    @Override
+    public void sendTo(SocketAddress target, ByteBuffer packet) throws IOException {
+        inner.sendTo(target, packet);
+    }
+
+    /**
+     * Moves the wrapped transport to new interfaces, and checks on the hub
+     * while we're at it, since this runs every few hundred milliseconds on
+     * the network thread anyway. Rooms the hub now has are left to it; if
+     * the hub stopped, we join our rooms' groups ourselves again.
+     */
+    @Override
+    public String refreshInterfaces() throws IOException {
+        String change = inner.refreshInterfaces();
+        long now = System.currentTimeMillis();
+        if (attached) {
+            for (Joined joined : rooms.values()) {
+                if (joined.carried && joined.direct) {
+                    inner.leaveGroup(joined.room);
+                    joined.direct = false;
+                }
+            }
+        }
+        if (!attached || now - lastLivenessCheck < LIVENESS_CHECK_MILLIS) {
+            return change;
+        }
+        lastLivenessCheck = now;
+        if (reader.isWriterAlive(HUB_TIMEOUT)) {
+            return change;
+        }
+
+        // The hub is gone - stop reading the ring and join the groups ourselves
+        attached = false;
+        System.err.println("The host hub stopped - receiving directly");
+        for (Joined joined : rooms.values()) {
+            deleteRequest(joined);
+            if (joined.direct) {
+                continue;
+            }
+            try {
+                inner.joinGroup(joined.room, joined.tag);
+                joined.direct = true;
+            } catch (IOException e) {
+                System.err.println("Cannot join room #" + joined.room.getName() + ": " + e.getMessage());
+            }
+        }
+        return "host hub stopped -> receiving directly";
+    }
+
+    /**
+     * Hands the manager what the hub wrote and what the wrapped transport
+     * received, until we're closed. Waits a little longer each time there's
+     * nothing, up to a millisecond.
+     */
+    @Override
+    public void run() {
+        receiveThread = Thread.currentThread();
+        long idleNanos = MIN_IDLE_NANOS;
+        while (running) {
+            boolean found = drainReceived();
+            if (attached) {
+                found |= readRing();
+            }
+            flushBatch();
+            if (found) {
+                idleNanos = MIN_IDLE_NANOS;
+            } else {
+                LockSupport.parkNanos(idleNanos);
+                idleNanos = Math.min(MAX_IDLE_NANOS, idleNanos * 2);
+            }
+        }
+    }
+
+    /**
+     * Adds the ring's new packets to the batch.
+     *
+     * @return True if there were any
+     */
+    private boolean readRing() {
+        boolean found = false;
+        while (batch.size() < MAX_BATCH_SIZE && batchBuffer.remaining() >= HubRing.MAX_PACKET_SIZE) {
+            int position = batchBuffer.position();
+            if (!reader.next(record, batchBuffer)) {
+                break;
+            }
+            found = true;
+            Joined joined = rooms.get(record.room);
+            if (joined == null) {
+                batchBuffer.position(position); // Another client's room
+                continue;
+            }
+            if (record.joined) {
+                joined.carried = true; // The network thread leaves the group
+                continue;
+            }
+            add(joined.tag, record.source, position, true);
+        }
+        return found;
+    }
+
+    /**
+     * Adds what the wrapped transport received to the batch.
+     *
+     * @return True if there was anything
+     */
+    private boolean drainReceived() {
+        boolean found = false;
+        Copy copy;
+        while (batch.size() < MAX_BATCH_SIZE && (copy = received.peek()) != null
+               && batchBuffer.remaining() >= copy.data.length) {
+            received.poll();
+            int position = batchBuffer.position();
+            batchBuffer.put(copy.data);
+            add(copy.tag, copy.source, position, false);
+            found = true;
+        }
+        return found;
+    }
+
+    private void add(Object tag, SocketAddress source, int position, boolean decoded) {
+        ReceiveEngine.Datagram datagram = datagrams[batch.size()];
+        datagram.tag = tag;
+        datagram.source = source;
+        datagram.decoded = decoded;
+        datagram.data.limit(batchBuffer.position()).position(position);
+        batch.add(datagram);
+    }
+
+    private void flushBatch() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            listener.onBatch(batch);
+        } catch (RuntimeException e) {
+            System.err.println("Error handling received batch: " + e.getMessage());
+        } finally {
+            batch.clear();
+            batchBuffer.clear();
+        }
+    }
+
+    private void deleteRequest(Joined joined) {
+        try {
+            Files.deleteIfExists(joined.request);
+        } catch (IOException e) {
+            // The hub drops it once we've exited
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        for (Joined joined : rooms.values()) {
+            deleteRequest(joined);
+        }
+        inner.close();
+    }
+}
@@ -0,0 +1,437 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes a good network behave like a bad one, so we can reproduce what
+ * users on poor Wi-Fi see, on one machine and in the load generator.
+ *
+ * It wraps another {@link Transport} and sends every packet through a
+ * {@link Link} that loses, delays, reorders and duplicates packets and
+ * caps the bandwidth, the way Linux netem does. It can do that on the way
+ * out, on the way in, or both. All random choices come from a seeded
+ * random generator, so the same traffic with the same seed is impaired
+ * the same way every time.
+ *
+ * Settings (see {@link Config}); it's only used if at least one impairment is set:
+ * <ul>
+ *   <li>impair.loss - percent of packets lost (0)</li>
+ *   <li>impair.burst - average number of packets lost in a row; 1 means every
+ *       packet is lost on its own, more means losses come in bursts (1)</li>
+ *   <li>impair.delay - milliseconds every packet is delayed (0)</li>
+ *   <li>impair.jitter - up to this many milliseconds more, at random (0)</li>
+ *   <li>impair.reorder - percent of packets held back, so later ones overtake them (0)</li>
+ *   <li>impair.reorder.gap - how many milliseconds they're held back (10)</li>
+ *   <li>impair.duplicate - percent of packets that arrive twice (0)</li>
+ *   <li>impair.rate - bandwidth in kbit/s; packets queue up behind each other (0 = unlimited)</li>
+ *   <li>impair.queue - most milliseconds a packet waits for bandwidth before it's dropped (1000)</li>
+ *   <li>impair.direction - send, receive or both (both)</li>
+ *   <li>impair.seed - seed for the random choices (1)</li>
+ * </ul>
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class ImpairedTransport implements Transport {
+    // Settings (see Config)
+    private static final double LOSS = Config.getDouble("impair.loss", 0) / 100;
+    private static final double BURST = Math.max(1, Config.getDouble("impair.burst", 1));
+    private static final long DELAY_NANOS = millisToNanos(Config.getDouble("impair.delay", 0));
+    private static final long JITTER_NANOS = millisToNanos(Config.getDouble("impair.jitter", 0));
+    private static final double REORDER = Config.getDouble("impair.reorder", 0) / 100;
+    private static final long REORDER_GAP_NANOS = millisToNanos(Config.getDouble("impair.reorder.gap", 10));
+    private static final double DUPLICATE = Config.getDouble("impair.duplicate", 0) / 100;
+    private static final double RATE_KBITS = Config.getDouble("impair.rate", 0);
+    private static final long MAX_QUEUE_NANOS = millisToNanos(Config.getDouble("impair.queue", 1000));
+    private static final String DIRECTION = Config.getString("impair.direction", "both");
+    private static final long SEED = Config.getLong("impair.seed", 1);
+
+    private static final boolean ENABLED = LOSS > 0 || DELAY_NANOS > 0 || JITTER_NANOS > 0 || REORDER > 0
+                                           || DUPLICATE > 0 || RATE_KBITS > 0;
+    private static final int MAX_DATAGRAM_SIZE = 65536;
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final int BATCH_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * One direction of a bad network. Decides for every packet whether it
+     * gets through, how often, and when.
+     */
+    public static final class Link {
+        private final Random random;
+        private final long nanosPerByte; // Time a byte takes at the capped bandwidth (0 = unlimited)
+        private final double badToGood;  // Chance that a loss burst ends after a lost packet
+        private final double goodToBad;  // Chance that a loss burst starts after a packet got through
+        private boolean bad = false;     // Are we in a loss burst?
+        private long linkFreeAt = 0;     // When the capped link has sent everything queued so far
+
+        // Counters for the statistics
+        private long packets, lost, duplicated, reordered, queueDrops;
+
+        /**
+         * Creates a link with the configured impairments.
+         *
+         * @param seed Seed for the random choices
+         */
+        public Link(long seed) {
+            this.random = new Random(seed);
+            this.nanosPerByte = RATE_KBITS > 0 ? (long) (8e6 / RATE_KBITS) : 0;
+            // A simple Gilbert model: losses come in bursts of BURST packets on
+            // average, and overall LOSS of all packets are lost
+            this.badToGood = 1 / BURST;
+            this.goodToBad = LOSS >= 1 ? 1 : LOSS / (BURST * (1 - LOSS));
+        }
+
+        /**
+         * Decides what happens to a packet.
+         *
+         * @param size The packet's size in bytes
+         * @param now The current time (System.nanoTime)
+         * @param due Gets the times the copies of the packet should arrive; needs room for two
+         * @return How many copies arrive: 0 if it's lost, 2 if it's duplicated
+         */
+        public synchronized int schedule(int size, long now, long[] due) {
+            packets++;
+
+            // Loss, in bursts
+            if (BURST <= 1 || LOSS >= 1) {
+                bad = random.nextDouble() < LOSS;
+            } else {
+                bad = random.nextDouble() < (bad ? 1 - badToGood : goodToBad);
+            }
+            if (bad) {
+                lost++;
+                return 0;
+            }
+
+            // Bandwidth: the packet waits for everything queued before it
+            long departure = now;
+            if (nanosPerByte > 0) {
+                long start = Math.max(now, linkFreeAt);
+                if (start - now > MAX_QUEUE_NANOS) {
+                    queueDrops++;
+                    return 0;
+                }
+                departure = start + size * nanosPerByte;
+                linkFreeAt = departure;
+            }
+
+            // Delay and jitter, then maybe hold it back or send it twice
+            int copies = random.nextDouble() < DUPLICATE ? 2 : 1;
+            if (copies == 2) {
+                duplicated++;
+            }
+            for (int i = 0; i < copies; i++) {
+                long arrival = departure + DELAY_NANOS;
+                if (JITTER_NANOS > 0) {
+                    arrival += (long) (random.nextDouble() * JITTER_NANOS);
+                }
+                if (REORDER > 0 && random.nextDouble() < REORDER) {
+                    arrival += REORDER_GAP_NANOS;
+                    reordered++;
+                }
+                due[i] = arrival;
+            }
+            return copies;
+        }
+
+        /**
+         * Describes what the link did so far.
+         *
+         * @return The counters on one line
+         */
+        public synchronized String describe() {
+            return packets + " packets, " + lost + " lost, " + queueDrops + " dropped by the rate limit, " +
+                   duplicated + " duplicated, " + reordered + " held back";
+        }
+    }
+
+    /**
+     * A received datagram waiting for its time to arrive.
+     */
+    private static final class HeldDatagram implements Delayed {
+        final byte[] data;
+        final Object tag;
+        final SocketAddress source;
+        final long due;      // When it arrives (System.nanoTime)
+        final long order;    // Keeps datagrams that are due at the same time in order
+
+        HeldDatagram(byte[] data, Object tag, SocketAddress source, long due, long order) {
+            this.data = data;
+            this.tag = tag;
+            this.source = source;
+            this.due = due;
+            this.order = order;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            HeldDatagram that = (HeldDatagram) other;
+            int byTime = Long.compare(due, that.due);
+            return byTime != 0 ? byTime : Long.compare(order, that.order);
+        }
+    }
+
+    private final Transport inner;
+    private final Link sendLink;       // null if sending isn't impaired
+    private final Link receiveLink;    // null if receiving isn't impaired
+    private final long[] sendDue = new long[2];    // Network thread only
+    private final long[] receiveDue = new long[2]; // Inner receive thread only
+    private final DelayQueue<HeldDatagram> held = new DelayQueue<>();
+    private final AtomicLong nextOrder = new AtomicLong();
+    private final ScheduledExecutorService sendTimer;
+    private ReceiveEngine.BatchListener listener;
+    private volatile boolean running = true;
+
+    // Reused by the receive thread for every batch
+    private final ByteBuffer batchBuffer = ByteBuffer.allocate(BATCH_BUFFER_SIZE);
+    private final ReceiveEngine.Datagram[] datagrams = new ReceiveEngine.Datagram[MAX_BATCH_SIZE];
+    private final List<ReceiveEngine.Datagram> batch = new ArrayList<>(MAX_BATCH_SIZE);
+
+    /**
+     * Wraps a transport in the configured impairments, if any are set.
+     *
+     * @param inner The transport to wrap
+     * @param instance Tells apart several clients in one process, so each gets its own random choices
+     * @return The impaired transport, or the transport itself if nothing is set
+     */
+    public static Transport wrapIfConfigured(Transport inner, int instance) {
+        return ENABLED ? new ImpairedTransport(inner, SEED * 31 + instance) : inner;
+    }
+
+    /**
+     * Wraps a transport in the configured impairments.
+     *
+     * @param inner The transport to wrap
+     * @param seed Seed for the random choices
+     */
+    public ImpairedTransport(Transport inner, long seed) {
+        this.inner = inner;
+        boolean send = !DIRECTION.equalsIgnoreCase("receive");
+        boolean receive = !DIRECTION.equalsIgnoreCase("send");
+        this.sendLink = send ? new Link(seed) : null;
+        this.receiveLink = receive ? new Link(seed + 1) : null;
+        this.sendTimer = send ? Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Impaired-Send");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+        for (int i = 0; i < datagrams.length; i++) {
+            datagrams[i] = new ReceiveEngine.Datagram(batchBuffer);
+        }
+    }
+
+    @Override
+    public void open(ReceiveEngine.BatchListener listener) throws IOException {
+        this.listener = listener;
+        inner.open(receiveLink != null ? this::holdBatch : listener);
+    }
+
+    @Override
+    public int getMtu() {
+        return inner.getMtu();
+    }
+
+    @Override
+    public String describe() {
+        return inner.describe() + " | Impaired: " + describeSettings();
+    }
+
+    @Override
+    public String describeSocketOptions() {
+        return inner.describeSocketOptions() + "\nImpairment (" + describeSettings() + "):" +
+               (sendLink != null ? "\n  sent: " + sendLink.describe() : "") +
+               (receiveLink != null ? "\n  received: " + receiveLink.describe() : "");
+    }
+
+    /**
+     * Sums up the impairments in effect, like "loss 5.0% (bursts of 3.0), delay 40+20 ms".
+     */
+    private static String describeSettings() {
+        return "loss " + LOSS * 100 + "% (bursts of " + BURST + "), delay " + DELAY_NANOS / 1_000_000 + "+" +
+               JITTER_NANOS / 1_000_000 + " ms, reorder " + REORDER * 100 + "%, duplicate " + DUPLICATE * 100 + "%" +
+               (RATE_KBITS > 0 ? ", rate " + RATE_KBITS + " kbit/s" : "") + ", " + DIRECTION;
+    }
+
+    @Override
+    public String joinGroup(Room room, Object tag) throws IOException {
+        return inner.joinGroup(room, tag);
+    }
+
+    @Override
+    public void leaveGroup(Room room) {
+        inner.leaveGroup(room);
+    }
+
+    @Override
+    public String refreshInterfaces() throws IOException {
+        return inner.refreshInterfaces();
+    }
+
+    @Override
+    public void sendToGroup(Room room, ByteBuffer packet) throws IOException {
+        if (sendLink == null) {
+            inner.sendToGroup(room, packet);
+            return;
+        }
+        byte[] data = copy(packet);
+        int copies = sendLink.schedule(data.length, System.nanoTime(), sendDue);
+        for (int i = 0; i < copies; i++) {
+            sendLater(sendDue[i], () -> inner.sendToGroup(room, ByteBuffer.wrap(data)));
+        }
+    }
+
+    @Override
+    public void sendTo(SocketAddress target, ByteBuffer packet) throws IOException {
+        if (sendLink == null) {
+            inner.sendTo(target, packet);
+            return;
+        }
+        byte[] data = copy(packet);
+        int copies = sendLink.schedule(data.length, System.nanoTime(), sendDue);
+        for (int i = 0; i < copies; i++) {
+            sendLater(sendDue[i], () -> inner.sendTo(target, ByteBuffer.wrap(data)));
+        }
+    }
+
+    /**
+     * Something that sends a packet and may fail.
+     */
+    private interface Send {
+        void run() throws IOException;
+    }
+
+    /**
+     * Sends a packet once its time has come. Errors are only logged, since
+     * the caller has long moved on - a packet lost on a real network isn't
+     * reported either.
+     */
+    private void sendLater(long due, Send send) {
+        try {
+            sendTimer.schedule(() -> {
+                try {
+                    send.run();
+                } catch (IOException e) {
+                    System.err.println("Error sending impaired packet: " + e.getMessage());
+                }
+            }, due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // We're closed - the packet is lost
+        }
+    }
+
+    /**
+     * Holds back every received datagram until it's due. Runs on the inner
+     * transport's receive thread; the batch is reused, so the data is copied.
+     */
+    private void holdBatch(List<ReceiveEngine.Datagram> received) {
+        long now = System.nanoTime();
+        for (ReceiveEngine.Datagram datagram : received) {
+            byte[] data = copy(datagram.data);
+            int copies = receiveLink.schedule(data.length, now, receiveDue);
+            for (int i = 0; i < copies; i++) {
+                held.add(new HeldDatagram(data, datagram.tag, datagram.source, receiveDue[i],
+                                          nextOrder.getAndIncrement()));
+            }
+        }
+    }
+
+    /**
+     * Receives until the transport is closed. If receiving is impaired, the
+     * inner transport receives on a thread of its own, and this thread hands
+     * over the datagrams once they're due, so the listener still only ever
+     * runs on one thread.
+     */
+    @Override
+    public void run() {
+        if (receiveLink == null) {
+            inner.run();
+            return;
+        }
+        Thread receiver = new Thread(inner::run, "Impaired-Receive");
+        receiver.setDaemon(true);
+        receiver.start();
+
+        while (running) {
+            try {
+                HeldDatagram next = held.poll(100, TimeUnit.MILLISECONDS);
+                while (next != null) {
+                    add(next);
+                    next = held.poll(); // Everything else that's due too
+                }
+                flushBatch();
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Adds a datagram that's due to the batch.
+     */
+    private void add(HeldDatagram datagram) {
+        if (batchBuffer.remaining() < MAX_DATAGRAM_SIZE || batch.size() >= MAX_BATCH_SIZE) {
+            flushBatch();
+        }
+        int start = batchBuffer.position();
+        batchBuffer.put(datagram.data);
+        ReceiveEngine.Datagram next = datagrams[batch.size()];
+        next.tag = datagram.tag;
+        next.source = datagram.source;
+        next.data.limit(batchBuffer.position()).position(start);
+        batch.add(next);
+    }
+
+    /**
+     * Passes the collected batch to the listener and starts a new one.
+     */
+    private void flushBatch() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            listener.onBatch(batch);
+        } catch (RuntimeException e) {
+            System.err.println("Error handling received batch: " + e.getMessage());
+        } finally {
+            batch.clear();
+            batchBuffer.clear();
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (sendTimer != null) {
+            sendTimer.shutdownNow(); // Packets still on their way are lost
+        }
+        inner.close();
+    }
+
+    /**
+     * Copies a packet out of a buffer that's about to be reused.
+     */
+    private static byte[] copy(ByteBuffer packet) {
+        byte[] data = new byte[packet.remaining()];
+        packet.duplicate().get(data);
+        return data;
+    }
+
+    private static long millisToNanos(double millis) {
+        return (long) (Math.max(0, millis) * 1_000_000);
+    }
+}
@@ -0,0 +1,347 @@
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps a list of the computer's network interfaces and notices when it
+ * changes, like when a laptop goes from the docking station's Ethernet to
+ * Wi-Fi.
+ *
+ * Walking all interfaces with {@link NetworkInterface#getNetworkInterfaces()}
+ * is slow (a system call or two per interface and address), so it's done
+ * once and the result is kept in an {@link Inventory} that everybody shares:
+ * the transports, the status bar and /netinfo. To find out whether anything
+ * changed, {@link #poll()} only reads the routing table (/proc/net/route on
+ * Linux), one small file that changes whenever an interface comes, goes or
+ * gets a new address. Only then are the interfaces walked again. Either way
+ * they're walked every netmon.rescan milliseconds, in case the routing
+ * table didn't tell - and where there is no such file, like on Windows,
+ * that's the only time they're walked; lower netmon.rescan there to notice
+ * changes sooner.
+ *
+ * Apart from the very first one, the walks run on a thread of their own.
+ * The clients poll on their network threads, which also send, so a slow
+ * walk never holds up a message; the new list shows up at the next poll.
+ *
+ * All clients in a process share the list, so the load generator's
+ * hundreds of clients don't each walk the interfaces.
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public final class InterfaceMonitor {
+    // Settings (see Config)
+    public static final long POLL_INTERVAL = Math.max(50, Config.getLong("netmon.interval", 250)); // How often clients look for changes (ms)
+    private static final long RESCAN_INTERVAL = Config.getLong("netmon.rescan", 5000);             // Walk the interfaces at least this often (ms)
+    private static final Path ROUTE_TABLE = Paths.get("/proc/net/route");
+
+    /**
+     * What we know about one interface, read when the interfaces were walked.
+     */
+    public static final class Interface {
+        public final NetworkInterface nif;      // For joining groups and binding channels
+        public final String name;               // Like "eth0"
+        public final String displayName;        // Like "Intel(R) Ethernet Connection"
+        public final boolean up;
+        public final boolean loopback;
+        public final boolean virtual;
+        public final boolean multicast;          // Supports multicast
+        public final int mtu;                    // -1 if unknown
+        public final byte[] mac;                 // null if it has none
+        public final List<InetAddress> addresses;
+        public final List<InetAddress> broadcasts; // Subnet broadcast addresses of its IPv4 addresses
+
+        private Interface(NetworkInterface nif) throws SocketException {
+            this.nif = nif;
+            this.name = nif.getName();
+            this.displayName = nif.getDisplayName();
+            this.up = nif.isUp();
+            this.loopback = nif.isLoopback();
+            this.virtual = nif.isVirtual();
+            this.multicast = nif.supportsMulticast();
+            this.mtu = nif.getMTU();
+            this.mac = nif.getHardwareAddress();
+            this.addresses = Collections.unmodifiableList(Collections.list(nif.getInetAddresses()));
+            List<InetAddress> broadcasts = new ArrayList<>();
+            for (InterfaceAddress address : nif.getInterfaceAddresses()) {
+                if (address.getBroadcast() != null) {
+                    broadcasts.add(address.getBroadcast());
+                }
+            }
+            this.broadcasts = Collections.unmodifiableList(broadcasts);
+        }
+
+        /**
+         * Checks whether the interface has at least one IPv4 address.
+         *
+         * @return true if it has an IPv4 address
+         */
+        public boolean hasIPv4Address() {
+            for (InetAddress address : addresses) {
+                if (address instanceof Inet4Address) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Two interfaces are the same if everything we read about them is the
+         * same; an interface that got a new address counts as a new one.
+         */
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Interface)) {
+                return false;
+            }
+            Interface that = (Interface) other;
+            return name.equals(that.name) && up == that.up && loopback == that.loopback &&
+                   virtual == that.virtual && multicast == that.multicast && mtu == that.mtu &&
+                   Arrays.equals(mac, that.mac) && addresses.equals(that.addresses) && broadcasts.equals(that.broadcasts);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode() * 31 + addresses.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * The interfaces at one point in time. Never changes; a change gives a
+     * new inventory with a higher version.
+     */
+    public static final class Inventory {
+        private final List<Interface> interfaces;
+        private final long version;
+
+        private Inventory(List<Interface> interfaces, long version) {
+            this.interfaces = Collections.unmodifiableList(interfaces);
+            this.version = version;
+        }
+
+        /**
+         * Gets all interfaces, up or down.
+         *
+         * @return The interfaces, in the order the system lists them
+         */
+        public List<Interface> getInterfaces() {
+            return interfaces;
+        }
+
+        /**
+         * Gets a number that goes up whenever the interfaces change.
+         *
+         * @return The version of this inventory
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Finds every interface that can be used for multicast:
+         * up, not loopback, supports multicast and has an IPv4 address.
+         * If there is none, the loopback interface is used so the app still works locally.
+         *
+         * @return The usable interfaces (may be empty)
+         */
+        public List<Interface> findMulticastInterfaces() {
+            List<Interface> result = new ArrayList<>();
+            for (Interface nif : interfaces) {
+                if (nif.up && !nif.loopback && nif.multicast && nif.hasIPv4Address()) {
+                    result.add(nif);
+                }
+            }
+
+            // Fall back to the single-interface search, which also tries loopback
+            if (result.isEmpty()) {
+                Interface nif = findMulticastInterface();
+                if (nif != null) {
+                    result.add(nif);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Finds the subnet broadcast addresses of every interface that's up
+         * (except loopback), for when multicast doesn't get through.
+         *
+         * @return The broadcast addresses, like 192.168.1.255 (may be empty)
+         */
+        public List<InetAddress> findBroadcastAddresses() {
+            List<InetAddress> result = new ArrayList<>();
+            for (Interface nif : interfaces) {
+                if (nif.up && !nif.loopback) {
+                    for (InetAddress broadcast : nif.broadcasts) {
+                        if (!result.contains(broadcast)) {
+                            result.add(broadcast);
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Finds the best network interface for multicast communication:
+         * the first usable regular one, otherwise loopback.
+         *
+         * @return The best network interface, or null if none found
+         */
+        public Interface findMulticastInterface() {
+            // First try to find a regular network interface (not loopback)
+            for (Interface nif : interfaces) {
+                if (nif.up && !nif.loopback && nif.multicast && nif.hasIPv4Address()) {
+                    return nif;
+                }
+            }
+
+            // If no regular interface works, try loopback as a last resort
+            for (Interface nif : interfaces) {
+                if (nif.up && nif.loopback && nif.multicast) {
+                    return nif;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static Inventory inventory;    // The latest list (null until the first walk)
+    private static byte[] lastRoutes;      // The routing table when we last looked
+    private static long lastPoll;          // When we last looked for changes (ms)
+    private static long lastScan;          // When we last walked the interfaces (ms)
+    private static boolean hasRouteTable = true; // False once reading it failed, e.g. on Windows
+    private static boolean scanPending;    // A walk is running on the scan thread
+
+    // Walks the interfaces for poll(), so the network threads don't wait for it
+    private static final ExecutorService scanner = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Interface-Scan");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private InterfaceMonitor() {
+    }
+
+    /**
+     * Gets the interfaces as we last saw them, walking them if nobody has yet.
+     *
+     * @return The latest inventory
+     */
+    public static synchronized Inventory current() {
+        if (inventory == null) {
+            lastScan = System.currentTimeMillis();
+            update(walk());
+        }
+        return inventory;
+    }
+
+    /**
+     * Looks for changes, cheaply. If another client looked a moment ago,
+     * its answer is used. If the interfaces need walking, that's started on
+     * the scan thread and its result shows up at a later poll.
+     *
+     * @return The latest inventory; its version is higher if something changed
+     */
+    public static synchronized Inventory poll() {
+        long now = System.currentTimeMillis();
+        if (inventory == null) {
+            return current();
+        }
+        if (now - lastPoll < POLL_INTERVAL / 2) {
+            return inventory;
+        }
+        lastPoll = now;
+
+        byte[] routes = readRoutes();
+        boolean routesChanged = routes != null && !Arrays.equals(routes, lastRoutes);
+        if ((routesChanged || now - lastScan >= RESCAN_INTERVAL) && !scanPending) {
+            lastRoutes = routes;
+            lastScan = now;
+            scanPending = true;
+            scanner.execute(() -> {
+                List<Interface> interfaces = walk();
+                synchronized (InterfaceMonitor.class) {
+                    scanPending = false;
+                    update(interfaces);
+                }
+            });
+        }
+        return inventory;
+    }
+
+    /**
+     * Walks all interfaces.
+     *
+     * @return What we found, or null if they couldn't be listed
+     */
+    private static List<Interface> walk() {
+        List<Interface> interfaces = new ArrayList<>();
+        try {
+            Enumeration<NetworkInterface> all = NetworkInterface.getNetworkInterfaces();
+            while (all != null && all.hasMoreElements()) {
+                try {
+                    interfaces.add(new Interface(all.nextElement()));
+                } catch (SocketException e) {
+                    // It went away while we were looking - skip it
+                }
+            }
+        } catch (SocketException e) {
+            System.err.println("Error listing network interfaces: " + e.getMessage());
+            return null;
+        }
+        return interfaces;
+    }
+
+    /**
+     * Takes the result of a walk. The version only goes up if something is different.
+     */
+    private static void update(List<Interface> interfaces) {
+        if (interfaces == null) {
+            if (inventory == null) {
+                inventory = new Inventory(new ArrayList<>(), 1);
+            }
+            return; // Keep what we had
+        }
+        if (inventory == null) {
+            inventory = new Inventory(interfaces, 1);
+        } else if (!interfaces.equals(inventory.interfaces)) {
+            inventory = new Inventory(interfaces, inventory.version + 1);
+        }
+    }
+
+    /**
+     * Reads the routing table, which changes when an interface comes, goes or gets a new address.
+     *
+     * @return Its bytes, or null if this system doesn't have one we can read
+     */
+    private static byte[] readRoutes() {
+        if (!hasRouteTable) {
+            return null;
+        }
+        try {
+            return Files.readAllBytes(ROUTE_TABLE);
+        } catch (IOException | SecurityException e) {
+            hasRouteTable = false;
+            return null;
+        }
+    }
+}
@@ -0,0 +1,420 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulates a floor full of chat users in one process, to see how the chat
+ * holds up before we roll it out somewhere bigger.
+ *
+ * Every simulated user is a real {@link MulticastManager} with its own
+ * sockets, sender id, send queue and receive pipeline, so they speak exactly
+ * the protocol the app speaks: encrypted, packed, paced and repaired.
+ * By default they talk over real UDP multicast with a TTL of 0, so the
+ * packets loop back inside this machine and never reach the LAN. With
+ * --load.transport=memory they use a {@link MemoryTransport} instead.
+ *
+ * Each user sends chat messages at random times (a Poisson process) with
+ * random sizes. Every message carries the time it was sent, so the receivers
+ * can measure how long it took. At the end we print the delivered messages
+ * per second, the loss, the latency percentiles, and how much CPU and memory
+ * it all took.
+ *
+ * Settings (see {@link Config}; all other settings, like heartbeat.* and
+ * impair.* for a bad network (see {@link ImpairedTransport}), apply too):
+ * <ul>
+ *   <li>load.peers - how many users to simulate (50)</li>
+ *   <li>load.rate - messages per second each user sends (1.0)</li>
+ *   <li>load.size - average message size in bytes (100)</li>
+ *   <li>load.size.dist - fixed, uniform (0 to twice the average) or exponential (exponential)</li>
+ *   <li>load.size.max - largest message; bigger ones get fragmented (8192)</li>
+ *   <li>load.heartbeat - whether the users send heartbeats (true)</li>
+ *   <li>load.warmup - seconds to let everyone join before measuring (3)</li>
+ *   <li>load.duration - seconds to send messages (30)</li>
+ *   <li>load.drain - most seconds to wait for the last messages afterwards (5)</li>
+ *   <li>load.transport - udp or memory (udp)</li>
+ *   <li>load.seed - seed for the message times and sizes (random)</li>
+ * </ul>
+ *
+ * Unless they're set, a few settings get defaults that suit many users in
+ * one process: multicast.ttl=0, receive.workers=1 and receive.inflight=64.
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class LoadGenerator {
+    private static final String ROOM = Room.DEFAULT_ROOM;
+
+    /**
+     * Counts what all simulated users sent and received.
+     */
+    private static final class Stats {
+        final LongAdder messagesSent = new LongAdder();      // Chat messages we asked to send
+        final LongAdder messagesDelivered = new LongAdder(); // Chat messages shown to another user
+        final LongAdder packetsSent = new LongAdder();
+        final LongAdder bytesSent = new LongAdder();
+        final LongAdder packetsReceived = new LongAdder();
+        final LongAdder bytesReceived = new LongAdder();
+        final LongAdder errors = new LongAdder();            // System messages, which are only shown for errors
+        final LatencyHistogram latency = new LatencyHistogram();
+    }
+
+    /**
+     * Records latencies in microseconds into buckets that are about 3%
+     * wide, without locks, so all receive workers can record at once.
+     * Good enough for p99.9 without keeping every sample.
+     */
+    private static final class LatencyHistogram {
+        private static final int LINEAR = 64;     // Values below this get a bucket each
+        private static final int SUB_BUCKETS = 32; // Buckets per power of two above that
+        private final AtomicLongArray counts = new AtomicLongArray(LINEAR + (64 - 6) * SUB_BUCKETS);
+        private final LongAdder total = new LongAdder();
+
+        void record(long micros) {
+            counts.incrementAndGet(indexOf(Math.max(0, micros)));
+            total.increment();
+        }
+
+        long count() {
+            return total.sum();
+        }
+
+        /**
+         * Finds the latency that the given share of all messages stayed below.
+         *
+         * @param percentile Between 0 and 100
+         * @return The latency in microseconds (the middle of its bucket)
+         */
+        long percentile(double percentile) {
+            long wanted = (long) Math.ceil(count() * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= wanted && seen > 0) {
+                    return (lowestValue(i) + lowestValue(i + 1)) / 2;
+                }
+            }
+            return 0;
+        }
+
+        private static int indexOf(long value) {
+            if (value < LINEAR) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value); // 6 or more
+            int sub = (int) (value >>> (exponent - 5)) & (SUB_BUCKETS - 1);
+            return LINEAR + (exponent - 6) * SUB_BUCKETS + sub;
+        }
+
+        private static long lowestValue(int index) {
+            if (index < LINEAR) {
+                return index;
+            }
+            int exponent = (index - LINEAR) / SUB_BUCKETS + 6;
+            int sub = (index - LINEAR) % SUB_BUCKETS;
+            return (long) (SUB_BUCKETS + sub) << (exponent - 5);
+        }
+    }
+
+    /**
+     * One simulated user: listens like a chat window would, but only counts.
+     */
+    private static final class Peer implements ChatListener {
+        final String nickname;
+        final Stats stats;
+        MulticastManager manager;
+        long nextSend;           // When this user sends its next message (System.nanoTime)
+
+        Peer(String nickname, Stats stats) {
+            this.nickname = nickname;
+            this.stats = stats;
+        }
+
+        @Override
+        public void appendMessage(String room, String sender, String content) {
+            // Our own messages come back to us, and "joined" has no timestamp
+            if (sender.equals(nickname) || content.isEmpty() || !Character.isDigit(content.charAt(0))) {
+                return;
+            }
+            int end = content.indexOf(' ');
+            long sentAt = Long.parseLong(end < 0 ? content : content.substring(0, end));
+            stats.messagesDelivered.increment();
+            stats.latency.record((System.nanoTime() - sentAt) / 1000);
+        }
+
+        @Override
+        public void appendPrivateMessage(String sender, String target, String content) {
+        }
+
+        @Override
+        public void appendSystemMessage(String message) {
+            stats.errors.increment();
+            System.err.println(nickname + ": " + message);
+        }
+
+        @Override
+        public void addUserToList(String room, String username) {
+        }
+
+        @Override
+        public void removeUserFromList(String room, String username) {
+        }
+
+        @Override
+        public void updateNetworkStatus(String networkInfo) {
+        }
+
+        @Override
+        public void updateSentStatistics(int messageSize) {
+            stats.packetsSent.increment();
+            stats.bytesSent.add(messageSize);
+        }
+
+        @Override
+        public void updateReceivedStatistics(int packetCount, long byteCount) {
+            stats.packetsReceived.add(packetCount);
+            stats.bytesReceived.add(byteCount);
+        }
+    }
+
+    /**
+     * Runs the load test.
+     *
+     * @param args Settings like --load.peers=200 --load.rate=2 (see {@link Config})
+     * @throws InterruptedException If we're interrupted while waiting
+     */
+    public static void main(String[] args) throws InterruptedException {
+        try {
+            Config.load(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java LoadGenerator [--load.peers=N] [--load.rate=PER_SECOND] [--name=value ...]");
+            System.exit(1);
+        }
+
+        // Keep the traffic on this machine, and don't start a thread pool per user
+        setDefault("multicast.ttl", "0");
+        setDefault("receive.workers", "1");
+        setDefault("receive.inflight", "64");
+
+        int peerCount = Math.max(2, Config.getInt("load.peers", 50));
+        double rate = Config.getDouble("load.rate", 1.0);
+        int averageSize = Math.max(1, Config.getInt("load.size", 100));
+        String sizeDistribution = Config.getString("load.size.dist", "exponential");
+        int maxSize = Math.max(averageSize, Config.getInt("load.size.max", 8192));
+        boolean heartbeats = Config.getBoolean("load.heartbeat", true);
+        long warmupMillis = Config.getLong("load.warmup", 3) * 1000;
+        long durationMillis = Math.max(1, Config.getLong("load.duration", 30)) * 1000;
+        long drainMillis = Config.getLong("load.drain", 5) * 1000;
+        boolean inMemory = Config.getString("load.transport", "udp").equalsIgnoreCase("memory");
+        Random random = new Random(Config.getLong("load.seed", System.nanoTime()));
+
+        // Start the users; each one joins the lobby from its own receive thread
+        Stats stats = new Stats();
+        MemoryTransport.Network network = inMemory ? new MemoryTransport.Network() : null;
+        List<Peer> peers = new ArrayList<>(peerCount);
+        System.out.println("Starting " + peerCount + " users over " + (inMemory ? "memory" : "UDP multicast") + "...");
+        for (int i = 0; i < peerCount; i++) {
+            Peer peer = new Peer(String.format("load%03d", i), stats);
+            Transport transport = inMemory ? new MemoryTransport(network) : new UdpTransport();
+            // With impair.* settings, every user gets its own bad network
+            transport = ImpairedTransport.wrapIfConfigured(transport, i);
+            // The listener only counts, so it runs right on the receive workers
+            peer.manager = new MulticastManager(peer.nickname, peer, transport, Runnable::run);
+            Thread receiver = new Thread(peer.manager::receiveMessages, "Receiver-" + peer.nickname);
+            receiver.setDaemon(true);
+            receiver.start();
+            if (heartbeats) {
+                peer.manager.startHeartbeat();
+            }
+            peers.add(peer);
+        }
+        Thread.sleep(warmupMillis);
+
+        // Measure from here on
+        long cpuStart = processCpuNanos();
+        long gcCountStart = gcCount();
+        long gcMillisStart = gcMillis();
+        long packetsSentStart = stats.packetsSent.sum();
+        long bytesSentStart = stats.bytesSent.sum();
+        long packetsReceivedStart = stats.packetsReceived.sum();
+        long bytesReceivedStart = stats.bytesReceived.sum();
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        long peakHeap = 0;
+
+        // Every user sends at random times; the earliest one is always at the head
+        PriorityQueue<Peer> schedule = new PriorityQueue<>((a, b) -> Long.compare(a.nextSend, b.nextSend));
+        for (Peer peer : peers) {
+            peer.nextSend = start + nextGap(random, rate);
+            schedule.add(peer);
+        }
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= nextReport) {
+                peakHeap = Math.max(peakHeap, usedHeap());
+                System.out.println(String.format("%3ds: sent %d, delivered %d, p99 %s",
+                                                 (now - start) / 1_000_000_000L, stats.messagesSent.sum(),
+                                                 stats.messagesDelivered.sum(), formatMicros(stats.latency.percentile(99))));
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+            Peer peer = schedule.peek();
+            if (peer == null || peer.nextSend >= end) {
+                if (now >= end) {
+                    break;
+                }
+                LockSupport.parkNanos(Math.min(end, nextReport) - now);
+                continue;
+            }
+            if (peer.nextSend > now) {
+                LockSupport.parkNanos(Math.min(peer.nextSend, nextReport) - now);
+                continue;
+            }
+            schedule.poll();
+            peer.manager.sendMessage(ROOM, message(random, sizeDistribution, averageSize, maxSize));
+            stats.messagesSent.increment();
+            peer.nextSend += nextGap(random, rate);
+            schedule.add(peer);
+        }
+
+        // Give the last messages time to arrive
+        long expected = stats.messagesSent.sum() * (peerCount - 1);
+        long drainEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+        while (stats.messagesDelivered.sum() < expected && System.nanoTime() < drainEnd) {
+            Thread.sleep(50);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long cpuNanos = processCpuNanos() - cpuStart;
+        peakHeap = Math.max(peakHeap, usedHeap());
+
+        // The report
+        long delivered = stats.messagesDelivered.sum();
+        long packetsReceived = stats.packetsReceived.sum() - packetsReceivedStart;
+        StringBuilder report = new StringBuilder();
+        report.append("\nLoad test: ").append(peerCount).append(" users, ").append(rate).append(" msg/s each, ")
+              .append(sizeDistribution).append(" sizes around ").append(averageSize).append(" bytes, ")
+              .append(durationMillis / 1000).append(" s\n");
+        report.append(String.format("  sent:      %d messages (%.1f/s), %d packets, %d bytes%n",
+                                    stats.messagesSent.sum(), stats.messagesSent.sum() / (durationMillis / 1000.0),
+                                    stats.packetsSent.sum() - packetsSentStart, stats.bytesSent.sum() - bytesSentStart));
+        report.append(String.format("  delivered: %d of %d (%.1f/s), loss %.3f%%%n",
+                                    delivered, expected, delivered / seconds,
+                                    expected > 0 ? 100.0 * Math.max(0, expected - delivered) / expected : 0.0));
+        report.append(String.format("  received:  %d packets, %d bytes (%.1f packets per delivered message)%n",
+                                    packetsReceived, stats.bytesReceived.sum() - bytesReceivedStart,
+                                    delivered > 0 ? (double) packetsReceived / delivered : 0.0));
+        report.append("  latency:   p50 ").append(formatMicros(stats.latency.percentile(50)))
+              .append(", p99 ").append(formatMicros(stats.latency.percentile(99)))
+              .append(", p99.9 ").append(formatMicros(stats.latency.percentile(99.9)))
+              .append(", max ").append(formatMicros(stats.latency.percentile(100))).append("\n");
+        int cores = Runtime.getRuntime().availableProcessors();
+        report.append(cpuNanos >= 0
+                ? String.format("  CPU:       %.1f s (%.0f%% of %d cores)%n", cpuNanos / 1e9, 100 * cpuNanos / 1e9 / seconds / cores, cores)
+                : "  CPU:       not available\n");
+        report.append(String.format("  heap:      %d MB used at most, %d MB max; %d GCs taking %d ms%n",
+                                    peakHeap >> 20, Runtime.getRuntime().maxMemory() >> 20,
+                                    gcCount() - gcCountStart, gcMillis() - gcMillisStart));
+        report.append("  errors:    ").append(stats.errors.sum()).append("\n");
+        report.append(peers.get(0).nickname).append("'s ").append(peers.get(0).manager.getReceiveStats());
+        System.out.println(report);
+
+        for (Peer peer : peers) {
+            peer.manager.shutdown();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Sets a setting's default for this run, unless it's set somewhere already.
+     */
+    private static void setDefault(String name, String value) {
+        if (Config.getString(name, null) == null) {
+            System.setProperty("lc32." + name, value);
+        }
+    }
+
+    /**
+     * Picks the time until a user's next message, for a Poisson process.
+     */
+    private static long nextGap(Random random, double rate) {
+        double seconds = -Math.log(1 - random.nextDouble()) / rate;
+        return (long) (seconds * 1e9);
+    }
+
+    /**
+     * Makes a message that starts with the time it's sent, padded to a random size.
+     */
+    private static String message(Random random, String distribution, int averageSize, int maxSize) {
+        int size;
+        switch (distribution) {
+            case "fixed":
+                size = averageSize;
+                break;
+            case "uniform":
+                size = random.nextInt(2 * averageSize + 1);
+                break;
+            default:
+                size = (int) (-Math.log(1 - random.nextDouble()) * averageSize);
+                break;
+        }
+        String timestamp = Long.toString(System.nanoTime());
+        size = Math.max(timestamp.length(), Math.min(maxSize, size));
+
+        // Random letters, so the text compresses about as badly as real chat
+        byte[] padding = new byte[size - timestamp.length()];
+        for (int i = 0; i < padding.length; i++) {
+            padding[i] = (byte) ('a' + random.nextInt(26));
+        }
+        if (padding.length > 0) {
+            padding[0] = ' ';
+        }
+        return timestamp + new String(padding, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Formats a latency like "850 us" or "12.3 ms".
+     */
+    private static String formatMicros(long micros) {
+        return micros < 1000 ? micros + " us" : String.format("%.1f ms", micros / 1000.0);
+    }
+
+    /**
+     * Gets the CPU time this process has used so far, or -1 if the JVM can't tell.
+     */
+    private static long processCpuNanos() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    private static long usedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+}
@@ -14,10 +14,21 @@ import java.awt.geom.RoundRectangle2D;
 public class Main {
     /**
      * The main method that starts our chat application.
-     * It applies the theme and shows the login dialog.
+     * It reads the settings, applies the theme and shows the login dialog.
+     *
+     * @param args Settings like --port=5000 or --config=lc32.properties (see {@link Config})
      */
     public static void main(String[] args) {
-        // First, we need to set up our app's look and feel
+        // Read the settings before anything else uses them
+        try {
+            Config.load(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java Main [--config=FILE] [--name=value ...]");
+            System.exit(1);
+        }
+
+        // Now we need to set up our app's look and feel
         ThemeManager.applyTheme();
         
         // Now let's show the login screen where users can enter their nickname
@@ -0,0 +1,335 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A transport that connects chat clients inside one Java process, without
+ * any network. It's for tests and benchmarks: hundreds of simulated users,
+ * each with its own {@link MulticastManager}, can exchange the same
+ * encrypted packets they would send over UDP.
+ *
+ * All clients that should hear each other share one {@link Network}. It
+ * keeps the members of every group and gives each client a made-up
+ * address like 10.0.0.1:5000, so private messages work too. Sending copies
+ * the packet once and puts it into the lock-free inbox ({@link RingBuffer})
+ * of every member; nothing on the way takes a lock. A full inbox drops the
+ * packet, like a full socket buffer would, so the loss repair gets tested as
+ * well. The receive thread drains its inbox into one reused buffer and hands
+ * the datagrams over in batches, just like the {@link ReceiveEngine}.
+ *
+ * Every client starts its own receive workers, so for a few hundred clients
+ * in one process, run with {@code -Dlc32.receive.workers=1} and a smaller
+ * packet pool like {@code -Dlc32.receive.inflight=64}.
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class MemoryTransport implements Transport {
+    // Settings (see Config)
+    private static final int INBOX_SIZE = Math.max(16, Config.getInt("memory.inbox", 4096)); // Packets waiting per client; more are dropped
+    private static final int MAX_BATCH_SIZE = Math.max(1, Config.getInt("receive.batch", 256)); // Hand over a batch at least this often
+    private static final boolean MULTICAST_LOOPBACK = Config.getBoolean("multicast.loopback", true); // Our own packets come back to us
+    private static final int MTU = 1500;            // Like Ethernet, so packets are packed the same way as on a real network
+    private static final int MAX_DATAGRAM_SIZE = 65536; // Largest packet we accept
+    private static final int BATCH_BUFFER_SIZE = 1 << 20; // Buffer that a whole batch is copied into
+    private static final int FIRST_PORT = 5000;
+
+    /**
+     * The "network" that a group of in-memory clients share.
+     */
+    public static final class Network {
+        private final Map<InetSocketAddress, List<MemoryTransport>> groups = new ConcurrentHashMap<>(); // Members of each group
+        private final Map<SocketAddress, MemoryTransport> clients = new ConcurrentHashMap<>();         // Every open client, by address
+        private final AtomicInteger nextHost = new AtomicInteger(1);
+
+        /**
+         * Counts the clients that are connected right now.
+         *
+         * @return The number of open transports
+         */
+        public int size() {
+            return clients.size();
+        }
+
+        /**
+         * Makes up a new address in 10.0.0.0/8 for a client.
+         */
+        private InetSocketAddress nextAddress() {
+            int host = nextHost.getAndIncrement();
+            byte[] ip = {10, (byte) (host >> 16), (byte) (host >> 8), (byte) host};
+            try {
+                return new InetSocketAddress(InetAddress.getByAddress(ip), FIRST_PORT);
+            } catch (UnknownHostException e) {
+                throw new IllegalStateException(e); // Can't happen with four bytes
+            }
+        }
+    }
+
+    /**
+     * A packet on its way. The same one goes to every member of a group;
+     * nobody changes its bytes.
+     */
+    private static final class Delivery {
+        final byte[] data;                 // The packet
+        final SocketAddress source;        // The sender's address
+        final InetSocketAddress group;     // The group it was sent to, or null if it was sent directly
+
+        Delivery(byte[] data, SocketAddress source, InetSocketAddress group) {
+            this.data = data;
+            this.source = source;
+            this.group = group;
+        }
+    }
+
+    private final Network network;
+    private final InetSocketAddress address;                                 // Our made-up address
+    private final Map<InetSocketAddress, Object> joinedGroups = new ConcurrentHashMap<>(); // The groups we're in, with their tags
+    private final RingBuffer<Delivery> inbox = new RingBuffer<>(INBOX_SIZE); // Packets waiting for our receive thread
+    private final AtomicBoolean sleeping = new AtomicBoolean();              // Is the receive thread parked?
+    private final AtomicLong droppedPackets = new AtomicLong();              // Lost because our inbox was full
+    private volatile Thread receiveThread;
+    private volatile boolean running = true;
+    private ReceiveEngine.BatchListener listener;
+
+    // Reused by the receive thread for every batch
+    private final ByteBuffer batchBuffer = ByteBuffer.allocate(BATCH_BUFFER_SIZE);
+    private final ReceiveEngine.Datagram[] datagrams = new ReceiveEngine.Datagram[MAX_BATCH_SIZE];
+    private final List<ReceiveEngine.Datagram> batch = new ArrayList<>(MAX_BATCH_SIZE);
+
+    /**
+     * Creates a client on an in-memory network.
+     *
+     * @param network The network shared with the other clients
+     */
+    public MemoryTransport(Network network) {
+        this.network = network;
+        this.address = network.nextAddress();
+        for (int i = 0; i < datagrams.length; i++) {
+            datagrams[i] = new ReceiveEngine.Datagram(batchBuffer);
+        }
+    }
+
+    /**
+     * Gets the made-up address other clients see our packets coming from.
+     *
+     * @return Our address on the in-memory network
+     */
+    public InetSocketAddress getLocalAddress() {
+        return address;
+    }
+
+    /**
+     * Counts the packets that were lost because our inbox was full.
+     *
+     * @return The number of dropped packets
+     */
+    public long getDroppedPackets() {
+        return droppedPackets.get();
+    }
+
+    @Override
+    public void open(ReceiveEngine.BatchListener listener) {
+        this.listener = listener;
+        network.clients.put(address, this);
+    }
+
+    @Override
+    public int getMtu() {
+        return MTU;
+    }
+
+    @Override
+    public String describe() {
+        return "In-memory | Local: " + address + " | Clients: " + network.size();
+    }
+
+    @Override
+    public String describeSocketOptions() {
+        return "In-memory transport: inbox " + inbox.size() + " (max " + inbox.maxDepth() + ")/" + inbox.capacity() +
+               ", dropped " + droppedPackets.get();
+    }
+
+    @Override
+    public String joinGroup(Room room, Object tag) {
+        InetSocketAddress group = room.getAddress();
+        joinedGroups.put(group, tag);
+        List<MemoryTransport> members = network.groups.computeIfAbsent(group, g -> new CopyOnWriteArrayList<>());
+        if (!members.contains(this)) {
+            members.add(this);
+        }
+        return describe() + " | Multicast: " + group.getAddress().getHostAddress() + ":" + group.getPort();
+    }
+
+    @Override
+    public void leaveGroup(Room room) {
+        InetSocketAddress group = room.getAddress();
+        joinedGroups.remove(group);
+        List<MemoryTransport> members = network.groups.get(group);
+        if (members != null) {
+            members.remove(this);
+        }
+    }
+
+    /**
+     * Puts a copy of the packet into the inbox of every member of the room's group.
+     *
+     * @param room The room to send it to
+     * @param packet The packet, from position to limit
+     */
+    @Override
+    public void sendToGroup(Room room, ByteBuffer packet) {
+        InetSocketAddress group = room.getAddress();
+        List<MemoryTransport> members = network.groups.get(group);
+        if (members == null) {
+            return; // Nobody's listening, which isn't an error for multicast either
+        }
+        Delivery delivery = new Delivery(copy(packet), address, group);
+        for (MemoryTransport member : members) {
+            if (member != this || MULTICAST_LOOPBACK) {
+                member.deliver(delivery);
+            }
+        }
+    }
+
+    /**
+     * Puts a copy of the packet into one client's inbox.
+     *
+     * @param target The client's address
+     * @param packet The packet, from position to limit
+     * @throws IOException If no client has that address
+     */
+    @Override
+    public void sendTo(SocketAddress target, ByteBuffer packet) throws IOException {
+        MemoryTransport client = network.clients.get(target);
+        if (client == null) {
+            throw new IOException("No client at " + target);
+        }
+        client.deliver(new Delivery(copy(packet), address, null));
+    }
+
+    /**
+     * Copies a packet out of the sender's buffer, which it may reuse.
+     */
+    private static byte[] copy(ByteBuffer packet) {
+        byte[] data = new byte[packet.remaining()];
+        packet.duplicate().get(data);
+        return data;
+    }
+
+    /**
+     * Puts a packet into our inbox and wakes up our receive thread if it's asleep.
+     * Called by the sending client's thread.
+     */
+    private void deliver(Delivery delivery) {
+        if (!running) {
+            return;
+        }
+        if (!inbox.offer(delivery)) {
+            // We can't keep up - drop it like a full socket buffer would
+            droppedPackets.incrementAndGet();
+            return;
+        }
+        // Only one sender needs to wake us up
+        if (sleeping.get() && sleeping.compareAndSet(true, false)) {
+            LockSupport.unpark(receiveThread);
+        }
+    }
+
+    /**
+     * Receives packets until the transport is closed, in batches like the {@link ReceiveEngine}.
+     */
+    @Override
+    public void run() {
+        receiveThread = Thread.currentThread();
+        while (running) {
+            Delivery delivery = inbox.poll();
+            if (delivery == null) {
+                // Nothing more for now - hand over what we have, then sleep until a packet comes
+                flushBatch();
+                sleeping.set(true);
+                if (inbox.isEmpty() && running) {
+                    // A sender that put a packet in after our check sees the flag and wakes us up
+                    LockSupport.park(this);
+                }
+                sleeping.set(false);
+                continue;
+            }
+
+            // Packets for a group we've left since are dropped, like a closed channel would
+            Object tag = null;
+            if (delivery.group != null) {
+                tag = joinedGroups.get(delivery.group);
+                if (tag == null) {
+                    continue;
+                }
+            }
+
+            // Make sure the biggest possible datagram still fits behind the last one
+            if (batchBuffer.remaining() < MAX_DATAGRAM_SIZE) {
+                flushBatch();
+            }
+            int start = batchBuffer.position();
+            batchBuffer.put(delivery.data);
+
+            ReceiveEngine.Datagram datagram = datagrams[batch.size()];
+            datagram.tag = tag;
+            datagram.source = delivery.source;
+            datagram.data.limit(batchBuffer.position()).position(start);
+            batch.add(datagram);
+
+            // Don't let a huge burst grow the batch without limit
+            if (batch.size() >= MAX_BATCH_SIZE) {
+                flushBatch();
+            }
+        }
+    }
+
+    /**
+     * Passes the collected batch to the listener and starts a new one.
+     */
+    private void flushBatch() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            listener.onBatch(batch);
+        } catch (RuntimeException e) {
+            System.err.println("Error handling received batch: " + e.getMessage());
+        } finally {
+            batch.clear();
+            batchBuffer.clear();
+        }
+    }
+
+    /**
+     * Leaves all groups and the network, and stops the receive thread.
+     */
+    @Override
+    public void close() {
+        running = false;
+        network.clients.remove(address);
+        for (InetSocketAddress group : joinedGroups.keySet()) {
+            List<MemoryTransport> members = network.groups.get(group);
+            if (members != null) {
+                members.remove(this);
+            }
+        }
+        joinedGroups.clear();
+        Thread thread = receiveThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+}
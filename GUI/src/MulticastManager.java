@@ -1,390 +1,1121 @@
 import java.io.IOException;
 import java.net.*;
-import java.util.Enumeration;
-import javax.swing.SwingUtilities;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
 
 /**
  * This class handles all the network communication for our chat app.
  * It sends and receives messages using UDP multicast, which allows
  * messages to be sent to multiple users at once on a local network.
+ *
+ * Every chat {@link Room} is its own multicast group. We only join the
+ * groups of the rooms we're in, and every room has its own receiving
+ * channel, send queue and stream of sequence numbers.
+ *
+ * The sockets themselves live in a {@link Transport} ({@link UdpTransport}
+ * normally), and everything we receive goes to a {@link ChatListener}. So
+ * the protocol can also run without a network or a window, e.g. many
+ * clients on a {@link MemoryTransport} in one test.
  * 
  * @author LC32 Team
  * @version 1.0
  */
 public class MulticastManager {
-    // Network settings
-    private static final String MULTICAST_GROUP = "230.0.0.1"; // Special address for multicast
-    private static final int PORT = 5000;                      // Port we'll use for communication
+    // All settings below can be changed without recompiling - see Config for how
+
+    // How long outgoing messages wait to be packed with others (linger, in ms)
+    private static final long LINGER_MILLIS = Config.getLong("linger", 10);
+    private static final int MAX_MESSAGE_SIZE = Config.getInt("message.maxbytes", 1024 * 1024); // Largest chat message we send (1 MB)
+
+    // NACK-based loss repair (turn off with reliable=false)
+    private static final boolean RELIABLE = Config.getBoolean("reliable", true);
+    private static final long NACK_CHECK_INTERVAL = 25; // How often we look for NACKs that are due (ms)
+
+    // Compress messages before encrypting them (turn off with compress=false)
+    private static final boolean COMPRESS = Config.getBoolean("compress", true);
+    private static final int MAX_PACKET_DATA = 65536; // Largest decompressed packet we accept
+
+    // Record every received datagram into this file for TraceReplay (empty = off)
+    private static final String TRACE_FILE = Config.getString("trace.file", "");
+    private static final long TRACE_MAX_BYTES = Config.getLong("trace.maxbytes", 1L << 30); // Stop recording at 1 GB
+    private static final AtomicBoolean traceStarted = new AtomicBoolean(); // Has a client in this process started recording?
 
     // Network components
-    private DatagramSocket socket;    // Socket for sending messages
-    private InetAddress group;        // The multicast group address
+    private final Transport transport; // Sends and receives the packets (UDP multicast, or in memory for tests)
+    private final DuplicateFilter duplicateFilter = new DuplicateFilter(); // Drops copies of packets we already have
+
+    // Reused by the receive thread for every packet; the rest of the work happens in the sender's session
+    private final WireProtocol.Header header = new WireProtocol.Header();     // Header of the current packet
+    private final PeerSessions peerSessions; // Decrypts and reads each sender's packets
+    private final PeerDirectory peerDirectory = new PeerDirectory(); // Where users can be reached directly
+    private final HeartbeatPolicy heartbeatPolicy = new HeartbeatPolicy(); // How often we announce ourselves
+    private final Map<String, JoinedRoom> rooms = new ConcurrentHashMap<>(); // The rooms we're in, by name
+    private volatile int pathMtu; // Smallest MTU of the interfaces we send on
+    private long lastInterfaceCheck;     // When we last saw the interfaces unchanged (network thread only)
+    private TrafficShaper trafficShaper; // Paces outgoing messages so we don't flood the network
+    private final ScheduledExecutorService networkExecutor; // The only thread that sends packets
     private final String nickname;    // User's nickname
-    private final ChatWindow chatWindow; // Reference to the chat window for updates
+    private final SecureRandom random = new SecureRandom(); // Picks our sender ids
+    private final int senderId;       // Random number that identifies us in direct packets
+    private int nextUnicastSequence = 0; // Sequence number of our next direct packet (network thread only)
+    private final AtomicInteger nextMessageId = new AtomicInteger(); // Id of our next fragmented message
+    private final ChatListener listener; // Shows what we receive (the chat window)
+    private final Executor uiExecutor;   // Runs the listener's updates on the UI thread
+    private PacketTrace.Writer trace;    // Records what we receive (null if off)
+    private volatile FrameSink frameSink; // Gets the rooms' decrypted packets instead of us reading them (the host hub)
+
+    /**
+     * Gets every decrypted room packet instead of the manager reading it.
+     * The {@link HostHub} uses this to pass the packets on to the clients
+     * on its computer.
+     */
+    public interface FrameSink {
+        /**
+         * Takes one decrypted packet. Called on the receive workers, one
+         * packet of a sender at a time, in the order the sender sent them.
+         *
+         * @param room The name of the room it was sent to
+         * @param source Who sent it, or null if a bridge forwarded it
+         * @param flags The flags from its header
+         * @param senderId The sender id from its header
+         * @param sequence The sequence number from its header
+         * @param frames The decrypted, decompressed frames, from position to limit
+         */
+        void onFrames(String room, SocketAddress source, byte flags, int senderId, int sequence, ByteBuffer frames);
+    }
+
+    /**
+     * Everything we keep for a room we're in.
+     */
+    private final class JoinedRoom {
+        final Room room;                     // The room's name and group address
+        final int streamId;                  // Our sender id in this room's packets
+        final SendQueue sendQueue;           // Packs the room's outgoing messages into as few packets as possible
+        final ReliabilityLayer reliability;  // Repairs lost packets in this room (null if off)
+        int nextSequence = 0;                // Sequence number of our next packet (network thread only)
+        volatile long lastChatSent = 0;      // When we last sent a chat message here (lets us skip a heartbeat)
+        final Roster roster = new Roster();  // Who we've heard from here, to tell newcomers
+        final boolean announced;             // False if we only listen here and never say anything (see listenToRoom)
+
+        JoinedRoom(Room room, boolean announced) {
+            this.room = room;
+            this.announced = announced;
+            // Every room is a separate stream, so a gap in one room's numbers
+            // never makes receivers in another room ask for packets they can't get
+            this.streamId = random.nextInt();
+            this.sendQueue = new SendQueue(networkExecutor, LINGER_MILLIS, pathMtu,
+                                           (frames, frameCount) -> sendPacket(this, frames, frameCount));
+            this.reliability = RELIABLE ? new ReliabilityLayer() : null;
+        }
+    }
 
     /**
      * Creates a new MulticastManager to handle network communication.
-     * 
+     *
      * @param nickname The user's nickname
-     * @param chatWindow The chat window to update with messages
+     * @param listener Gets told about messages, users and statistics
+     * @param transport Sends and receives the packets
+     * @param uiExecutor Runs the listener's methods (like SwingUtilities::invokeLater)
      */
-    public MulticastManager(String nickname, ChatWindow chatWindow) {
+    public MulticastManager(String nickname, ChatListener listener, Transport transport, Executor uiExecutor) {
         this.nickname = nickname;
-        this.chatWindow = chatWindow;
+        this.listener = listener;
+        this.transport = transport;
+        this.uiExecutor = uiExecutor;
+        this.senderId = random.nextInt();
+        this.peerSessions = new PeerSessions(this::handlePackets, uiExecutor);
+        // Only one client per process records, so the load generator's clients don't share a file
+        if (!TRACE_FILE.isEmpty() && traceStarted.compareAndSet(false, true)) {
+            startTrace(); // Before any packet can arrive
+        }
+
+        // All sending and the heartbeat run on this thread, never on the Swing thread
+        this.networkExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Network-IO");
+            thread.setDaemon(true);
+            return thread;
+        });
         setupNetworking(); // Set up the network connection
+        startInterfaceMonitor();
     }
 
     /**
      * Sets up the network connection for sending and receiving messages.
+     * The transport opens its sockets; in multi-homed mode it creates one
+     * sending channel for every usable interface, so our messages reach
+     * every network segment we're on.
      */
     private void setupNetworking() {
         try {
-            // Create a socket that can send to any address
-            socket = new DatagramSocket(null);
-            socket.setReuseAddress(true); // Allow address reuse for better compatibility
-            socket.bind(new InetSocketAddress(0)); // Bind to any available port
-            socket.setSoTimeout(30000); // 30 second timeout for operations
-            
-            // Get the multicast group address we'll send messages to
-            group = InetAddress.getByName(MULTICAST_GROUP);
-            
-            // Print network information for debugging
-            System.out.println("Multicast group: " + MULTICAST_GROUP);
-            System.out.println("Port: " + PORT);
-            System.out.println("Local address: " + socket.getLocalAddress());
-            System.out.println("Local port: " + socket.getLocalPort());
-            
+            transport.open(this::handleBatch);
+
+            // Print the settings in effect for debugging
+            System.out.println(Config.describe());
+
             // Show detailed network information in the status bar
-            String networkDetails = "Multicast: " + MULTICAST_GROUP + ":" + PORT + 
-                                   " | Local: " + socket.getLocalAddress() + ":" + socket.getLocalPort() +
-                                   " | Socket: " + (socket.isBound() ? "Bound" : "Not Bound") +
-                                   (socket.isConnected() ? ", Connected" : ", Not Connected") +
-                                   " | Timeout: " + socket.getSoTimeout() + "ms" +
-                                   " | TTL: " + socket.getTrafficClass() +
-                                   " | Buffer: " + socket.getReceiveBufferSize() + "B";
-            chatWindow.updateNetworkStatus(networkDetails);
-            
-            // Check all network interfaces to find ones that support multicast
-            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
-            while (interfaces.hasMoreElements()) {
-                NetworkInterface nif = interfaces.nextElement();
-                if (nif.isUp()) {
-                    System.out.println("Interface: " + nif.getDisplayName() + 
-                                      ", Multicast: " + nif.supportsMulticast() +
-                                      ", Loopback: " + nif.isLoopback());
-                }
-            }
+            String networkDetails = transport.describe();
+            uiExecutor.execute(() -> listener.updateNetworkStatus(networkDetails));
             
         } catch (IOException e) {
             // If something goes wrong, show an error message
             e.printStackTrace();
-            SwingUtilities.invokeLater(() -> 
-                chatWindow.appendSystemMessage("Error setting up network: " + e.getMessage()));
+            uiExecutor.execute(() ->
+                listener.appendSystemMessage("Error setting up network: " + e.getMessage()));
         }
+
+        // The send queues pack messages up to the smallest MTU of our interfaces
+        pathMtu = transport.getMtu();
+        trafficShaper = new TrafficShaper(networkExecutor, SendQueue.maxFrameSize(pathMtu));
     }
 
     /**
-     * Encrypts and sends a chat message to everyone in the multicast group.
-     * 
-     * @param message The message to send
+     * Looks for network changes a few times a second on the network thread,
+     * so after a switch from Ethernet to Wi-Fi we're back within a second.
      */
-    public void sendMessage(String message) {
+    private void startInterfaceMonitor() {
+        lastInterfaceCheck = System.currentTimeMillis();
+        networkExecutor.scheduleWithFixedDelay(this::checkInterfaces, InterfaceMonitor.POLL_INTERVAL,
+                                               InterfaceMonitor.POLL_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Has the transport move to new interfaces if they changed, then tells
+     * everyone where we are now and shows how long we were gone.
+     * The failover time counts from the last check that still saw the old
+     * network, so it's the longest we could have missed messages.
+     */
+    private void checkInterfaces() {
+        String change;
         try {
-            // Check if the message is very large
-            if (message.length() > 4096) {
-                // Warn the user about large messages
-                chatWindow.appendSystemMessage("Warning: Your message is very large (" + 
-                                              message.length() + " characters). It may be truncated.");
+            change = transport.refreshInterfaces();
+        } catch (IOException | RuntimeException e) {
+            String error = "Network changed, but moving to the new interfaces failed: " + e.getMessage();
+            System.err.println(error);
+            uiExecutor.execute(() -> listener.updateNetworkStatus(error));
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (change == null) {
+            lastInterfaceCheck = now;
+            return;
+        }
+        long failoverMillis = now - lastInterfaceCheck;
+        lastInterfaceCheck = now;
+
+        // The new interfaces may have another MTU; bundles and bursts have to follow it
+        int mtu = transport.getMtu();
+        if (mtu != pathMtu) {
+            System.out.println("Path MTU changed from " + pathMtu + " to " + mtu);
+            pathMtu = mtu;
+            trafficShaper.setMaxFrameSize(SendQueue.maxFrameSize(mtu));
+            for (JoinedRoom room : rooms.values()) {
+                room.sendQueue.setMtu(mtu);
             }
-            
-            // Add the nickname to the message
-            String full = nickname + ": " + message;
-            
-            // Encrypt the message for security
-            String encrypted = EncryptionUtils.encrypt(full);
-            byte[] buffer = encrypted.getBytes();
-            
-            // Make sure the message isn't too big for UDP
-            if (buffer.length > 65507) { // Max UDP packet size
-                chatWindow.appendSystemMessage("Error: Message too large to send. Please send a shorter message.");
-                return;
+        }
+
+        // Private messages go to the address in our heartbeats, which just changed
+        for (JoinedRoom room : rooms.values()) {
+            sendHeartbeat(room);
+        }
+
+        String status = "Network changed: " + change + " | Rejoined " + rooms.size() + " room(s)" +
+                        " | Failover: " + failoverMillis + " ms";
+        System.out.println(status);
+        uiExecutor.execute(() -> listener.updateNetworkStatus(status));
+    }
+
+    /**
+     * Starts recording every received datagram into the trace file.
+     * If the file can't be created, we just don't record.
+     */
+    private void startTrace() {
+        try {
+            trace = new PacketTrace.Writer(Paths.get(TRACE_FILE), TRACE_MAX_BYTES);
+            System.out.println("Recording received packets to " + TRACE_FILE);
+        } catch (IOException e) {
+            System.err.println("Cannot record packets to " + TRACE_FILE + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads back the socket options the operating system actually gave us.
+     * They can differ from the settings, e.g. Linux doubles buffer sizes
+     * and caps them at net.core.rmem_max / wmem_max.
+     *
+     * @return A one-line summary of the options in effect
+     */
+    public String describeSocketOptions() {
+        return transport.describeSocketOptions();
+    }
+
+    /**
+     * Encrypts and sends a packet from a room's send queue.
+     * This is called by the queue on the network thread once its linger window is over.
+     *
+     * @param room The room the packet is for
+     * @param frames The packed frames to send
+     * @param frameCount How many messages are packed into it
+     * @throws Exception If the packet could not be encrypted or sent
+     */
+    private void sendPacket(JoinedRoom room, ByteBuffer frames, int frameCount) throws Exception {
+        int sequence = room.nextSequence++;
+        ByteBuffer packet = encodePacket(frames, (byte) 0, room.streamId, sequence);
+
+        // Keep a copy in case a receiver missed it and sends a NACK
+        if (room.reliability != null) {
+            room.reliability.recordSent(sequence, Arrays.copyOf(packet.array(), packet.limit()));
+        }
+
+        // Send the packet to the room's multicast group on every interface
+        int size = packet.remaining();
+        transport.sendToGroup(room.room, packet);
+        trafficShaper.recordSent(size);
+
+        // Update statistics in the UI
+        uiExecutor.execute(() -> listener.updateSentStatistics(size));
+    }
+
+    /**
+     * Turns frames into a packet that is ready to send: compressed if that
+     * helps, encrypted, with the plain header in front.
+     *
+     * @param frames The frames to send
+     * @param flags Packet flags to set (compression is added here if used)
+     * @param streamId The sender id to put in the header
+     * @param sequence The packet's sequence number
+     * @return The packet, from position to limit
+     * @throws GeneralSecurityException If encryption fails
+     */
+    private ByteBuffer encodePacket(ByteBuffer frames, byte flags, int streamId, int sequence)
+            throws GeneralSecurityException {
+        // Compress the frames if that makes them smaller - and flag the packet so
+        // receivers know. This must happen before encryption, which makes data incompressible.
+        if (COMPRESS) {
+            ByteBuffer compressed = WireProtocol.compress(frames);
+            if (compressed != null) {
+                frames = compressed;
+                flags |= WireProtocol.FLAG_COMPRESSED;
             }
-            
-            // Create and send the packet to the multicast group
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length, group, PORT);
-            socket.send(packet);
-            
-            // Update statistics in the UI
-            chatWindow.updateSentStatistics(buffer.length);
-        } catch (Exception e) {
-            // If something goes wrong, show an error message
-            e.printStackTrace();
-            chatWindow.appendSystemMessage("Error sending message: " + e.getMessage());
         }
+
+        // Write the plain header, then encrypt the frames right behind it
+        ByteBuffer packet = ByteBuffer.allocate(SendQueue.packetSize(frames.remaining()));
+        WireProtocol.writeHeader(packet, flags, streamId, sequence);
+        EncryptionUtils.encrypt(frames, packet);
+        packet.flip();
+        return packet;
+    }
+
+    /**
+     * Sends frames straight to one user, without going through the multicast
+     * group or the send queue; every frame gets its own packet. They're paced
+     * like everything else we send, so a big private message or a bot
+     * sending private messages can't flood the network either.
+     *
+     * @param frames The frames (a single frame, or the fragments of one message)
+     * @param address Where the user can be reached
+     * @param trafficClass CHAT for a single frame, BULK for fragments
+     * @return A future that completes once all packets have been sent
+     */
+    private CompletableFuture<Void> sendUnicast(List<byte[]> frames, SocketAddress address,
+                                                TrafficShaper.TrafficClass trafficClass) {
+        TrafficShaper.Destination destination = (frame, done) -> {
+            try {
+                ByteBuffer packet = encodePacket(ByteBuffer.wrap(frame), WireProtocol.FLAG_UNICAST, senderId,
+                                                 nextUnicastSequence++);
+                int size = packet.remaining();
+                transport.sendTo(address, packet);
+                trafficShaper.recordSent(size);
+                uiExecutor.execute(() -> listener.updateSentStatistics(size));
+                done.complete(null);
+            } catch (Exception e) {
+                done.completeExceptionally(e);
+            }
+        };
+        List<CompletableFuture<Void>> sent = new ArrayList<>(frames.size());
+        for (byte[] frame : frames) {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            try {
+                networkExecutor.execute(() -> trafficShaper.submit(trafficClass, destination, frame, done));
+            } catch (RejectedExecutionException e) {
+                // The network thread has already shut down
+                done.completeExceptionally(e);
+            }
+            sent.add(done);
+        }
+        return CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Queues a message on the network thread. Safe to call from any thread,
+     * including the Swing event thread - it never touches the socket itself.
+     * The message first waits for its traffic class's rate limit, then for
+     * the room's send queue to pack it.
+     *
+     * @param room The room to send it to
+     * @param trafficClass What kind of message it is
+     * @param frame The encoded frame
+     * @return A future that completes once the message has been sent
+     */
+    private CompletableFuture<Void> enqueue(JoinedRoom room, TrafficShaper.TrafficClass trafficClass, byte[] frame) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        try {
+            networkExecutor.execute(() -> trafficShaper.submit(trafficClass, room.sendQueue, frame, done));
+        } catch (RejectedExecutionException e) {
+            // The network thread has already shut down
+            done.completeExceptionally(e);
+        }
+        return done;
+    }
+
+    /**
+     * Queues a chat message for everyone in a room.
+     * This returns right away; the encryption and sending happen on the network thread.
+     * 
+     * @param roomName The room to send it to
+     * @param message The message to send
+     * @return A future that completes once the message is on the wire,
+     *         or fails with the reason it couldn't be sent
+     */
+    public CompletableFuture<Void> sendMessage(String roomName, String message) {
+        JoinedRoom room = rooms.get(roomName);
+        if (room == null) {
+            return notInRoom(roomName);
+        }
+        room.lastChatSent = System.currentTimeMillis();
+        return sendFrame(WireProtocol.chatFrame(nickname, message), room, null);
+    }
+
+    /**
+     * Sends a private message to one user. If we know the user's address from
+     * its heartbeats, the message goes straight there, so nobody else has to
+     * receive and decrypt it. Otherwise it's multicast to a room, and only the target shows it.
+     *
+     * @param roomName The room to multicast it to if we don't know the user's address
+     * @param target The nickname of the user to send it to
+     * @param message The message to send
+     * @return A future that completes once the message is on the wire,
+     *         or fails with the reason it couldn't be sent
+     */
+    public CompletableFuture<Void> sendPrivateMessage(String roomName, String target, String message) {
+        SocketAddress address = peerDirectory.lookup(target);
+        JoinedRoom room = rooms.get(roomName);
+        if (address == null && room == null) {
+            return notInRoom(roomName);
+        }
+        return sendFrame(WireProtocol.privateFrame(nickname, target, message), room, address);
+    }
+
+    /**
+     * Makes a future that fails because we aren't in a room.
+     */
+    private static CompletableFuture<Void> notInRoom(String roomName) {
+        CompletableFuture<Void> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IOException("You're not in room #" + roomName));
+        return failed;
+    }
+
+    /**
+     * Sends a frame, compressing and fragmenting it if it's big.
+     *
+     * @param frame The encoded frame
+     * @param room The room to multicast it to
+     * @param unicastAddress Where to send it directly instead, or null to multicast it to the room
+     * @return A future that completes once the frame is on the wire
+     */
+    private CompletableFuture<Void> sendFrame(byte[] frame, JoinedRoom room, SocketAddress unicastAddress) {
+        // Make sure the message isn't unreasonably big
+        if (frame.length > MAX_MESSAGE_SIZE) {
+            CompletableFuture<Void> tooLarge = new CompletableFuture<>();
+            tooLarge.completeExceptionally(new IOException("Message too large to send (" + frame.length +
+                                                           " bytes, limit " + MAX_MESSAGE_SIZE + "). Please send a shorter message."));
+            return tooLarge;
+        }
+        
+        // A big message is compressed as a whole, since each packet on its own
+        // would only see a small part of the repeats. It may then fit into one packet.
+        int maxFrameSize = SendQueue.maxFrameSize(pathMtu);
+        if (COMPRESS && frame.length > maxFrameSize) {
+            byte[] compressed = WireProtocol.compressedFrame(frame);
+            if (compressed != null) {
+                frame = compressed;
+            }
+        }
+
+        // Too big for one packet: cut it into fragments that each fill a packet,
+        // so it never relies on IP fragmentation
+        List<byte[]> fragments = frame.length <= maxFrameSize ? null
+                : WireProtocol.fragmentFrames(frame, nextMessageId.getAndIncrement(), maxFrameSize);
+
+        // Direct messages skip the group entirely, but not the pacing
+        if (unicastAddress != null) {
+            return fragments == null ? sendUnicast(List.of(frame), unicastAddress, TrafficShaper.TrafficClass.CHAT)
+                                     : sendUnicast(fragments, unicastAddress, TrafficShaper.TrafficClass.BULK);
+        }
+
+        // The queue packs it with anything else sent in the same moment
+        if (fragments == null) {
+            return enqueue(room, TrafficShaper.TrafficClass.CHAT, frame);
+        }
+        List<CompletableFuture<Void>> sent = new ArrayList<>(fragments.size());
+        for (byte[] fragment : fragments) {
+            sent.add(enqueue(room, TrafficShaper.TrafficClass.BULK, fragment));
+        }
+        return CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0]));
     }
     
     /**
-     * Sends a heartbeat message to let others know we're online.
-     * This is sent periodically to keep the user list updated.
+     * Sends a heartbeat message to every room we're in, to let others know we're online.
+     * Rooms where we've just chatted are skipped, since the chat message
+     * already told everyone there that we're here.
+     */
+    private void sendHeartbeats() {
+        int groupSize = getGroupSize();
+        for (JoinedRoom room : rooms.values()) {
+            if (!heartbeatPolicy.canSkip(room.lastChatSent, groupSize)) {
+                sendHeartbeat(room);
+            }
+        }
+    }
+
+    /**
+     * Sends a heartbeat message to one room.
+     *
+     * @param room The room to send it to
      */
-    public void sendHeartbeat() {
+    private void sendHeartbeat(JoinedRoom room) {
+        if (!room.announced) {
+            return; // We only listen in this room
+        }
+        // Create a special heartbeat message with our nickname and how often we send them
+        byte[] frame = WireProtocol.heartbeatFrame(nickname, heartbeatPolicy.interval(getGroupSize()));
+        enqueue(room, TrafficShaper.TrafficClass.CONTROL, frame).exceptionally(e -> {
+            System.err.println("Error sending heartbeat: " + e.getMessage());
+            return null;
+        });
+    }
+
+    /**
+     * Starts sending heartbeats from the network thread.
+     * Because they don't run on the Swing thread, they keep going even while
+     * the UI is busy. Joining a room already sends the first one.
+     */
+    public void startHeartbeat() {
+        scheduleHeartbeat();
+    }
+
+    /**
+     * Schedules the next round of heartbeats. The delay is worked out again
+     * every time, so it follows the size of the group and gets new jitter.
+     */
+    private void scheduleHeartbeat() {
         try {
-            // Create a special heartbeat message with our nickname
-            String heartbeat = "HEARTBEAT:" + nickname;
-            
-            // Encrypt and send it
-            String encrypted = EncryptionUtils.encrypt(heartbeat);
-            byte[] buffer = encrypted.getBytes();
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length, group, PORT);
-            socket.send(packet);
-        } catch (Exception e) {
-            e.printStackTrace();
+            networkExecutor.schedule(() -> {
+                sendHeartbeats();
+                scheduleHeartbeat();
+            }, heartbeatPolicy.nextDelay(getGroupSize()), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The network thread has shut down - no more heartbeats
         }
     }
+
+    /**
+     * Sends our roster snapshot to a room once our random wait is over,
+     * unless enough other users have answered the request in the meantime.
+     * Runs on the network thread.
+     *
+     * @param room The room that asked
+     */
+    private void sendRoster(JoinedRoom room) {
+        if (!room.roster.shouldReply() || rooms.get(room.room.getName()) != room) {
+            return;
+        }
+        List<String> names = room.roster.snapshot();
+        if (!names.contains(nickname)) {
+            names.add(0, nickname);
+        }
+        enqueue(room, TrafficShaper.TrafficClass.CONTROL,
+                WireProtocol.rosterFrame(names, SendQueue.maxFrameSize(pathMtu))).exceptionally(e -> {
+            System.err.println("Error sending roster: " + e.getMessage());
+            return null;
+        });
+    }
+
+    /**
+     * Counts the users we've heard from recently, plus ourselves.
+     *
+     * @return The group size used to pick the heartbeat interval
+     */
+    private int getGroupSize() {
+        return peerDirectory.size() + 1;
+    }
     
     /**
-     * Sends a goodbye message when leaving the chat.
-     * This lets others know to remove us from their user list.
+     * Sends a goodbye message to every room when leaving the chat.
+     * This lets others know to remove us from their user lists.
+     *
+     * @return A future that completes once the goodbyes have been sent
      */
-    public void sendGoodbye() {
+    public CompletableFuture<Void> sendGoodbye() {
+        // Create a special goodbye message with our nickname,
+        // and send it right away since we're about to exit
+        List<CompletableFuture<Void>> sent = new ArrayList<>();
+        for (JoinedRoom room : rooms.values()) {
+            if (room.announced) {
+                sent.add(enqueue(room, TrafficShaper.TrafficClass.CONTROL,
+                                 WireProtocol.presenceFrame(WireProtocol.TYPE_GOODBYE, nickname)));
+            }
+        }
         try {
-            // Create a special goodbye message with our nickname
-            String goodbye = "GOODBYE:" + nickname;
-            
-            // Encrypt and send it
-            String encrypted = EncryptionUtils.encrypt(goodbye);
-            byte[] buffer = encrypted.getBytes();
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length, group, PORT);
-            socket.send(packet);
-        } catch (Exception e) {
-            e.printStackTrace();
+            networkExecutor.execute(this::flushAll);
+        } catch (RejectedExecutionException e) {
+            // Already shut down - the goodbyes above have failed too
         }
+        return CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0]));
     }
 
     /**
-     * Continuously listens for incoming messages, decrypts them,
-     * and updates the chat window. This runs in its own thread.
+     * Joins a room: has the transport join the room's multicast group on our
+     * interfaces and says hello. Safe to call from any thread;
+     * the work happens on the network thread.
+     *
+     * @param roomName The normalized name of the room (see {@link Room#normalizeName})
+     * @return A future with the room once we're in it, or failing with the reason we couldn't join
      */
-    public void receiveMessages() {
+    public CompletableFuture<Room> joinRoom(String roomName) {
+        return joinRoom(roomName, true);
+    }
+
+    /**
+     * Joins a room without telling anyone: no hello, no heartbeats and no
+     * goodbye, so nobody sees us in the user list. We still ask for lost
+     * packets. The {@link HostHub} uses this, since it receives for the
+     * users on its computer but isn't a user itself.
+     *
+     * @param roomName The normalized name of the room (see {@link Room#normalizeName})
+     * @return A future with the room once we're listening to it
+     */
+    public CompletableFuture<Room> listenToRoom(String roomName) {
+        return joinRoom(roomName, false);
+    }
+
+    /**
+     * Hands the rooms' packets to a sink once they're decrypted, instead of
+     * reading them ourselves. Set it before joining any room.
+     *
+     * @param sink Gets the packets
+     */
+    public void setFrameSink(FrameSink sink) {
+        this.frameSink = sink;
+    }
+
+    /**
+     * Joins a room, and says hello unless we only listen.
+     */
+    private CompletableFuture<Room> joinRoom(String roomName, boolean announce) {
+        CompletableFuture<Room> joined = new CompletableFuture<>();
         try {
-            // Create a special socket for receiving multicast messages
-            MulticastSocket mcast = new MulticastSocket(PORT);
-            mcast.setReuseAddress(true);
-            mcast.setSoTimeout(0); // No timeout - wait forever for messages
-            
-            // We need to join the multicast group to receive messages
-            boolean joinedGroup = false;
-            
-            // First try to find the best network interface
-            NetworkInterface nif = findMulticastInterface();
-            if (nif != null) {
+            networkExecutor.execute(() -> {
                 try {
-                    // Try to join the multicast group on this interface
-                    InetSocketAddress groupAddress = new InetSocketAddress(group, PORT);
-                    mcast.joinGroup(groupAddress, nif);
-                    
-                    // Show detailed network information in the status bar
-                    try {
-                        // Get all IP addresses for this interface
-                        Enumeration<InetAddress> addresses = nif.getInetAddresses();
-                        StringBuilder ipInfo = new StringBuilder();
-                        while (addresses.hasMoreElements()) {
-                            InetAddress addr = addresses.nextElement();
-                            if (addr instanceof Inet4Address) {
-                                ipInfo.append(addr.getHostAddress()).append(" ");
-                            }
-                        }
-                        
-                        // Create a detailed status message
-                        String networkDetails = "Interface: " + nif.getDisplayName() + 
-                                              " | IP: " + ipInfo + 
-                                              " | Multicast: " + MULTICAST_GROUP + ":" + PORT +
-                                              " | MTU: " + nif.getMTU() +
-                                              " | MAC: " + formatMacAddress(nif.getHardwareAddress()) +
-                                              " | Speed: " + (nif.isVirtual() ? "Virtual" : "Physical") +
-                                              " | Status: " + (nif.isUp() ? "UP" : "DOWN") +
-                                              (nif.isLoopback() ? " (Loopback)" : "");
-                        chatWindow.updateNetworkStatus(networkDetails);
-                    } catch (Exception e) {
-                        // If we can't get detailed info, just show the interface name
-                        chatWindow.updateNetworkStatus(nif.getDisplayName());
+                    JoinedRoom existing = rooms.get(roomName);
+                    if (existing != null) {
+                        joined.complete(existing.room);
+                        return;
+                    }
+
+                    // Join the room's group on our interfaces; its packets are tagged with the room
+                    Room room = new Room(roomName);
+                    JoinedRoom joinedRoom = new JoinedRoom(room, announce);
+                    String joinStatus = transport.joinGroup(room, joinedRoom);
+
+                    // The first room shows its interface details in the status bar
+                    boolean firstRoom = rooms.isEmpty();
+                    if (firstRoom) {
+                        uiExecutor.execute(() -> listener.updateNetworkStatus(joinStatus));
+                    }
+                    System.out.println("Joined room #" + roomName + " at " +
+                                       room.getGroup().getHostAddress() + ":" + room.getPort());
+
+                    // Start receiving, then let everyone in the room know we're here
+                    rooms.put(roomName, joinedRoom);
+                    if (firstRoom) {
+                        System.out.println(describeSocketOptions());
                     }
-                    joinedGroup = true;
+                    if (!announce) {
+                        joined.complete(room);
+                        return;
+                    }
+                    sendHeartbeat(joinedRoom);
+                    // Ask the others who's here, so our user list fills in right away
+                    enqueue(joinedRoom, TrafficShaper.TrafficClass.CONTROL,
+                            WireProtocol.presenceFrame(WireProtocol.TYPE_ROSTER_REQUEST, nickname));
+                    sendFrame(WireProtocol.chatFrame(nickname, "joined"), joinedRoom, null);
+                    joined.complete(room);
                 } catch (Exception e) {
-                    System.err.println("Failed to join multicast group on interface " + nif.getDisplayName() + ": " + e.getMessage());
+                    joined.completeExceptionally(e);
                 }
-            }
-            
-            // If that didn't work, try the default interface
-            if (!joinedGroup) {
-                try {
-                    mcast.joinGroup(group);
-                    chatWindow.updateNetworkStatus("Default Network Interface");
-                    joinedGroup = true;
-                } catch (Exception e) {
-                    System.err.println("Failed to join multicast group on default interface: " + e.getMessage());
+            });
+        } catch (RejectedExecutionException e) {
+            // The network thread has already shut down
+            joined.completeExceptionally(e);
+        }
+        return joined;
+    }
+
+    /**
+     * Leaves a room: says goodbye to it, then leaves its multicast group, so
+     * its traffic no longer even reaches us. Safe to call from any thread.
+     *
+     * @param roomName The name of the room
+     * @return A future that completes once we've left
+     */
+    public CompletableFuture<Void> leaveRoom(String roomName) {
+        JoinedRoom room = rooms.remove(roomName);
+        if (room == null) {
+            return notInRoom(roomName);
+        }
+        if (!room.announced) {
+            // Nobody knows we're here, so we just stop listening
+            transport.leaveGroup(room.room);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // Send the goodbye right away, then leave the room's group
+        CompletableFuture<Void> goodbye = enqueue(room, TrafficShaper.TrafficClass.CONTROL,
+                                                  WireProtocol.presenceFrame(WireProtocol.TYPE_GOODBYE, nickname));
+        try {
+            networkExecutor.execute(() -> {
+                trafficShaper.releaseAll();
+                room.sendQueue.flush();
+            });
+        } catch (RejectedExecutionException e) {
+            // Already shut down - the goodbye has failed too
+        }
+        return goodbye.whenComplete((ignored, error) -> transport.leaveGroup(room.room));
+    }
+
+    /**
+     * Starts looking for lost packets from the network thread. Every few
+     * milliseconds the NACKs whose random back-off is over are sent.
+     */
+    private void startLossRepair() {
+        networkExecutor.scheduleWithFixedDelay(() -> {
+            // NACKs go to the room the packets are missing from
+            for (JoinedRoom room : rooms.values()) {
+                for (Map.Entry<Integer, int[]> nack : room.reliability.collectDueNacks().entrySet()) {
+                    enqueue(room, TrafficShaper.TrafficClass.CONTROL, WireProtocol.nackFrame(nack.getKey(), nack.getValue())).exceptionally(e -> {
+                        System.err.println("Error sending NACK: " + e.getMessage());
+                        return null;
+                    });
                 }
             }
-            
-            // If still not joined, try all interfaces one by one
-            if (!joinedGroup) {
-                Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
-                while (interfaces.hasMoreElements() && !joinedGroup) {
-                    NetworkInterface iface = interfaces.nextElement();
-                    if (iface.isUp() && iface.supportsMulticast()) {
-                        try {
-                            // Try to join on this interface
-                            InetSocketAddress groupAddress = new InetSocketAddress(group, PORT);
-                            mcast.joinGroup(groupAddress, iface);
-                            
-                            // Show detailed network information
-                            try {
-                                Enumeration<InetAddress> addresses = iface.getInetAddresses();
-                                StringBuilder ipInfo = new StringBuilder();
-                                while (addresses.hasMoreElements()) {
-                                    InetAddress addr = addresses.nextElement();
-                                    if (addr instanceof Inet4Address) {
-                                        ipInfo.append(addr.getHostAddress()).append(" ");
-                                    }
-                                }
-                                
-                                String networkDetails = "Interface: " + iface.getDisplayName() + 
-                                                      " | IP: " + ipInfo + 
-                                                      " | Multicast: " + MULTICAST_GROUP + ":" + PORT +
-                                                      " | MTU: " + iface.getMTU() +
-                                                      " | MAC: " + formatMacAddress(iface.getHardwareAddress()) +
-                                                      " | Speed: " + (iface.isVirtual() ? "Virtual" : "Physical") +
-                                                      " | Status: " + (iface.isUp() ? "UP" : "DOWN") +
-                                                      (iface.isLoopback() ? " (Loopback)" : "");
-                                chatWindow.updateNetworkStatus(networkDetails);
-                            } catch (Exception e) {
-                                chatWindow.updateNetworkStatus(iface.getDisplayName());
-                            }
-                            joinedGroup = true;
-                            break;
-                        } catch (Exception e) {
-                            // Continue to next interface
-                        }
-                    }
-                }
+        }, NACK_CHECK_INTERVAL, NACK_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends packets again that another user asked for with a NACK.
+     * They go out unchanged, with their original sequence numbers, so
+     * receivers that already have them drop them as duplicates.
+     * Runs on the network thread.
+     *
+     * @param room The room the packets were sent to
+     * @param sequences The packets that were asked for
+     */
+    private void retransmit(JoinedRoom room, int[] sequences) {
+        // Someone lost our packets - the network may be congested, so slow down
+        trafficShaper.onLossReported();
+        for (byte[] packet : room.reliability.packetsToRetransmit(sequences)) {
+            try {
+                transport.sendToGroup(room.room, ByteBuffer.wrap(packet));
+                trafficShaper.recordSent(packet.length);
+            } catch (IOException e) {
+                System.err.println("Error retransmitting packet: " + e.getMessage());
             }
-            
-            // If we couldn't join any group, show an error
-            if (!joinedGroup) {
-                chatWindow.updateNetworkStatus("ERROR: No multicast interface found | Status: Disconnected");
+        }
+    }
+
+    /**
+     * Describes how many packets were lost and repaired in a room, for the /stats command.
+     *
+     * @param roomName The room
+     * @return The statistics, or null if loss repair is turned off (or we're not in the room)
+     */
+    public String getReliabilityStats(String roomName) {
+        JoinedRoom room = rooms.get(roomName);
+        return room != null && room.reliability != null ? room.reliability.describe() : null;
+    }
+
+    /**
+     * Counts the users we can send private messages to directly, for the /stats command.
+     *
+     * @return The number of users with a known address
+     */
+    public int getDirectPeerCount() {
+        return peerDirectory.size();
+    }
+
+    /**
+     * Describes the receive pipeline, for the /stats command.
+     *
+     * @return How full each stage is and has been
+     */
+    public String getReceiveStats() {
+        return peerSessions.describe();
+    }
+
+    /**
+     * Tells how fast we've been sending over the last few seconds, for the /stats command.
+     *
+     * @return The send rate in bytes per second
+     */
+    public long getSendRate() {
+        return trafficShaper.getSendRate();
+    }
+
+    /**
+     * Tells how much we've slowed down because peers reported losses, for the /stats command.
+     *
+     * @return The share of the configured rate limits we use right now (0.1 to 1.0)
+     */
+    public double getRateFactor() {
+        return trafficShaper.getRateFactor();
+    }
+
+    /**
+     * Sends everything that is waiting right away, without pacing.
+     * Runs on the network thread.
+     */
+    private void flushAll() {
+        trafficShaper.releaseAll();
+        for (JoinedRoom room : rooms.values()) {
+            room.sendQueue.flush();
+        }
+    }
+
+    /**
+     * Stops the network thread. Anything still queued is sent first,
+     * then the transport, the receive workers and the packet trace are closed.
+     * Waits up to a second for that, so the trace is complete even if the
+     * program exits right after.
+     */
+    public void shutdown() {
+        networkExecutor.execute(() -> {
+            flushAll();
+            transport.close();
+            peerSessions.close();
+            if (trace != null) {
+                trace.close();
             }
+        });
+        networkExecutor.shutdown();
+        try {
+            networkExecutor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            // Let everyone know we've joined
-            sendMessage("joined");
-            
-            // Now start receiving messages in a loop
-            byte[] buffer = new byte[65536]; // Large buffer for encrypted messages
-            while (true) {
-                try {
-                    // Wait for a packet to arrive
-                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                    mcast.receive(packet);
-                    
-                    // Update statistics with the size of the received packet
-                    chatWindow.updateReceivedStatistics(packet.getLength());
-    
-                    // Convert the packet data to a string and decrypt it
-                    String encrypted = new String(packet.getData(), 0, packet.getLength());
-                    String plaintext = EncryptionUtils.decrypt(encrypted);
-
-                    // Handle different types of messages
-                    if (plaintext.startsWith("HEARTBEAT:")) {
-                        // This is a heartbeat message - update the user list
-                        String user = plaintext.substring("HEARTBEAT:".length());
-                        SwingUtilities.invokeLater(() -> chatWindow.addUserToList(user));
-                    } else if (plaintext.startsWith("GOODBYE:")) {
-                        // This is a goodbye message - remove the user from the list
-                        String user = plaintext.substring("GOODBYE:".length());
-                        SwingUtilities.invokeLater(() -> chatWindow.removeUserFromList(user));
-                    } else {
-                        // This is a regular chat message - add it to the chat
-                        SwingUtilities.invokeLater(() -> chatWindow.appendMessage(plaintext));
-                    }
-                } catch (SocketTimeoutException e) {
-                    // Timeout is normal, just continue
-                    continue;
-                } catch (Exception e) {
-                    // Log the error but keep receiving
-                    System.err.println("Error processing received packet: " + e.getMessage());
-                    
-                    // Don't show decryption errors to avoid cluttering the chat
-                    if (!e.getMessage().contains("Decryption failed") && 
-                        !e.getMessage().contains("padding") &&
-                        !e.getMessage().contains("bad key")) {
-                        chatWindow.appendSystemMessage("Network error: " + e.getMessage());
-                    }
-                }
+    /**
+     * Continuously listens for incoming messages, decrypts them,
+     * and updates the chat window. This runs in its own thread.
+     * The actual socket work is done by the {@link Transport}, which
+     * drains every queued datagram on each wakeup and hands them to us in batches.
+     */
+    public void receiveMessages() {
+        try {
+            // Everybody starts in the default room
+            joinRoom(Room.DEFAULT_ROOM).exceptionally(e -> {
+                String error = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
+                uiExecutor.execute(() -> listener.updateNetworkStatus("ERROR: " + error + " | Status: Disconnected"));
+                return null;
+            });
+
+            // Watch for gaps in what we receive and ask for lost packets
+            if (RELIABLE) {
+                startLossRepair();
             }
+
+            // Now start receiving messages - this only returns when the transport is closed
+            transport.run();
         } catch (Exception e) {
             // If something goes wrong with the whole receive loop
             e.printStackTrace();
-            chatWindow.updateNetworkStatus("ERROR: Connection failed | Exception: " + e.getClass().getSimpleName() + " | " + e.getMessage());
+            uiExecutor.execute(() -> listener.updateNetworkStatus("ERROR: Connection failed | Exception: " +
+                                                                   e.getClass().getSimpleName() + " | " + e.getMessage()));
         }
     }
-    
+
     /**
-     * Formats a MAC address as a readable string (like 00:11:22:33:44:55).
-     * 
-     * @param mac The MAC address bytes
-     * @return A formatted MAC address string
+     * Sorts a batch of received datagrams by sender and hands them to the
+     * senders' sessions, which the receive workers decrypt and read.
+     * Only the cheap checks on the plain header happen here.
+     *
+     * @param batch The datagrams drained by the receive engine
      */
-    private String formatMacAddress(byte[] mac) {
-        if (mac == null) {
-            return "Unknown";
-        }
-        
-        // Convert each byte to a hex value and join with colons
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < mac.length; i++) {
-            sb.append(String.format("%02X", mac[i]));
-            if (i < mac.length - 1) {
-                sb.append(":");
+    private void handleBatch(List<ReceiveEngine.Datagram> batch) {
+        int packetsReceived = 0;
+        long bytesReceived = 0;
+        for (ReceiveEngine.Datagram datagram : batch) {
+            // Record it exactly as it came in, before anything is skipped
+            if (trace != null) {
+                String roomName = datagram.tag instanceof JoinedRoom ? ((JoinedRoom) datagram.tag).room.getName() : null;
+                trace.record(roomName, datagram.source, datagram.data);
             }
+
+            // Read the plain header - skip anything that isn't ours.
+            // The packet is still in the transport's buffer; nothing is copied yet.
+            ByteBuffer data = datagram.data;
+            int size = data.remaining();
+            if (!WireProtocol.readHeader(data, header)) {
+                continue;
+            }
+
+            // Packets from a room's channel belong to that room; direct ones have no room
+            JoinedRoom room = datagram.tag instanceof JoinedRoom ? (JoinedRoom) datagram.tag : null;
+            boolean unicast = (header.flags & WireProtocol.FLAG_UNICAST) != 0;
+            if (room == null && !unicast) {
+                // Multicast that reached a sending socket, or a room we've just left
+                continue;
+            }
+
+            // Direct packets have their own sequence numbers and only arrive once,
+            // so they skip the duplicate and loss checks for the multicast stream
+            if (!unicast) {
+                // The same packet can arrive once per joined interface, again as a
+                // retransmission, and both directly and from the host hub while we
+                // switch between the two - keep only the first copy, before copying it anywhere
+                if (duplicateFilter.isDuplicate(header.senderId, header.sequence)) {
+                    continue;
+                }
+
+                // Look for gaps in the sender's sequence numbers (our own packets can't go missing).
+                // The hub asks for the packets it lost itself, so its packets only move our place on
+                if (room.reliability != null && header.senderId != room.streamId) {
+                    if (datagram.decoded) {
+                        room.reliability.onPacketRelayed(header.senderId, header.sequence);
+                    } else {
+                        room.reliability.onPacketReceived(header.senderId, header.sequence);
+                    }
+                }
+            }
+
+            // Copy the encrypted part out of the transport's buffer (which is reused
+            // for the next batch) and queue it for the sender's session
+            PeerSessions.Packet packet = peerSessions.acquire(data.remaining());
+            packet.tag = room;
+            // A bridge's copy comes from the bridge, so it doesn't tell us where the sender is
+            packet.source = (header.flags & WireProtocol.FLAG_RELAYED) != 0 ? null : datagram.source;
+            packet.flags = header.flags;
+            packet.senderId = header.senderId;
+            packet.sequence = header.sequence;
+            packet.decoded = datagram.decoded;
+            packet.data.put(data).flip();
+            peerSessions.dispatch(packet);
+
+            // Count the packet for the statistics
+            packetsReceived++;
+            bytesReceived += size;
+        }
+
+        if (packetsReceived > 0) {
+            int packets = packetsReceived;
+            long bytes = bytesReceived;
+            peerSessions.post(() -> listener.updateReceivedStatistics(packets, bytes));
         }
-        return sb.toString();
     }
-    
+
     /**
-     * Finds the best network interface for multicast communication.
-     * 
-     * @return The best network interface, or null if none found
+     * Decrypts and reads some packets of one sender's session, and collects
+     * the updates for the chat window. Runs on a receive worker, which only
+     * ever has the session to itself, so it can use the session's state freely.
+     *
+     * @param session The sender's session
+     * @param packets The packets, in the order they arrived
+     * @param updates Where to add the chat window updates
      */
-    private NetworkInterface findMulticastInterface() {
-        try {
-            // First try to find a regular network interface (not loopback)
-            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
-            while (interfaces.hasMoreElements()) {
-                NetworkInterface nif = interfaces.nextElement();
-                if (nif.isUp() && !nif.isLoopback() && nif.supportsMulticast()) {
-                    // Make sure it has an IPv4 address
-                    Enumeration<InetAddress> addresses = nif.getInetAddresses();
-                    while (addresses.hasMoreElements()) {
-                        InetAddress addr = addresses.nextElement();
-                        if (addr instanceof Inet4Address) {
-                            return nif;
-                        }
+    private void handlePackets(PeerSessions.Session session, List<PeerSessions.Packet> packets, List<Runnable> updates) {
+        for (PeerSessions.Packet packet : packets) {
+            int updatesBefore = updates.size();
+            try {
+                // Decrypt the frames in place, and decompress them if the sender compressed them.
+                // The host hub did that already for the packets it passes on.
+                ByteBuffer frames = packet.data;
+                if (!packet.decoded) {
+                    EncryptionUtils.decrypt(packet.data, packet.data);
+                    if ((packet.flags & WireProtocol.FLAG_COMPRESSED) != 0) {
+                        frames = WireProtocol.decompress(frames, MAX_PACKET_DATA);
                     }
                 }
+
+                // The hub passes room packets on instead of reading them
+                JoinedRoom room = (JoinedRoom) packet.tag;
+                FrameSink sink = frameSink;
+                if (sink != null && room != null) {
+                    sink.onFrames(room.room.getName(), packet.source, packet.flags, packet.senderId, packet.sequence, frames);
+                    continue;
+                }
+
+                // A packet may contain several frames packed by the sender's queue
+                readFrames(frames, room, session, packet.source, updates);
+            } catch (GeneralSecurityException e) {
+                // Don't show decryption errors to avoid cluttering the chat
+                System.err.println("Error decrypting received packet: " + e.getMessage());
+            } catch (DataFormatException | BufferUnderflowException | IllegalArgumentException e) {
+                // Same for damaged packets: drop the whole packet, including frames we already read from it
+                updates.subList(updatesBefore, updates.size()).clear();
+                System.err.println("Dropping damaged packet: " + e);
+            } catch (Exception e) {
+                // Log the error but keep receiving
+                System.err.println("Error processing received packet: " + e.getMessage());
+                String error = String.valueOf(e.getMessage());
+                updates.add(() -> listener.appendSystemMessage("Network error: " + error));
             }
-            
-            // If no regular interface works, try loopback as a last resort
-            interfaces = NetworkInterface.getNetworkInterfaces();
-            while (interfaces.hasMoreElements()) {
-                NetworkInterface nif = interfaces.nextElement();
-                if (nif.isUp() && nif.isLoopback() && nif.supportsMulticast()) {
-                    return nif;
+        }
+    }
+
+    /**
+     * Reads all frames from a decrypted packet (or a reassembled message)
+     * and turns them into updates for the chat window.
+     * The frames live in a buffer that's reused for the next packet, so the
+     * updates only keep copies. Chat text is kept as bytes and only decoded
+     * on the Swing thread, when it's shown.
+     *
+     * @param frames The frames, from position to limit
+     * @param room The room they were sent to, or null if they were sent directly to us
+     * @param session The session of the sender who sent them
+     * @param source The address the packet came from
+     * @param updates Where to add the chat window updates
+     * @throws DataFormatException If a compressed frame is damaged, or a frame is longer than the rest of the packet
+     */
+    private void readFrames(ByteBuffer frames, JoinedRoom room, PeerSessions.Session session, SocketAddress source,
+                            List<Runnable> updates)
+            throws DataFormatException {
+        while (frames.hasRemaining()) {
+            byte type = frames.get();
+            int length = WireProtocol.readVarint(frames);
+            if (length > frames.remaining()) {
+                throw new DataFormatException("Frame of " + length + " bytes in " + frames.remaining() + " remaining");
+            }
+            // A frame's fields can't be read past its end, into the next frame
+            int end = frames.position() + length;
+            int limit = frames.limit();
+            frames.limit(end);
+
+            // Handle different types of messages
+            if (type == WireProtocol.TYPE_CHAT && room != null) {
+                // This is a regular chat message - add it to the room's chat
+                String sender = session.nameCache.read(frames);
+                byte[] text = WireProtocol.readBytes(frames);
+                String roomName = room.room.getName();
+                updates.add(() -> listener.appendMessage(roomName, sender, new String(text, StandardCharsets.UTF_8)));
+                // Users skip heartbeats while they chat, so a message counts as one
+                peerDirectory.touch(sender, source);
+                room.roster.touch(sender);
+            } else if (type == WireProtocol.TYPE_HEARTBEAT && room != null) {
+                // This is a heartbeat message - update the room's user list
+                String user = session.nameCache.read(frames);
+                String roomName = room.room.getName();
+                updates.add(() -> listener.addUserToList(roomName, user));
+                // Newer clients also say how often they send heartbeats, so we know when to give up on them
+                long interval = frames.position() < end ? WireProtocol.readVarint(frames) * 1000L : 0;
+                // Heartbeats come from the user's sending socket, which is where private messages can go
+                peerDirectory.record(user, source, HeartbeatPolicy.expiryFor(interval));
+                room.roster.seen(user, HeartbeatPolicy.expiryFor(interval));
+            } else if (type == WireProtocol.TYPE_GOODBYE && room != null) {
+                // This is a goodbye message - remove the user from the room's list.
+                // If they're still in another room, its next heartbeat brings their address back.
+                String user = session.nameCache.read(frames);
+                String roomName = room.room.getName();
+                updates.add(() -> listener.removeUserFromList(roomName, user));
+                peerDirectory.forget(user);
+                room.roster.forget(user);
+                if (room.reliability != null) {
+                    room.reliability.forgetSender(session.senderId);
+                }
+            } else if (type == WireProtocol.TYPE_ROSTER_REQUEST && room != null) {
+                // Someone just joined and wants to know who's here - answer after a
+                // random wait, so only a few of us answer instead of everyone at once
+                String user = session.nameCache.read(frames);
+                long delay = user.equals(nickname) ? -1 : room.roster.onRequest();
+                if (delay >= 0) {
+                    try {
+                        networkExecutor.schedule(() -> sendRoster(room), delay, TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException e) {
+                        // We're shutting down - someone else will answer
+                    }
+                }
+            } else if (type == WireProtocol.TYPE_ROSTER && room != null) {
+                // A roster snapshot - add everyone in it to the room's list.
+                // Another user's answer also means we may not need to send ours.
+                if (session.senderId != room.streamId) {
+                    room.roster.onSnapshotSeen();
+                }
+                String roomName = room.room.getName();
+                while (frames.position() < end) {
+                    String user = session.nameCache.read(frames);
+                    updates.add(() -> listener.addUserToList(roomName, user));
+                }
+            } else if (type == WireProtocol.TYPE_FRAGMENT) {
+                // A piece of a big message - read it once all pieces are here
+                int messageId = frames.getInt();
+                int index = frames.getShort() & 0xFFFF;
+                int count = frames.getShort() & 0xFFFF;
+                byte[] piece = new byte[end - frames.position()];
+                frames.get(piece);
+                byte[] message = session.reassembler.add(session.senderId, messageId, index, count, piece);
+                if (message != null) {
+                    readFrames(ByteBuffer.wrap(message), room, session, source, updates);
+                }
+            } else if (type == WireProtocol.TYPE_PRIVATE) {
+                // A private message - only show it if it's for us
+                // (it may have been multicast if the sender didn't know our address)
+                String sender = session.nameCache.read(frames);
+                String target = session.nameCache.read(frames);
+                if (target.equals(nickname)) {
+                    byte[] text = WireProtocol.readBytes(frames);
+                    updates.add(() -> listener.appendPrivateMessage(sender, target, new String(text, StandardCharsets.UTF_8)));
+                }
+            } else if (type == WireProtocol.TYPE_COMPRESSED) {
+                // A big message that was compressed as a whole - unpack it and read what's inside
+                ByteBuffer body = frames.duplicate();
+                body.limit(end);
+                readFrames(WireProtocol.decompress(body, MAX_MESSAGE_SIZE), room, session, source, updates);
+            } else if (type == WireProtocol.TYPE_NACK && room != null && room.reliability != null) {
+                // Someone is missing packets - either ours, so we resend them,
+                // or another sender's, so we hold back our own NACK for them
+                int target = frames.getInt();
+                int[] sequences = WireProtocol.readSequences(frames);
+                if (target == room.streamId) {
+                    try {
+                        networkExecutor.execute(() -> retransmit(room, sequences));
+                    } catch (RejectedExecutionException e) {
+                        // We're shutting down - nothing to repair anymore
+                    }
+                } else {
+                    room.reliability.onNackSeen(target, sequences);
                 }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+
+            // Skip to the next frame (this also skips types we don't know yet)
+            frames.limit(limit).position(end);
         }
-        
-        // If we couldn't find any suitable interface
-        return null;
     }
 }
@@ -0,0 +1,87 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Turns the nicknames in received packets into Strings without creating a
+ * new String for every packet.
+ *
+ * Most of what we receive are heartbeats, and they carry the same few
+ * nicknames over and over. Decoding the UTF-8 bytes into a new String every
+ * time would create garbage for nothing, so we remember the String for each
+ * name we've seen and hand out the same one whenever its bytes show up again.
+ *
+ * The cache is a small table indexed by a hash of the bytes. If two names
+ * land in the same slot, the newer one replaces the older one, which then
+ * just gets decoded again the next time it's seen.
+ *
+ * Every sender has its own cache in its {@link PeerSessions} session, and only
+ * one receive worker at a time runs that session, so it's not synchronized.
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class NameCache {
+    // Number of slots - a power of two, so the hash can be masked
+    private static final int SIZE = 256;
+
+    private final byte[][] keys = new byte[SIZE][];   // The UTF-8 bytes of each cached name
+    private final String[] values = new String[SIZE]; // The decoded names
+
+    /**
+     * Reads a length-prefixed UTF-8 name from a buffer.
+     *
+     * @param in The buffer, positioned at the field
+     * @return The name, shared with earlier packets that carried the same bytes
+     * @throws BufferUnderflowException If the field runs past the end of the buffer
+     */
+    public String read(ByteBuffer in) {
+        int length = WireProtocol.readVarint(in);
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        int start = in.position();
+        in.position(start + length);
+
+        // Look in the slot for these bytes
+        int slot = hash(in, start, length) & (SIZE - 1);
+        byte[] key = keys[slot];
+        if (key != null && matches(key, in, start)) {
+            return values[slot];
+        }
+
+        // Not cached yet - decode it once and remember it
+        key = new byte[length];
+        in.get(start, key);
+        String name = new String(key, StandardCharsets.UTF_8);
+        keys[slot] = key;
+        values[slot] = name;
+        return name;
+    }
+
+    /**
+     * Hashes bytes in a buffer (FNV-1a), without moving its position.
+     */
+    private static int hash(ByteBuffer in, int start, int length) {
+        int hash = 0x811C9DC5;
+        for (int i = start; i < start + length; i++) {
+            hash = (hash ^ in.get(i)) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Checks whether the bytes in a buffer are the same as a cached key.
+     */
+    private static boolean matches(byte[] key, ByteBuffer in, int start) {
+        if (key.length != in.position() - start) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] != in.get(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,343 @@
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A recording of every datagram we received, so a burst that made a floor
+ * lag can be replayed later with {@link TraceReplay}.
+ *
+ * The file is written through a memory map, so recording costs about as
+ * much as a copy: no system call per datagram, and the operating system
+ * writes the pages out in the background. It starts with an 8 byte magic
+ * ("LC32TRC1") and the wall-clock time the recording started (8 bytes,
+ * milliseconds), followed by records:
+ * <ul>
+ *   <li>a room: kind 2, room id (1 byte), name length (1 byte), name</li>
+ *   <li>a datagram: kind 1, nanoseconds since the previous datagram
+ *       (varint), room id (0 if it was sent straight to us), source IPv4
+ *       address and port (6 bytes), length (varint), the raw bytes</li>
+ * </ul>
+ * A room record comes before the first datagram of that room. A zero byte
+ * ends the trace, so a recording that was cut off by a crash can still be read.
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class PacketTrace {
+    private static final byte[] MAGIC = "LC32TRC1".getBytes(StandardCharsets.US_ASCII);
+    private static final int FILE_HEADER_SIZE = 16;
+    private static final byte KIND_DATAGRAM = 1;
+    private static final byte KIND_ROOM = 2;
+    private static final int MAX_RECORD_OVERHEAD = 1 + 10 + 1 + 6 + 5; // Everything but the datagram's bytes
+    private static final int MAX_ROOMS = 255;
+
+    /**
+     * Records datagrams into a trace file. Only the receive thread writes.
+     */
+    public static final class Writer {
+        private static final long SEGMENT_SIZE = 16 << 20; // How much of the file we map at a time
+
+        private final FileChannel file;
+        private final long maxBytes;                          // Stop recording once the file is this big
+        private final Map<String, Integer> roomIds = new HashMap<>();
+        private MappedByteBuffer segment;                     // The part of the file we're writing into
+        private long segmentStart;                            // Where that part starts in the file
+        private long lastNanos;                               // Time of the previous datagram
+        private long datagrams;
+        private boolean full = false;
+        private boolean closed = false;
+
+        /**
+         * Creates (or overwrites) a trace file.
+         *
+         * @param path Where to write it
+         * @param maxBytes The largest the file may get; later datagrams aren't recorded
+         * @throws IOException If the file can't be created
+         */
+        public Writer(Path path, long maxBytes) throws IOException {
+            this.file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                         StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.maxBytes = Math.max(FILE_HEADER_SIZE + MAX_RECORD_OVERHEAD, maxBytes);
+            this.segment = file.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(SEGMENT_SIZE, this.maxBytes));
+            this.segmentStart = 0;
+            this.lastNanos = System.nanoTime();
+            segment.put(MAGIC);
+            segment.putLong(System.currentTimeMillis());
+        }
+
+        /**
+         * Records one datagram.
+         *
+         * @param room The name of the room it arrived for, or null if it was sent straight to us
+         * @param source Who sent it
+         * @param data The raw bytes, from position to limit (the position isn't moved)
+         */
+        public synchronized void record(String room, SocketAddress source, ByteBuffer data) {
+            if (closed || full) {
+                return;
+            }
+            long now = System.nanoTime();
+            int roomId = room == null ? 0 : roomId(room);
+            if (roomId < 0 || !ensureSpace(MAX_RECORD_OVERHEAD + data.remaining())) {
+                return;
+            }
+
+            segment.put(KIND_DATAGRAM);
+            writeVarLong(segment, Math.max(0, now - lastNanos));
+            lastNanos = now;
+            segment.put((byte) roomId);
+            writeAddress(segment, source);
+            WireProtocol.writeVarint(segment, data.remaining());
+            segment.put(data.duplicate());
+            datagrams++;
+        }
+
+        /**
+         * Counts the datagrams recorded so far.
+         *
+         * @return The number of datagrams
+         */
+        public synchronized long getDatagramCount() {
+            return datagrams;
+        }
+
+        /**
+         * Writes everything out and cuts the file to what was recorded.
+         */
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                long end = segmentStart + segment.position();
+                segment.force();
+                file.truncate(end);
+                file.close();
+                System.out.println("Packet trace: recorded " + datagrams + " datagrams, " + end + " bytes");
+            } catch (IOException e) {
+                System.err.println("Error closing packet trace: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Finds the id of a room, writing its record first if it's new.
+         *
+         * @return The id, or -1 if there are too many rooms or no space
+         */
+        private int roomId(String room) {
+            Integer id = roomIds.get(room);
+            if (id != null) {
+                return id;
+            }
+            byte[] name = room.getBytes(StandardCharsets.UTF_8);
+            if (roomIds.size() >= MAX_ROOMS || name.length > 255 || !ensureSpace(3 + name.length)) {
+                return -1;
+            }
+            id = roomIds.size() + 1;
+            roomIds.put(room, id);
+            segment.put(KIND_ROOM);
+            segment.put((byte) (int) id);
+            segment.put((byte) name.length);
+            segment.put(name);
+            return id;
+        }
+
+        /**
+         * Makes sure the next record fits into the mapped part of the file,
+         * mapping the next part if needed.
+         *
+         * @return False if the file has reached its size limit
+         */
+        private boolean ensureSpace(int size) {
+            if (segment.remaining() > size) { // Always leave room for the end marker
+                return true;
+            }
+            long position = segmentStart + segment.position();
+            long length = Math.min(SEGMENT_SIZE, maxBytes - position);
+            if (length <= size) {
+                full = true;
+                System.err.println("Packet trace is full (" + maxBytes + " bytes) - no longer recording");
+                return false;
+            }
+            try {
+                // The old part is written out by the operating system; no need to wait for it
+                segment = file.map(FileChannel.MapMode.READ_WRITE, position, length);
+                segmentStart = position;
+                return true;
+            } catch (IOException e) {
+                full = true;
+                System.err.println("Error growing packet trace: " + e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    /**
+     * One datagram read back from a trace.
+     */
+    public static final class Record {
+        public long nanos;            // When it arrived, in nanoseconds since the first datagram
+        public String room;           // The room it arrived for, or null if it was sent straight to us
+        public SocketAddress source;  // Who sent it
+        public ByteBuffer data;       // The raw bytes (a view into the file)
+    }
+
+    /**
+     * Reads a trace file, one datagram at a time.
+     */
+    public static final class Reader {
+        private final ByteBuffer buffer;
+        private final long startMillis;
+        private final Map<Integer, String> rooms = new HashMap<>();
+        private long nanos = -1;
+
+        /**
+         * Opens a trace file. The whole file is mapped, read-only.
+         *
+         * @param path The trace file
+         * @throws IOException If it can't be read or isn't a trace
+         */
+        public Reader(Path path) throws IOException {
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+                this.buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+            }
+            byte[] magic = new byte[MAGIC.length];
+            if (buffer.remaining() < FILE_HEADER_SIZE) {
+                throw new IOException(path + " is not a packet trace");
+            }
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(path + " is not a packet trace");
+            }
+            this.startMillis = buffer.getLong();
+        }
+
+        /**
+         * Gets the wall-clock time the recording started.
+         *
+         * @return Milliseconds since 1970
+         */
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        /**
+         * Reads the next datagram into a record.
+         *
+         * @param record The record to fill in (reused by the caller)
+         * @return False at the end of the trace
+         */
+        public boolean next(Record record) {
+            while (buffer.hasRemaining()) {
+                byte kind = buffer.get();
+                if (kind == KIND_ROOM) {
+                    int id = buffer.get() & 0xFF;
+                    byte[] name = new byte[buffer.get() & 0xFF];
+                    buffer.get(name);
+                    rooms.put(id, new String(name, StandardCharsets.UTF_8));
+                } else if (kind == KIND_DATAGRAM) {
+                    long delta = readVarLong(buffer);
+                    nanos = nanos < 0 ? 0 : nanos + delta; // The first datagram is time zero
+                    int roomId = buffer.get() & 0xFF;
+                    record.nanos = nanos;
+                    record.room = roomId == 0 ? null : rooms.get(roomId);
+                    record.source = readAddress(buffer);
+                    int length = WireProtocol.readVarint(buffer);
+                    record.data = buffer.duplicate();
+                    record.data.limit(buffer.position() + length);
+                    buffer.position(buffer.position() + length);
+                    return true;
+                } else {
+                    return false; // The end marker, or a trace that was cut off
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Lists the rooms in the trace, without moving on.
+         *
+         * @return The room names, in the order they first appear
+         */
+        public List<String> scanRooms() {
+            List<String> names = new ArrayList<>();
+            ByteBuffer scan = buffer.duplicate();
+            while (scan.hasRemaining()) {
+                byte kind = scan.get();
+                if (kind == KIND_ROOM) {
+                    scan.get();
+                    byte[] name = new byte[scan.get() & 0xFF];
+                    scan.get(name);
+                    names.add(new String(name, StandardCharsets.UTF_8));
+                } else if (kind == KIND_DATAGRAM) {
+                    readVarLong(scan);
+                    scan.position(scan.position() + 7); // Room id and address
+                    int length = WireProtocol.readVarint(scan);
+                    scan.position(scan.position() + length);
+                } else {
+                    break;
+                }
+            }
+            return names;
+        }
+    }
+
+    private static void writeVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Writes an IPv4 address and port in 6 bytes (zeros for anything else).
+     */
+    private static void writeAddress(ByteBuffer out, SocketAddress source) {
+        if (source instanceof InetSocketAddress && ((InetSocketAddress) source).getAddress() instanceof Inet4Address) {
+            InetSocketAddress address = (InetSocketAddress) source;
+            out.put(address.getAddress().getAddress());
+            out.putShort((short) address.getPort());
+        } else {
+            out.putInt(0);
+            out.putShort((short) 0);
+        }
+    }
+
+    private static SocketAddress readAddress(ByteBuffer in) {
+        byte[] ip = new byte[4];
+        in.get(ip);
+        int port = in.getShort() & 0xFFFF;
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(ip), port);
+        } catch (IOException e) {
+            return null; // Can't happen with four bytes
+        }
+    }
+}
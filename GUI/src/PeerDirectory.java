@@ -0,0 +1,107 @@
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers where each user can be reached directly.
+ *
+ * Every user multicasts a heartbeat from its sending socket, so the source
+ * address of a heartbeat is an address we can send to with plain unicast.
+ * That lets private messages go straight to the one user they are for,
+ * instead of being multicast to (and decrypted by) everyone in the group.
+ *
+ * Entries expire when a user's heartbeats stop, so we never send private
+ * messages into the void for long. Users in big groups send heartbeats less
+ * often, so each entry expires after the number of heartbeats set in
+ * {@link HeartbeatPolicy}, using the interval the user announced.
+ *
+ * The receive thread fills the directory, and the network and Swing threads
+ * look things up, so it's backed by a ConcurrentHashMap.
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class PeerDirectory {
+    /**
+     * Where one user was last heard from.
+     */
+    private static final class Peer {
+        final SocketAddress address; // Source address of the user's heartbeats
+        final long lastSeen;         // When we last heard from the user
+        final long expiry;           // How long to trust the address without hearing from the user
+
+        Peer(SocketAddress address, long lastSeen, long expiry) {
+            this.address = address;
+            this.lastSeen = lastSeen;
+            this.expiry = expiry;
+        }
+
+        boolean isExpired(long now) {
+            return now - lastSeen > expiry;
+        }
+    }
+
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+
+    /**
+     * Records where a heartbeat from a user came from.
+     *
+     * @param nickname The user's nickname
+     * @param address The source address of the heartbeat
+     * @param expiry How long to keep the address if we don't hear from the user again (ms)
+     */
+    public void record(String nickname, SocketAddress address, long expiry) {
+        peers.put(nickname, new Peer(address, System.currentTimeMillis(), expiry));
+    }
+
+    /**
+     * Records that a user is still here because they sent a chat message.
+     * Users skip heartbeats while they're chatting, so this keeps their entry alive.
+     *
+     * @param nickname The user's nickname
+     * @param address The source address of the message
+     */
+    public void touch(String nickname, SocketAddress address) {
+        long now = System.currentTimeMillis();
+        peers.compute(nickname, (name, old) ->
+            new Peer(address, now, old != null ? old.expiry : HeartbeatPolicy.expiryFor(0)));
+    }
+
+    /**
+     * Looks up where to send a private message for a user.
+     *
+     * @param nickname The user's nickname
+     * @return The user's address, or null if we don't know it (or it's too old to trust)
+     */
+    public SocketAddress lookup(String nickname) {
+        Peer peer = peers.get(nickname);
+        if (peer == null) {
+            return null;
+        }
+        if (peer.isExpired(System.currentTimeMillis())) {
+            peers.remove(nickname, peer);
+            return null;
+        }
+        return peer.address;
+    }
+
+    /**
+     * Forgets a user, e.g. after it said goodbye.
+     *
+     * @param nickname The user's nickname
+     */
+    public void forget(String nickname) {
+        peers.remove(nickname);
+    }
+
+    /**
+     * Counts the users we can currently reach directly.
+     *
+     * @return The number of known addresses
+     */
+    public int size() {
+        long now = System.currentTimeMillis();
+        peers.values().removeIf(peer -> peer.isExpired(now));
+        return peers.size();
+    }
+}
@@ -0,0 +1,376 @@
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The receive pipeline: processes received packets with one session per
+ * sender, on a pool of worker threads, connected by lock-free ring buffers.
+ *
+ * There are three stages:
+ * <ol>
+ *   <li>The receive thread only reads the plain header of each packet,
+ *       copies it into a preallocated packet from the pool and puts it into
+ *       the mailbox of the sender's session. If the session isn't waiting
+ *       for a worker already, it goes into the ready queue.</li>
+ *   <li>The workers ({@code receive.workers}, one per core by default) take
+ *       sessions from the ready queue and do the slow work for a handful of
+ *       their packets - decrypting, decompressing, reassembling and reading
+ *       the frames. A session is only ever run by one worker at a time, so
+ *       a sender's packets are handled in order, and everything a session
+ *       keeps per sender (name cache, reassembler) needs no locks. Packets
+ *       are decrypted in place, so a session costs next to nothing, even
+ *       with hundreds of senders.</li>
+ *   <li>The updates for the UI go into one more queue, and the dispatcher
+ *       hands everything waiting there to the UI thread in one hop, in the
+ *       order the workers finished. Every sender's updates stay in order.</li>
+ * </ol>
+ *
+ * Nothing waits without a limit. When the packet pool is empty, the receive
+ * thread waits for the workers to give packets back, and meanwhile new
+ * datagrams pile up in the socket buffer. When the UI queue is full, the
+ * workers wait for the UI. A sender whose mailbox is full loses the packet,
+ * like a full socket buffer would, without holding up the other senders.
+ * {@link #describe()} shows how full each stage is and has been.
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class PeerSessions {
+    // Settings (see Config)
+    private static final int WORKERS = Math.max(1, Config.getInt("receive.workers",              // Decrypt/parse threads
+                                                                 Runtime.getRuntime().availableProcessors()));
+    private static final int IN_FLIGHT = Math.max(16, Config.getInt("receive.inflight", 1024));  // Packets in the pipeline at once
+    private static final int MAILBOX_SIZE = Math.max(2, Config.getInt("session.mailbox", 512));  // Packets a session can have waiting; more are dropped
+    private static final long IDLE_MILLIS = Config.getLong("session.idle", 30000);              // Forget a session after this long without packets
+
+    private static final int POOLED_BUFFER_SIZE = 2048; // Big enough for any packet that fits into the MTU
+    private static final int MAX_PACKETS_PER_TURN = 64; // Then the session goes to the back of the line, so one busy sender can't hog a worker
+    private static final int READY_QUEUE_SIZE = 4096;   // Sessions waiting for a worker
+    private static final int UI_QUEUE_SIZE = 1024;      // Batches of updates waiting for the UI thread
+    private static final long WAIT_NANOS = 50_000;      // How long to pause when the next stage is full
+    private static final long SWEEP_INTERVAL_MILLIS = 5000; // How often we look for idle sessions
+
+    /**
+     * Does the actual work for a session's packets, on a worker thread.
+     */
+    public interface Handler {
+        /**
+         * Handles some packets of a session.
+         *
+         * @param session The session they belong to
+         * @param packets The packets, in the order they arrived; they go back to the pool afterwards
+         * @param updates Where to add updates for the UI thread
+         */
+        void handle(Session session, List<Packet> packets, List<Runnable> updates);
+    }
+
+    /**
+     * A received packet waiting in a session's mailbox.
+     * The receive thread fills it in; it goes back to the pool once it's handled.
+     */
+    public static final class Packet {
+        public Object tag;            // Tag of the channel it arrived on
+        public SocketAddress source;  // Who sent it
+        public byte flags;            // Flags from the packet header
+        public int senderId;          // Sender id from the packet header
+        public int sequence;          // Sequence number from the packet header
+        public boolean decoded;       // The data is already decrypted and decompressed (from the host hub)
+        public final ByteBuffer data; // The encrypted part, from position to limit; the handler may decrypt it in place
+
+        Packet(int capacity) {
+            this.data = ByteBuffer.allocate(capacity);
+        }
+    }
+
+    /**
+     * Everything we keep for one sender.
+     */
+    public final class Session {
+        public final int senderId;                               // The sender this session is for
+        public final NameCache nameCache = new NameCache();      // Nicknames this sender has sent
+        public final Reassembler reassembler = new Reassembler(); // This sender's fragmented messages
+        private final RingBuffer<Packet> mailbox = new RingBuffer<>(MAILBOX_SIZE); // Written by the receive thread only
+        private final AtomicBoolean scheduled = new AtomicBoolean(); // In the ready queue or being run by a worker
+        private long lastPacket;                                 // When the last packet came in (receive thread only)
+
+        Session(int senderId) {
+            this.senderId = senderId;
+        }
+    }
+
+    /**
+     * A worker thread, plus the flag that tells whether it's asleep waiting for work.
+     */
+    private final class Worker extends Thread {
+        final AtomicBoolean parked = new AtomicBoolean();
+        final List<Packet> packets = new ArrayList<>(MAX_PACKETS_PER_TURN); // Reused for every turn
+
+        Worker(int number) {
+            super("Receive-Worker-" + number);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                Session session = readyQueue.poll();
+                if (session != null) {
+                    runSession(session, packets);
+                    continue;
+                }
+
+                // Nothing to do - say we're asleep, look once more, then sleep until woken up
+                parked.set(true);
+                idleWorkers.offer(this);
+                session = readyQueue.poll();
+                if (session != null) {
+                    parked.set(false); // Our entry in idleWorkers is now stale and will be skipped
+                    runSession(session, packets);
+                    continue;
+                }
+                while (parked.get() && !closed) {
+                    LockSupport.park(this);
+                }
+            }
+        }
+    }
+
+    // Stages
+    private final RingBuffer<Packet> pool = new RingBuffer<>(IN_FLIGHT);             // Free packets
+    private final RingBuffer<Session> readyQueue = new RingBuffer<>(READY_QUEUE_SIZE); // Sessions with packets waiting
+    private final RingBuffer<Runnable> uiQueue = new RingBuffer<>(UI_QUEUE_SIZE);    // Updates waiting for the UI thread
+    private final Queue<Worker> idleWorkers = new ConcurrentLinkedQueue<>();         // Workers that may be asleep
+    private final AtomicBoolean uiDrainPosted = new AtomicBoolean();                 // Is a UI drain already on its way?
+    private final Map<Integer, Session> sessions = new ConcurrentHashMap<>();        // Sessions by sender id
+    private final List<Worker> workers = new ArrayList<>(WORKERS);
+    private volatile boolean closed = false;
+
+    // Counters for the statistics
+    private final AtomicLong droppedPackets = new AtomicLong(); // Lost because a mailbox was full
+    private final AtomicLong readerWaits = new AtomicLong();    // Times the receive thread waited for free packets
+    private final AtomicLong workerWaits = new AtomicLong();    // Times a worker waited for the UI
+
+    private final Handler handler;
+    private final Executor uiExecutor;
+    private long lastSweep = System.currentTimeMillis(); // Receive thread only
+
+    /**
+     * Creates the pipeline and starts its workers.
+     *
+     * @param handler Does the work for each session's packets
+     * @param uiExecutor Runs the updates on the UI thread (like SwingUtilities::invokeLater)
+     */
+    public PeerSessions(Handler handler, Executor uiExecutor) {
+        this.handler = handler;
+        this.uiExecutor = uiExecutor;
+
+        // Fill the pool up front, so receiving doesn't allocate
+        for (int i = 0; i < pool.capacity(); i++) {
+            pool.offer(new Packet(POOLED_BUFFER_SIZE));
+        }
+        for (int i = 0; i < WORKERS; i++) {
+            Worker worker = new Worker(i);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Gets an empty packet that can hold the given number of bytes. If the
+     * pool is empty, this waits until the workers give one back.
+     * Called by the receive thread.
+     *
+     * @param size The size of the encrypted part
+     * @return A packet with a cleared buffer
+     */
+    public Packet acquire(int size) {
+        if (size > POOLED_BUFFER_SIZE) {
+            // Rare: a packet bigger than the MTU - don't keep its buffer
+            return new Packet(size);
+        }
+        Packet packet = pool.poll();
+        while (packet == null) {
+            // Every packet is somewhere in the pipeline - let the workers catch up
+            readerWaits.incrementAndGet();
+            LockSupport.parkNanos(WAIT_NANOS);
+            packet = pool.poll();
+        }
+        packet.data.clear();
+        return packet;
+    }
+
+    /**
+     * Hands a filled-in packet to its sender's session.
+     * Called by the receive thread only, so a sender's packets stay in order.
+     *
+     * @param packet The packet, with its data flipped for reading
+     */
+    public void dispatch(Packet packet) {
+        long now = System.currentTimeMillis();
+        Session session = sessions.computeIfAbsent(packet.senderId, Session::new);
+        session.lastPacket = now;
+        if (!session.mailbox.offer(packet)) {
+            // The sender is faster than we can handle - drop it like a full socket buffer would
+            droppedPackets.incrementAndGet();
+            release(packet);
+        }
+        if (session.scheduled.compareAndSet(false, true)) {
+            makeReady(session);
+        }
+
+        if (now - lastSweep > SWEEP_INTERVAL_MILLIS) {
+            lastSweep = now;
+            sweepIdleSessions(now);
+        }
+    }
+
+    /**
+     * Queues an update for the UI thread behind everything already waiting.
+     *
+     * @param update The update
+     */
+    public void post(Runnable update) {
+        while (!uiQueue.offer(update)) {
+            // The UI can't keep up - wait for it, so memory use stays bounded
+            workerWaits.incrementAndGet();
+            postUiDrain();
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+        postUiDrain();
+    }
+
+    /**
+     * Describes how busy each stage is, for the /stats command.
+     *
+     * @return One line per stage: waiting now, most ever, capacity
+     */
+    public String describe() {
+        int inFlight = pool.capacity() - pool.size();
+        return "Receive pipeline: " + WORKERS + " workers, " + sessions.size() + " sessions\n" +
+               "  packets in flight: " + inFlight + "/" + pool.capacity() + ", receive thread waited " + readerWaits.get() + " times\n" +
+               "  ready queue: " + readyQueue.size() + " (max " + readyQueue.maxDepth() + ")/" + readyQueue.capacity() + "\n" +
+               "  UI queue: " + uiQueue.size() + " (max " + uiQueue.maxDepth() + ")/" + uiQueue.capacity() +
+               ", workers waited " + workerWaits.get() + " times\n" +
+               "  dropped (mailbox full): " + droppedPackets.get();
+    }
+
+    /**
+     * Stops the workers once they've finished their current turn. Packets
+     * still waiting in the mailboxes are dropped.
+     */
+    public void close() {
+        closed = true;
+        for (Worker worker : workers) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    /**
+     * Puts a session into the ready queue and wakes up a sleeping worker.
+     */
+    private void makeReady(Session session) {
+        while (!readyQueue.offer(session)) {
+            // Only possible with thousands of busy senders
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+        Worker worker;
+        while ((worker = idleWorkers.poll()) != null) {
+            if (worker.parked.compareAndSet(true, false)) {
+                LockSupport.unpark(worker);
+                return;
+            }
+            // A stale entry - that worker found work on its own
+        }
+    }
+
+    /**
+     * Runs one turn of a session on a worker thread: handles up to
+     * {@link #MAX_PACKETS_PER_TURN} packets, then gives the session back.
+     */
+    private void runSession(Session session, List<Packet> packets) {
+        Packet packet;
+        while (packets.size() < MAX_PACKETS_PER_TURN && (packet = session.mailbox.poll()) != null) {
+            packets.add(packet);
+        }
+
+        List<Runnable> updates = new ArrayList<>();
+        try {
+            handler.handle(session, packets, updates);
+        } catch (RuntimeException e) {
+            System.err.println("Error handling packets from sender " + session.senderId + ": " + e.getMessage());
+        } finally {
+            for (Packet done : packets) {
+                release(done);
+            }
+            packets.clear();
+        }
+        // Queue the updates before letting the session go, so the sender's updates stay in order
+        if (!updates.isEmpty()) {
+            post(() -> updates.forEach(Runnable::run));
+        }
+
+        // Let the session go; if more packets came in meanwhile, it gets back in line
+        session.scheduled.set(false);
+        if (!session.mailbox.isEmpty() && session.scheduled.compareAndSet(false, true)) {
+            makeReady(session);
+        }
+    }
+
+    /**
+     * Makes sure a UI drain is on its way if anything is waiting for the UI thread.
+     */
+    private void postUiDrain() {
+        if (!uiQueue.isEmpty() && uiDrainPosted.compareAndSet(false, true)) {
+            uiExecutor.execute(this::drainUiQueue);
+        }
+    }
+
+    /**
+     * Runs every update that's waiting, on the UI thread.
+     */
+    private void drainUiQueue() {
+        Runnable update;
+        while ((update = uiQueue.poll()) != null) {
+            update.run();
+        }
+        uiDrainPosted.set(false);
+        postUiDrain(); // In case something came in after we looked
+    }
+
+    /**
+     * Forgets sessions that haven't had packets for a while, so senders that
+     * left don't keep their buffers forever. Only the receive thread adds
+     * packets, so a session that's empty and not scheduled can't get busy
+     * while we remove it.
+     */
+    private void sweepIdleSessions(long now) {
+        Iterator<Session> iterator = sessions.values().iterator();
+        while (iterator.hasNext()) {
+            Session session = iterator.next();
+            if (now - session.lastPacket > IDLE_MILLIS && !session.scheduled.get() && session.mailbox.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Puts a packet back into the pool, if it came from there.
+     */
+    private void release(Packet packet) {
+        packet.tag = null;
+        packet.source = null;
+        if (packet.data.capacity() == POOLED_BUFFER_SIZE) {
+            pool.offer(packet);
+        }
+    }
+}
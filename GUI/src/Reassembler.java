@@ -0,0 +1,135 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Puts fragmented messages back together on the receiving side.
+ *
+ * Big messages, like code pastes or logs, are cut into fragments that each
+ * fit into one packet. This class collects the pieces until the message is
+ * complete. So that lost fragments can't make us hold on to memory forever,
+ * incomplete messages are dropped after a timeout, and the total amount of
+ * buffered data is capped - the oldest message is dropped first.
+ *
+ * Every sender has its own reassembler in its {@link PeerSessions} session,
+ * and only one receive worker at a time runs that session, so it isn't synchronized.
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class Reassembler {
+    // Limits that keep the table from growing without bound
+    private static final long TIMEOUT_MILLIS = 10000;             // Drop messages still incomplete after 10 seconds
+    private static final long MAX_BUFFERED_BYTES = Config.getLong("reassembly.maxbytes", 8L * 1024 * 1024); // Keep at most 8 MB of pieces
+    private static final long PURGE_INTERVAL_MILLIS = 1000;        // How often we look for timed out messages
+
+    /**
+     * The pieces of one message that we've received so far.
+     */
+    private static final class Partial {
+        final byte[][] pieces;   // The pieces, by index (null until received)
+        final long firstSeen;    // When the first piece arrived
+        int received = 0;        // How many pieces we have
+        int bytes = 0;           // How many bytes they add up to
+
+        Partial(int count, long now) {
+            this.pieces = new byte[count][];
+            this.firstSeen = now;
+        }
+    }
+
+    // Incomplete messages, keyed by sender id and message id.
+    // LinkedHashMap keeps them in arrival order, so the oldest is first.
+    private final Map<Long, Partial> partials = new LinkedHashMap<>();
+    private long bufferedBytes = 0;   // Bytes held by all incomplete messages
+    private long lastPurge = 0;       // When we last dropped timed out messages
+
+    /**
+     * Adds a received fragment.
+     *
+     * @param senderId Who sent the fragment
+     * @param messageId Which of the sender's messages it belongs to
+     * @param index The position of this piece
+     * @param count How many pieces the message has
+     * @param piece The bytes of this piece
+     * @return The complete message if this was the last missing piece, otherwise null
+     */
+    public byte[] add(int senderId, int messageId, int index, int count, byte[] piece) {
+        long now = System.currentTimeMillis();
+        purgeExpired(now);
+
+        if (count <= 0 || index < 0 || index >= count) {
+            return null; // Damaged fragment
+        }
+
+        long key = ((long) senderId << 32) | (messageId & 0xFFFFFFFFL);
+        Partial partial = partials.get(key);
+        if (partial == null) {
+            partial = new Partial(count, now);
+            partials.put(key, partial);
+        } else if (partial.pieces.length != count) {
+            return null; // Doesn't match the pieces we already have
+        }
+
+        // Ignore pieces we already have (e.g. a retransmission)
+        if (partial.pieces[index] != null) {
+            return null;
+        }
+        partial.pieces[index] = piece;
+        partial.received++;
+        partial.bytes += piece.length;
+        bufferedBytes += piece.length;
+
+        // Done? Glue the pieces together
+        if (partial.received == count) {
+            remove(key, partial);
+            byte[] message = new byte[partial.bytes];
+            int offset = 0;
+            for (byte[] p : partial.pieces) {
+                System.arraycopy(p, 0, message, offset, p.length);
+                offset += p.length;
+            }
+            return message;
+        }
+
+        // Over the memory cap - drop the oldest messages until we fit again
+        Iterator<Map.Entry<Long, Partial>> it = partials.entrySet().iterator();
+        while (bufferedBytes > MAX_BUFFERED_BYTES && it.hasNext()) {
+            Partial oldest = it.next().getValue();
+            bufferedBytes -= oldest.bytes;
+            it.remove();
+            System.err.println("Dropped incomplete message: reassembly buffer full");
+        }
+        return null;
+    }
+
+    /**
+     * Drops messages that have been incomplete for too long.
+     */
+    private void purgeExpired(long now) {
+        if (now - lastPurge < PURGE_INTERVAL_MILLIS) {
+            return;
+        }
+        lastPurge = now;
+
+        // Oldest messages come first, so we can stop at the first one that's still fresh
+        Iterator<Partial> it = partials.values().iterator();
+        while (it.hasNext()) {
+            Partial partial = it.next();
+            if (now - partial.firstSeen < TIMEOUT_MILLIS) {
+                break;
+            }
+            bufferedBytes -= partial.bytes;
+            it.remove();
+            System.err.println("Dropped incomplete message: missing fragments after " + TIMEOUT_MILLIS + "ms");
+        }
+    }
+
+    /**
+     * Removes a finished message from the table.
+     */
+    private void remove(long key, Partial partial) {
+        partials.remove(key);
+        bufferedBytes -= partial.bytes;
+    }
+}
@@ -0,0 +1,280 @@
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * This class receives datagrams for our chat app without blocking a thread
+ * on every socket. It uses a non-blocking DatagramChannel together with a
+ * Selector, so one thread can serve several multicast group memberships.
+ *
+ * Every time the selector wakes up we read ALL datagrams that are waiting
+ * in the kernel buffer, not just one. The datagrams are collected into a
+ * batch and handed to the listener in one go, which keeps up with bursts
+ * instead of letting the kernel buffer overflow and drop packets.
+ *
+ * The engine doesn't create garbage for every packet. All datagrams of a
+ * batch are received straight into one big direct buffer, one after the
+ * other, and the Datagram objects that point into it are reused for every
+ * batch. Nothing is copied onto the Java heap until the listener needs it.
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class ReceiveEngine implements Runnable {
+    // Receive settings
+    private static final int MAX_DATAGRAM_SIZE = 65536;   // Largest UDP payload we accept
+    private static final int MAX_BATCH_SIZE = Math.max(1, Config.getInt("receive.batch", 256)); // Hand over a batch at least this often
+    private static final int BATCH_BUFFER_SIZE = Math.max(MAX_DATAGRAM_SIZE,                   // Direct buffer that a whole batch is received into
+                                                          Config.getInt("receive.buffer", 1 << 20));
+    private static final int RECEIVE_BUFFER_SIZE = Config.getInt("socket.rcvbuf", 1 << 20); // 1 MB kernel buffer to absorb bursts
+
+    /**
+     * Gets called with every batch of datagrams that was drained from the sockets.
+     */
+    public interface BatchListener {
+        /**
+         * Handles a batch of received datagrams. The list, the datagrams and
+         * their data are all reused by the engine, so none of them may be
+         * kept after this method returns - copy out whatever is needed later.
+         *
+         * @param batch The datagrams that arrived since the last wakeup
+         */
+        void onBatch(List<Datagram> batch);
+    }
+
+    /**
+     * A single datagram that was read from one of our channels.
+     * The engine keeps a fixed set of these and fills them in again for every batch.
+     */
+    public static final class Datagram {
+        public Object tag;                   // Tag of the channel it arrived on
+        public SocketAddress source;         // Who sent it
+        public final ByteBuffer data;        // The raw packet bytes, from position to limit
+        public boolean decoded;              // Already decrypted by the host hub (see HubTransport); never set for network datagrams
+
+        Datagram(ByteBuffer batchBuffer) {
+            // A view of the batch buffer; the engine moves its position and limit to the packet
+            this.data = batchBuffer.duplicate();
+        }
+    }
+
+    // Engine components
+    private final Selector selector;                                          // Waits for readable channels
+    private final BatchListener listener;                                     // Who gets the batches
+    private final ByteBuffer batchBuffer = ByteBuffer.allocateDirect(BATCH_BUFFER_SIZE); // The datagrams of one batch
+    private final Datagram[] datagrams = new Datagram[MAX_BATCH_SIZE];         // Reused for every batch
+    private final List<Datagram> batch = new ArrayList<>(MAX_BATCH_SIZE);     // Reused for every wakeup
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>(); // Registrations from other threads
+    private volatile boolean running = true;
+
+    /**
+     * Creates a new receive engine.
+     *
+     * @param listener The listener that handles each batch of datagrams
+     * @throws IOException If the selector cannot be opened
+     */
+    public ReceiveEngine(BatchListener listener) throws IOException {
+        this.listener = listener;
+        this.selector = Selector.open();
+        for (int i = 0; i < datagrams.length; i++) {
+            datagrams[i] = new Datagram(batchBuffer);
+        }
+    }
+
+    /**
+     * Opens a non-blocking channel for one IPv4 multicast group.
+     *
+     * The channel is bound to the group address itself where the operating
+     * system allows it (Linux, macOS). Then it only gets packets sent to that
+     * group, even if another channel on the same port joined a different
+     * group. Where that isn't allowed (Windows), it's bound to the port only.
+     *
+     * @param group The multicast group the channel will join
+     * @param port The port to listen on
+     * @return The new channel (not registered or joined yet)
+     * @throws IOException If the channel cannot be opened or bound
+     */
+    public static DatagramChannel openGroupChannel(InetAddress group, int port) throws IOException {
+        DatagramChannel channel = openReusableChannel();
+        try {
+            channel.bind(new InetSocketAddress(group, port));
+        } catch (IOException e) {
+            // Binding to a multicast address isn't supported here - listen on the port
+            channel.close();
+            channel = openReusableChannel();
+            channel.bind(new InetSocketAddress(port));
+        }
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    /**
+     * Opens a channel that receives the broadcasts sent to a subnet's
+     * broadcast address on a port. It's bound to the broadcast address, so it
+     * doesn't also get the multicast packets for that port. Where that isn't
+     * allowed (Windows), it's bound to the port only.
+     *
+     * @param broadcast The subnet broadcast address, like 192.168.1.255
+     * @param port The port to listen on
+     * @return The new channel (not registered yet)
+     * @throws IOException If the channel cannot be opened or bound
+     */
+    public static DatagramChannel openBroadcastChannel(InetAddress broadcast, int port) throws IOException {
+        return openGroupChannel(broadcast, port);
+    }
+
+    /**
+     * Opens an unbound channel that several clients on one machine can share a port with.
+     */
+    private static DatagramChannel openReusableChannel() throws IOException {
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true); // Several clients on one machine
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+        return channel;
+    }
+
+    /**
+     * Registers a channel with this engine. Datagrams from it will show up
+     * in the batches with the given tag. Safe to call from any thread.
+     *
+     * @param channel The non-blocking channel to read from
+     * @param tag A value that identifies the channel in the batches
+     */
+    public void register(DatagramChannel channel, Object tag) {
+        pendingTasks.add(() -> {
+            try {
+                channel.register(selector, SelectionKey.OP_READ, tag);
+            } catch (ClosedChannelException e) {
+                System.err.println("Cannot register closed channel: " + e.getMessage());
+            }
+        });
+        selector.wakeup(); // Make the receive thread pick up the new channel
+    }
+
+    /**
+     * Stops reading from a channel and closes it. Safe to call from any thread.
+     *
+     * @param channel The channel to remove
+     */
+    public void unregister(DatagramChannel channel) {
+        pendingTasks.add(() -> {
+            try {
+                // Closing the channel also cancels its registration
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing channel: " + e.getMessage());
+            }
+        });
+        selector.wakeup(); // Make the receive thread drop the channel
+    }
+
+    /**
+     * Runs the receive loop until {@link #close()} is called.
+     */
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+
+                // Apply any registrations that were requested by other threads
+                Runnable task;
+                while ((task = pendingTasks.poll()) != null) {
+                    task.run();
+                }
+
+                // Drain every channel that has data waiting
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        drain((DatagramChannel) key.channel(), key.attachment());
+                    }
+                }
+
+                // Hand over whatever is left in the batch
+                flushBatch();
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                System.err.println("Error in receive engine: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads datagrams from a channel until nothing is left in its queue.
+     */
+    private void drain(DatagramChannel channel, Object tag) {
+        while (true) {
+            // Make sure the biggest possible datagram still fits behind the last one
+            if (batchBuffer.remaining() < MAX_DATAGRAM_SIZE) {
+                flushBatch();
+            }
+
+            SocketAddress source;
+            int start = batchBuffer.position();
+            try {
+                source = channel.receive(batchBuffer);
+            } catch (IOException e) {
+                System.err.println("Error reading from channel: " + e.getMessage());
+                return;
+            }
+            if (source == null) {
+                return; // Queue is empty
+            }
+
+            // Point the next free datagram at the bytes we just received - no copying
+            Datagram datagram = datagrams[batch.size()];
+            datagram.tag = tag;
+            datagram.source = source;
+            datagram.data.limit(batchBuffer.position()).position(start);
+            batch.add(datagram);
+
+            // Don't let a huge burst grow the batch without limit
+            if (batch.size() >= MAX_BATCH_SIZE) {
+                flushBatch();
+            }
+        }
+    }
+
+    /**
+     * Passes the collected batch to the listener and starts a new one.
+     */
+    private void flushBatch() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            listener.onBatch(batch);
+        } catch (RuntimeException e) {
+            System.err.println("Error handling received batch: " + e.getMessage());
+        } finally {
+            // The listener is done with the datagrams, so their space can be used again
+            batch.clear();
+            batchBuffer.clear();
+        }
+    }
+
+    /**
+     * Stops the receive loop and closes the selector and all its channels.
+     */
+    public void close() {
+        running = false;
+        try {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("Error closing receive engine: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,269 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Makes multicast delivery (almost) reliable without a connection per peer.
+ *
+ * Every packet carries its sender's sequence number. Receivers keep track of
+ * the highest number they've seen from each sender, so a jump in the numbers
+ * shows that packets were lost. Instead of acknowledging every packet, a
+ * receiver only speaks up when something is missing: it multicasts a
+ * negative acknowledgement (NACK) listing the missing numbers, and the
+ * sender sends those packets again from a small buffer of recent packets.
+ *
+ * To avoid a NACK storm when a packet is lost for many receivers at once,
+ * every receiver waits a random moment before sending its NACK. If it sees
+ * another receiver's NACK for the same packets first, it holds back its own.
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class ReliabilityLayer {
+    // Receiver settings
+    private static final int MAX_GAP = 256;                 // Bigger jumps mean we missed too much - just resync
+    private static final long NACK_MIN_DELAY_MILLIS = 20;   // Random back-off before the first NACK...
+    private static final long NACK_MAX_DELAY_MILLIS = 100;  // ...somewhere in this range
+    private static final long RETRY_DELAY_MILLIS = 200;     // Wait this long (doubled each time) for the repair
+    private static final int MAX_NACK_ATTEMPTS = 3;         // Give up on a packet after this many NACKs
+    public static final int MAX_SEQUENCES_PER_NACK = 64;    // Keep NACK frames small
+
+    // Sender settings
+    private static final int RETRANSMIT_BUFFER_SIZE = Math.max(1, Config.getInt("reliability.buffer", 1024)); // How many sent packets we keep for repairs
+    private static final long RETRANSMIT_HOLDOFF_MILLIS = 50;   // Answer many NACKs for one packet only once
+
+    /**
+     * A packet we're missing from some sender.
+     */
+    private static final class Missing {
+        int attempts = 0;    // How many NACKs were sent (by us or others) for it
+        long nextNackAt;     // When we'll NACK it next, unless it arrives first
+
+        Missing(long nextNackAt) {
+            this.nextNackAt = nextNackAt;
+        }
+    }
+
+    /**
+     * What we know about the packets from one sender.
+     */
+    private static final class SenderState {
+        int highest;                                              // Highest sequence number seen
+        final Map<Integer, Missing> missing = new LinkedHashMap<>(); // Gaps still waiting for repair
+
+        SenderState(int highest) {
+            this.highest = highest;
+        }
+    }
+
+    // Receiver side
+    private final Map<Integer, SenderState> senders = new HashMap<>();
+    private final Random random = new Random();
+
+    // Sender side: a ring of our most recent packets, indexed by sequence number
+    private final byte[][] sentPackets = new byte[RETRANSMIT_BUFFER_SIZE][];
+    private final int[] sentSequences = new int[RETRANSMIT_BUFFER_SIZE];
+    private final long[] lastRetransmit = new long[RETRANSMIT_BUFFER_SIZE];
+
+    // Statistics
+    private long lostPackets = 0;        // Gaps we detected
+    private long repairedPackets = 0;    // Gaps that were filled later
+    private long unrecoveredPackets = 0; // Gaps we gave up on
+    private long retransmittedPackets = 0; // Packets we sent again for others
+
+    /**
+     * Records a packet that arrived for the first time, and looks for gaps.
+     *
+     * @param senderId Who sent it
+     * @param sequence Its sequence number
+     */
+    public synchronized void onPacketReceived(int senderId, int sequence) {
+        long now = System.currentTimeMillis();
+        SenderState state = senders.get(senderId);
+        if (state == null) {
+            // First packet from this sender - nothing to compare with yet
+            senders.put(senderId, new SenderState(sequence));
+            return;
+        }
+
+        int ahead = sequence - state.highest; // Works even when the numbers wrap around
+        if (ahead <= 0) {
+            // An older packet - hopefully one we were missing
+            if (state.missing.remove(sequence) != null) {
+                repairedPackets++;
+            }
+            return;
+        }
+
+        if (ahead > MAX_GAP) {
+            // We missed too much (or the sender was away) - start over from here
+            unrecoveredPackets += state.missing.size();
+            state.missing.clear();
+        } else {
+            // Everything between the old highest and this one is missing
+            for (int seq = state.highest + 1; seq != sequence; seq++) {
+                state.missing.put(seq, new Missing(now + randomNackDelay()));
+                lostPackets++;
+            }
+        }
+        state.highest = sequence;
+    }
+
+    /**
+     * Records a NACK that another receiver sent. If we're waiting for the
+     * same packets, we hold back our own NACK since the repair is on its way.
+     *
+     * @param senderId The sender the NACK was addressed to
+     * @param sequences The packets it asked for
+     */
+    public synchronized void onNackSeen(int senderId, int[] sequences) {
+        SenderState state = senders.get(senderId);
+        if (state == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (int sequence : sequences) {
+            Missing missing = state.missing.get(sequence);
+            if (missing != null) {
+                missing.attempts++;
+                missing.nextNackAt = now + retryDelay(missing.attempts);
+            }
+        }
+    }
+
+    /**
+     * Collects the NACKs that are due now. Called regularly from the network thread.
+     *
+     * @return The missing sequence numbers to ask for, per sender
+     */
+    public synchronized Map<Integer, int[]> collectDueNacks() {
+        long now = System.currentTimeMillis();
+        Map<Integer, int[]> due = new HashMap<>();
+        for (Map.Entry<Integer, SenderState> entry : senders.entrySet()) {
+            List<Integer> sequences = new ArrayList<>();
+            Iterator<Map.Entry<Integer, Missing>> it = entry.getValue().missing.entrySet().iterator();
+            while (it.hasNext() && sequences.size() < MAX_SEQUENCES_PER_NACK) {
+                Map.Entry<Integer, Missing> gap = it.next();
+                Missing missing = gap.getValue();
+                if (missing.nextNackAt > now) {
+                    continue;
+                }
+                if (missing.attempts >= MAX_NACK_ATTEMPTS) {
+                    // Nobody could repair it - give up
+                    it.remove();
+                    unrecoveredPackets++;
+                    continue;
+                }
+                missing.attempts++;
+                missing.nextNackAt = now + retryDelay(missing.attempts);
+                sequences.add(gap.getKey());
+            }
+            if (!sequences.isEmpty()) {
+                due.put(entry.getKey(), sequences.stream().mapToInt(Integer::intValue).toArray());
+            }
+        }
+        return due;
+    }
+
+    /**
+     * Keeps a copy of a packet we sent, in case someone asks for it again.
+     *
+     * @param sequence The packet's sequence number
+     * @param packet The complete packet as sent
+     */
+    public synchronized void recordSent(int sequence, byte[] packet) {
+        int slot = Math.floorMod(sequence, RETRANSMIT_BUFFER_SIZE);
+        sentPackets[slot] = packet;
+        sentSequences[slot] = sequence;
+        lastRetransmit[slot] = 0;
+    }
+
+    /**
+     * Finds the packets a NACK asked us for. A packet that was already sent
+     * again a moment ago is skipped, so a burst of NACKs only causes one repair.
+     *
+     * @param sequences The packets asked for
+     * @return The packets to send again (only those still in our buffer)
+     */
+    public synchronized List<byte[]> packetsToRetransmit(int[] sequences) {
+        long now = System.currentTimeMillis();
+        List<byte[]> packets = new ArrayList<>();
+        for (int sequence : sequences) {
+            int slot = Math.floorMod(sequence, RETRANSMIT_BUFFER_SIZE);
+            if (sentPackets[slot] != null && sentSequences[slot] == sequence
+                    && now - lastRetransmit[slot] >= RETRANSMIT_HOLDOFF_MILLIS) {
+                lastRetransmit[slot] = now;
+                packets.add(sentPackets[slot]);
+                retransmittedPackets++;
+            }
+        }
+        return packets;
+    }
+
+    /**
+     * Records a packet that someone else already checked for gaps, like the
+     * host hub, which asks for lost packets itself. Moves our place forward
+     * without treating what we skipped as lost, so we don't ask the room
+     * for packets the hub has, but still see the gap if the packets start
+     * coming straight to us again.
+     *
+     * @param senderId Who sent it
+     * @param sequence Its sequence number
+     */
+    public synchronized void onPacketRelayed(int senderId, int sequence) {
+        SenderState state = senders.get(senderId);
+        if (state == null) {
+            senders.put(senderId, new SenderState(sequence));
+            return;
+        }
+        if (state.missing.remove(sequence) != null) {
+            repairedPackets++;
+        }
+        if (sequence - state.highest > 0) {
+            state.highest = sequence;
+        }
+    }
+
+    /**
+     * Forgets a sender, e.g. after it said goodbye.
+     *
+     * @param senderId The sender to forget
+     */
+    public synchronized void forgetSender(int senderId) {
+        SenderState state = senders.remove(senderId);
+        if (state != null) {
+            unrecoveredPackets += state.missing.size();
+        }
+    }
+
+    /**
+     * Describes the delivery statistics for the /stats command.
+     *
+     * @return A short multi-line summary
+     */
+    public synchronized String describe() {
+        return "Packets lost: " + lostPackets + "\n" +
+               "Packets repaired: " + repairedPackets + "\n" +
+               "Packets unrecovered: " + unrecoveredPackets + "\n" +
+               "Packets retransmitted: " + retransmittedPackets;
+    }
+
+    /**
+     * Picks a random delay before the first NACK for a gap.
+     */
+    private long randomNackDelay() {
+        return NACK_MIN_DELAY_MILLIS + (long) (random.nextDouble() * (NACK_MAX_DELAY_MILLIS - NACK_MIN_DELAY_MILLIS));
+    }
+
+    /**
+     * How long to wait for a repair after a NACK, doubling with every attempt,
+     * plus some randomness so receivers don't retry in lock step.
+     */
+    private long retryDelay(int attempts) {
+        return (RETRY_DELAY_MILLIS << (attempts - 1)) + randomNackDelay();
+    }
+}
@@ -0,0 +1,145 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size queue that threads can share without locks.
+ *
+ * All slots are created up front, so adding and taking never allocates.
+ * Every slot has a sequence number that tells whether it's free to write
+ * or ready to read, and threads claim slots by moving the head or tail
+ * forward with compare-and-set. Any number of threads may add and take at
+ * the same time; when the queue is full, {@link #offer} simply says no, and
+ * the caller decides whether to wait or drop (that's the backpressure).
+ *
+ * It also remembers the most items it ever held, so the /stats command can
+ * show how close each stage of the receive pipeline came to filling up.
+ *
+ * @param <T> The type of the items
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class RingBuffer<T> {
+    private final Object[] items;           // The slots
+    private final AtomicLongArray sequences; // Per slot: which turn of the ring it's ready for
+    private final int mask;                 // capacity - 1, to turn a position into a slot index
+    private final AtomicLong head = new AtomicLong(); // Position of the next item to take
+    private final AtomicLong tail = new AtomicLong(); // Position of the next free slot
+    private volatile int maxDepth = 0;      // Most items we've held at once (only roughly, for statistics)
+
+    /**
+     * Creates an empty ring buffer.
+     *
+     * @param capacity How many items it can hold; rounded up to a power of two
+     */
+    public RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.items = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an item, unless the buffer is full.
+     *
+     * @param item The item to add
+     * @return False if the buffer is full
+     */
+    public boolean offer(T item) {
+        long position = tail.get();
+        int index;
+        while (true) {
+            index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                // The slot is free on this turn - try to claim it
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false; // The slot still holds an item from the last turn, so we're full
+            } else {
+                position = tail.get(); // Another thread got ahead of us
+            }
+        }
+        items[index] = item;
+        sequences.set(index, position + 1); // Now readers may take it
+
+        int depth = (int) (position + 1 - head.get());
+        if (depth > maxDepth) {
+            maxDepth = depth;
+        }
+        return true;
+    }
+
+    /**
+     * Takes the oldest item.
+     *
+     * @return The item, or null if the buffer is empty
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long position = head.get();
+        int index;
+        while (true) {
+            index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                // The slot holds an item for this turn - try to claim it
+                if (head.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return null; // Nothing written here yet, so we're empty
+            } else {
+                position = head.get(); // Another thread got ahead of us
+            }
+        }
+        T item = (T) items[index];
+        items[index] = null;
+        sequences.set(index, position + mask + 1); // Free for the next turn
+        return item;
+    }
+
+    /**
+     * Counts the items waiting right now. With other threads adding and
+     * taking at the same time, this is only a snapshot.
+     *
+     * @return The number of items
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, items.length));
+    }
+
+    /**
+     * Checks whether nothing is waiting right now.
+     *
+     * @return True if the buffer is empty
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Gets how many items the buffer can hold.
+     *
+     * @return The capacity
+     */
+    public int capacity() {
+        return items.length;
+    }
+
+    /**
+     * Gets the most items the buffer has held at once.
+     *
+     * @return The high-water mark
+     */
+    public int maxDepth() {
+        return maxDepth;
+    }
+}
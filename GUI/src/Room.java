@@ -0,0 +1,126 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Works out where a chat room lives on the network.
+ *
+ * Every room has its own multicast group address and port, worked out from
+ * the room's name, so every client finds the same group for the same room
+ * without having to ask anyone. A client only joins the groups of the rooms
+ * it is in, so the network card and the operating system throw away the
+ * traffic of all other rooms before it ever reaches Java.
+ *
+ * The default room uses the group and port the chat has always used, so it
+ * still works with older setups. Other rooms are placed in the
+ * organization-local multicast range 239.192.0.0/16, which routers don't
+ * forward beyond the local network.
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class Room {
+    // The room everybody starts in
+    public static final String DEFAULT_ROOM = "lobby";
+    private static final String DEFAULT_GROUP = Config.getString("group", "230.0.0.1");
+    private static final int DEFAULT_PORT = Config.getInt("port", 5000);
+
+    // Where other rooms are placed
+    private static final int FIRST_ROOM_PORT = 5001; // Rooms use ports 5001 to 6000
+    private static final int ROOM_PORTS = 1000;
+    private static final int MAX_NAME_LENGTH = 32;
+
+    private final String name;                 // The room's name, like "dev-team"
+    private final InetSocketAddress address;   // Its multicast group and port
+
+    /**
+     * Creates a room and works out its group address and port.
+     *
+     * @param name The room's name (see {@link #normalizeName})
+     */
+    public Room(String name) {
+        this.name = name;
+        this.address = addressFor(name);
+    }
+
+    /**
+     * Cleans up a room name typed by the user, so "Dev-Team " and "dev-team"
+     * are the same room.
+     *
+     * @param input The name as typed
+     * @return The normalized name, or null if it isn't a valid room name
+     */
+    public static String normalizeName(String input) {
+        String name = input.trim().toLowerCase(Locale.ROOT);
+        if (name.startsWith("#")) {
+            name = name.substring(1);
+        }
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH || !name.matches("[a-z0-9_-]+")) {
+            return null;
+        }
+        return name;
+    }
+
+    /**
+     * Gets the room's name.
+     *
+     * @return The name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the room's multicast group address.
+     *
+     * @return The group address
+     */
+    public InetAddress getGroup() {
+        return address.getAddress();
+    }
+
+    /**
+     * Gets the port the room's packets are sent to.
+     *
+     * @return The port
+     */
+    public int getPort() {
+        return address.getPort();
+    }
+
+    /**
+     * Gets the room's group address and port together.
+     *
+     * @return Where the room's packets are sent
+     */
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Hashes a room name to its group address and port.
+     * The hash must be the same on every client, so we use CRC32 of the UTF-8 name.
+     */
+    private static InetSocketAddress addressFor(String name) {
+        try {
+            if (name.equals(DEFAULT_ROOM)) {
+                return new InetSocketAddress(InetAddress.getByName(DEFAULT_GROUP), DEFAULT_PORT);
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(name.getBytes(StandardCharsets.UTF_8));
+            long hash = crc.getValue();
+
+            // The low 16 bits pick the group, the high 16 bits the port
+            byte[] group = { (byte) 239, (byte) 192, (byte) (hash >>> 8), (byte) hash };
+            int port = FIRST_ROOM_PORT + (int) ((hash >>> 16) % ROOM_PORTS);
+            return new InetSocketAddress(InetAddress.getByAddress(group), port);
+        } catch (UnknownHostException e) {
+            // Can't happen - we never look up a host name that isn't a literal address
+            throw new IllegalStateException(e);
+        }
+    }
+}
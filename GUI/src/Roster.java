@@ -0,0 +1,113 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Keeps track of who is in one room, so we can tell newcomers.
+ *
+ * Without this, a user who just joined only learns about the others when
+ * their next heartbeat arrives, which can take a minute in a big group.
+ * So a newcomer multicasts a roster request, and the users already in the
+ * room answer with a snapshot of the names they know.
+ *
+ * If everyone answered at once, a room of 100 users would send 100 copies of
+ * the same list. Instead every user waits a random moment before answering,
+ * and gives up if it sees {@link #ENOUGH_REPLIES} snapshots from others in
+ * the meantime. Usually only the user with the shortest wait answers, plus
+ * one more in case a snapshot gets lost.
+ *
+ * We only list users we've heard from ourselves (heartbeats and chat), never
+ * users we learned about from someone else's snapshot. Otherwise a user who
+ * left without saying goodbye could be passed around forever.
+ *
+ * The receive thread fills the roster and the network thread reads it, so
+ * it's backed by a ConcurrentHashMap and the reply state is synchronized.
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class Roster {
+    // Settings (see Config)
+    private static final long MAX_REPLY_DELAY = Config.getLong("roster.delay", 100);  // Longest random wait before answering (ms)
+    private static final int ENOUGH_REPLIES = Config.getInt("roster.replies", 2);     // Stop answering after seeing this many snapshots
+
+    private final Map<String, Long> members = new ConcurrentHashMap<>(); // Nickname -> when we stop believing they're here
+    private boolean replyPending = false; // Are we waiting to answer a request?
+    private int repliesSeen = 0;          // Snapshots from others since that request
+
+    /**
+     * Records that we heard from a user directly.
+     *
+     * @param nickname The user's nickname
+     * @param expiry How long to keep them if we don't hear from them again (ms)
+     */
+    public void seen(String nickname, long expiry) {
+        members.put(nickname, System.currentTimeMillis() + expiry);
+    }
+
+    /**
+     * Records a chat message from a user. It never shortens the time their
+     * last heartbeat gave them.
+     *
+     * @param nickname The user's nickname
+     */
+    public void touch(String nickname) {
+        members.merge(nickname, System.currentTimeMillis() + HeartbeatPolicy.expiryFor(0), Math::max);
+    }
+
+    /**
+     * Removes a user who said goodbye.
+     *
+     * @param nickname The user's nickname
+     */
+    public void forget(String nickname) {
+        members.remove(nickname);
+    }
+
+    /**
+     * Lists the users we've heard from recently, for a snapshot.
+     *
+     * @return Their nicknames
+     */
+    public List<String> snapshot() {
+        long now = System.currentTimeMillis();
+        members.values().removeIf(deadline -> deadline < now);
+        return new ArrayList<>(members.keySet());
+    }
+
+    /**
+     * Called when a newcomer asks for the roster.
+     *
+     * @return How long to wait before answering (ms), or -1 if we're already
+     *         waiting to answer an earlier request - that answer covers this one too
+     */
+    public synchronized long onRequest() {
+        if (replyPending) {
+            return -1;
+        }
+        replyPending = true;
+        repliesSeen = 0;
+        return ThreadLocalRandom.current().nextLong(MAX_REPLY_DELAY + 1);
+    }
+
+    /**
+     * Called when someone else's snapshot arrives.
+     */
+    public synchronized void onSnapshotSeen() {
+        if (replyPending) {
+            repliesSeen++;
+        }
+    }
+
+    /**
+     * Called when our wait is over.
+     *
+     * @return True if we should still send our snapshot
+     */
+    public synchronized boolean shouldReply() {
+        replyPending = false;
+        return repliesSeen < ENOUGH_REPLIES;
+    }
+}
@@ -0,0 +1,170 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects outgoing messages for a short moment and packs several of them
+ * into one encrypted packet. A quick burst of short lines, or a heartbeat
+ * that goes out together with a chat line, then costs one packet, one
+ * encryption and one system call instead of one each.
+ *
+ * Every message is already an encoded {@link WireProtocol} frame, and frames
+ * carry their own type and length, so packing them is simply writing them
+ * one after another.
+ *
+ * Every message comes with a future that completes once the packet holding
+ * it has been sent, or fails if sending it failed.
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class SendQueue implements TrafficShaper.Destination {
+    // Size of the IP and UDP headers in front of our packet
+    private static final int IP_UDP_HEADERS = 28;   // IPv4 header (20) + UDP header (8)
+
+    /**
+     * Receives the packed frames when it's time to send them.
+     */
+    public interface Sink {
+        /**
+         * Encrypts and sends one packet.
+         *
+         * @param frames The packed frames, ready to be encrypted
+         * @param frameCount How many messages were packed into it
+         * @throws Exception If the packet could not be sent
+         */
+        void send(ByteBuffer frames, int frameCount) throws Exception;
+    }
+
+    // Queue components
+    private final ScheduledExecutorService scheduler; // Runs the delayed flushes
+    private final long lingerMillis;                  // How long we wait for more messages
+    private int maxPacketSize;                        // Biggest packet that fits the path MTU
+    private final Sink sink;                          // Who actually sends the packets
+    private final List<byte[]> pending = new ArrayList<>(); // Frames waiting to be packed
+    private final List<CompletableFuture<Void>> pendingDone = new ArrayList<>(); // Completed when they're sent
+    private int pendingBytes = 0;                     // Total size of the pending frames
+    private ScheduledFuture<?> scheduledFlush;        // The flush waiting for the linger to end
+
+    /**
+     * Creates a new send queue.
+     *
+     * @param scheduler The executor that runs the delayed flushes
+     * @param lingerMillis How long to wait for more messages before sending
+     * @param mtu The smallest MTU of the interfaces we send on
+     * @param sink Where the packed packets go
+     */
+    public SendQueue(ScheduledExecutorService scheduler, long lingerMillis, int mtu, Sink sink) {
+        this.scheduler = scheduler;
+        this.lingerMillis = lingerMillis;
+        this.maxPacketSize = mtu - IP_UDP_HEADERS;
+        this.sink = sink;
+    }
+
+    /**
+     * Adds a message to the queue. It will be sent within the linger window,
+     * or right away if the current bundle is full.
+     *
+     * @param frame The encoded frame
+     * @param done Completed once the message has been sent
+     */
+    @Override
+    public synchronized void enqueue(byte[] frame, CompletableFuture<Void> done) {
+        // Send what we have if this message would make the packet too big
+        if (!pending.isEmpty() && packetSize(pendingBytes + frame.length) > maxPacketSize) {
+            flush();
+        }
+        pending.add(frame);
+        pendingDone.add(done);
+        pendingBytes += frame.length;
+
+        // Start the linger window with the first message
+        if (scheduledFlush == null) {
+            scheduledFlush = scheduler.schedule(this::flush, lingerMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends everything that is waiting right now.
+     */
+    public synchronized void flush() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        // Write all frames one after another
+        ByteBuffer frames = ByteBuffer.allocate(pendingBytes);
+        for (byte[] frame : pending) {
+            frames.put(frame);
+        }
+        frames.flip();
+        int frameCount = pending.size();
+        List<CompletableFuture<Void>> done = new ArrayList<>(pendingDone);
+        pending.clear();
+        pendingDone.clear();
+        pendingBytes = 0;
+
+        // Let everyone waiting on these messages know how it went
+        try {
+            sink.send(frames, frameCount);
+            done.forEach(future -> future.complete(null));
+        } catch (Exception e) {
+            done.forEach(future -> future.completeExceptionally(e));
+        }
+    }
+
+    /**
+     * Changes the packet size after the network changed and the path MTU
+     * with it. Messages already waiting go out with the next flush as they
+     * are; the next ones are packed for the new size.
+     *
+     * @param mtu The smallest MTU of the interfaces we send on now
+     */
+    public synchronized void setMtu(int mtu) {
+        this.maxPacketSize = mtu - IP_UDP_HEADERS;
+    }
+
+    /**
+     * Works out the biggest frame that still fits into a packet on its own.
+     * Anything bigger has to be fragmented.
+     *
+     * @return The maximum frame size in bytes
+     */
+    public synchronized int maxFrameSize() {
+        return maxFrameSize(maxPacketSize + IP_UDP_HEADERS);
+    }
+
+    /**
+     * Works out the biggest frame that fits into a packet on a path with the given MTU.
+     *
+     * @param mtu The smallest MTU of the interfaces we send on
+     * @return The maximum frame size in bytes
+     */
+    public static int maxFrameSize(int mtu) {
+        int maxPacketSize = mtu - IP_UDP_HEADERS;
+        int size = maxPacketSize - WireProtocol.HEADER_SIZE;
+        // Shrink until the encrypted form fits (padding always adds 1 to 16 bytes)
+        while (size > 0 && packetSize(size) > maxPacketSize) {
+            size--;
+        }
+        return size;
+    }
+
+    /**
+     * Works out the size of the packet that carries the given frames.
+     *
+     * @param frameBytes The total size of the frames
+     * @return The number of bytes that will go on the wire
+     */
+    static int packetSize(int frameBytes) {
+        return WireProtocol.HEADER_SIZE + EncryptionUtils.encryptedSize(frameBytes);
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * A token bucket that limits how fast bytes may be sent.
+ *
+ * Tokens (bytes) drip into the bucket at a fixed rate, up to the bucket's
+ * capacity. Sending takes tokens out; when the bucket is empty the sender
+ * has to wait. The capacity allows short bursts, like a few quick chat
+ * lines, while the rate limits what can be sent over a longer time.
+ *
+ * Not thread safe - the {@link TrafficShaper} that owns it synchronizes.
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class TokenBucket {
+    private long capacity;        // Most tokens the bucket can hold (burst size in bytes)
+    private double rate;          // Tokens added per millisecond
+    private double tokens;        // Tokens in the bucket right now (negative while paying off a big message)
+    private long lastRefill;      // When tokens were last added
+
+    /**
+     * Creates a full token bucket.
+     *
+     * @param bytesPerSecond How many bytes per second may be sent on average
+     * @param capacity How many bytes may be sent in one burst
+     */
+    public TokenBucket(long bytesPerSecond, long capacity) {
+        this.capacity = capacity;
+        this.rate = bytesPerSecond / 1000.0;
+        this.tokens = capacity;
+        this.lastRefill = System.currentTimeMillis();
+    }
+
+    /**
+     * Takes tokens for a message if there are enough. A message bigger than
+     * the whole bucket may go once the bucket is full; the bucket then goes
+     * into debt, so the average rate still holds.
+     *
+     * @param bytes The size of the message
+     * @return true if the message may be sent now
+     */
+    public boolean tryConsume(int bytes) {
+        refill();
+        if (tokens < Math.min(bytes, capacity)) {
+            return false;
+        }
+        tokens -= bytes;
+        return true;
+    }
+
+    /**
+     * Works out how long until a message of this size may be sent.
+     *
+     * @param bytes The size of the message
+     * @return The wait in milliseconds (0 if it may go now)
+     */
+    public long millisUntilAvailable(int bytes) {
+        refill();
+        double missing = Math.min(bytes, capacity) - tokens;
+        return missing <= 0 ? 0 : (long) Math.ceil(missing / rate);
+    }
+
+    /**
+     * Changes the rate, e.g. to back off when the network is congested.
+     *
+     * @param bytesPerSecond The new average rate
+     */
+    public void setRate(long bytesPerSecond) {
+        refill(); // Tokens earned so far still count at the old rate
+        this.rate = bytesPerSecond / 1000.0;
+    }
+
+    /**
+     * Changes the burst size, e.g. when the path MTU and with it the biggest
+     * frame changed. Tokens above the new capacity are dropped.
+     *
+     * @param capacity How many bytes may be sent in one burst
+     */
+    public void setCapacity(long capacity) {
+        refill();
+        this.capacity = capacity;
+        this.tokens = Math.min(tokens, capacity);
+    }
+
+    /**
+     * Adds the tokens that have dripped in since the last refill.
+     */
+    private void refill() {
+        long now = System.currentTimeMillis();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * rate);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,323 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.swing.SwingUtilities;
+
+/**
+ * Plays a recorded {@link PacketTrace} back through the whole receive
+ * path - decrypting, reading the frames and showing them - so a burst that
+ * made a floor lag can be reproduced, and a fix measured against it.
+ *
+ * The trace stands in for the network: a {@link Transport} hands its
+ * datagrams to a normal {@link MulticastManager}, at the speed they were
+ * recorded, faster, or as fast as possible. Everything we send is thrown
+ * away. The rooms of the trace are joined first, so nothing is skipped.
+ * The trace must have been recorded with the same key.
+ *
+ * Settings (see {@link Config}):
+ * <ul>
+ *   <li>replay.file - the trace to play (required)</li>
+ *   <li>replay.speed - 1 for real time, 10 for ten times faster, or max (1)</li>
+ *   <li>replay.ui - show the messages in a chat window instead of just counting them (false)</li>
+ *   <li>replay.nickname - who we are, so private messages to that user are shown (replay)</li>
+ * </ul>
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class TraceReplay {
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final int BATCH_BUFFER_SIZE = 1 << 20;
+    private static final int MAX_DATAGRAM_SIZE = 65536;
+    private static final long JOIN_TIMEOUT_MILLIS = 5000; // Start anyway if the rooms aren't joined by then
+
+    /**
+     * A transport that receives the datagrams of a trace and sends nothing.
+     */
+    private static final class ReplayTransport implements Transport {
+        private final PacketTrace.Reader reader;
+        private final double speed;          // 0 = as fast as possible
+        private final List<String> rooms;    // Rooms in the trace
+        private final ConcurrentHashMap<String, Object> tags = new ConcurrentHashMap<>(); // Joined rooms' tags, by name
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private final LongAdder sent = new LongAdder();
+        private volatile boolean running = true;
+        private ReceiveEngine.BatchListener listener;
+        private long replayed = 0;
+        private long skipped = 0;             // Datagrams for rooms we couldn't join
+        private long elapsedNanos = 0;
+        private long traceNanos = 0;
+
+        // Reused for every batch
+        private final ByteBuffer batchBuffer = ByteBuffer.allocate(BATCH_BUFFER_SIZE);
+        private final ReceiveEngine.Datagram[] datagrams = new ReceiveEngine.Datagram[MAX_BATCH_SIZE];
+        private final List<ReceiveEngine.Datagram> batch = new ArrayList<>(MAX_BATCH_SIZE);
+
+        ReplayTransport(PacketTrace.Reader reader, double speed) {
+            this.reader = reader;
+            this.speed = speed;
+            this.rooms = reader.scanRooms();
+            for (int i = 0; i < datagrams.length; i++) {
+                datagrams[i] = new ReceiveEngine.Datagram(batchBuffer);
+            }
+        }
+
+        @Override
+        public void open(ReceiveEngine.BatchListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public int getMtu() {
+            return 1500;
+        }
+
+        @Override
+        public String describe() {
+            return "Replaying a packet trace | Rooms: " + String.join(", ", rooms) +
+                   " | Speed: " + (speed > 0 ? speed + "x" : "max");
+        }
+
+        @Override
+        public String describeSocketOptions() {
+            return "Replaying a packet trace: " + replayed + " datagrams so far, " + sent.sum() + " sent packets discarded";
+        }
+
+        @Override
+        public String joinGroup(Room room, Object tag) {
+            tags.put(room.getName(), tag);
+            return describe();
+        }
+
+        @Override
+        public void leaveGroup(Room room) {
+            tags.remove(room.getName());
+        }
+
+        @Override
+        public void sendToGroup(Room room, ByteBuffer packet) {
+            sent.increment();
+        }
+
+        @Override
+        public void sendTo(SocketAddress target, ByteBuffer packet) {
+            sent.increment();
+        }
+
+        /**
+         * Plays the trace once all its rooms are joined.
+         */
+        @Override
+        public void run() {
+            long waitUntil = System.currentTimeMillis() + JOIN_TIMEOUT_MILLIS;
+            while (!tags.keySet().containsAll(rooms) && System.currentTimeMillis() < waitUntil) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+
+            PacketTrace.Record record = new PacketTrace.Record();
+            long start = System.nanoTime();
+            while (running && reader.next(record)) {
+                // Wait until it's this datagram's turn, handing over what we have first
+                if (speed > 0) {
+                    long due = start + (long) (record.nanos / speed);
+                    if (due > System.nanoTime()) {
+                        flushBatch();
+                        long wait;
+                        while ((wait = due - System.nanoTime()) > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                    }
+                }
+                traceNanos = record.nanos;
+
+                Object tag = null;
+                if (record.room != null) {
+                    tag = tags.get(record.room);
+                    if (tag == null) {
+                        skipped++;
+                        continue;
+                    }
+                }
+                if (batchBuffer.remaining() < MAX_DATAGRAM_SIZE || batch.size() >= MAX_BATCH_SIZE) {
+                    flushBatch();
+                }
+                int position = batchBuffer.position();
+                batchBuffer.put(record.data);
+                ReceiveEngine.Datagram datagram = datagrams[batch.size()];
+                datagram.tag = tag;
+                datagram.source = record.source;
+                datagram.data.limit(batchBuffer.position()).position(position);
+                batch.add(datagram);
+                replayed++;
+            }
+            flushBatch();
+            elapsedNanos = System.nanoTime() - start;
+            finished.countDown();
+        }
+
+        private void flushBatch() {
+            if (batch.isEmpty()) {
+                return;
+            }
+            try {
+                listener.onBatch(batch);
+            } catch (RuntimeException e) {
+                System.err.println("Error handling replayed batch: " + e.getMessage());
+            } finally {
+                batch.clear();
+                batchBuffer.clear();
+            }
+        }
+
+        @Override
+        public void close() {
+            running = false;
+        }
+    }
+
+    /**
+     * Counts what the replay shows, when there's no window.
+     */
+    private static final class CountingListener implements ChatListener {
+        final LongAdder messages = new LongAdder();
+        final LongAdder privateMessages = new LongAdder();
+        final Set<String> users = ConcurrentHashMap.newKeySet();
+        final LongAdder errors = new LongAdder();
+
+        @Override
+        public void appendMessage(String room, String sender, String content) {
+            messages.increment();
+        }
+
+        @Override
+        public void appendPrivateMessage(String sender, String target, String content) {
+            privateMessages.increment();
+        }
+
+        @Override
+        public void appendSystemMessage(String message) {
+            errors.increment();
+            System.err.println(message);
+        }
+
+        @Override
+        public void addUserToList(String room, String username) {
+            users.add(username);
+        }
+
+        @Override
+        public void removeUserFromList(String room, String username) {
+        }
+
+        @Override
+        public void updateNetworkStatus(String networkInfo) {
+        }
+
+        @Override
+        public void updateSentStatistics(int messageSize) {
+        }
+
+        @Override
+        public void updateReceivedStatistics(int packetCount, long byteCount) {
+        }
+    }
+
+    /**
+     * Plays a trace.
+     *
+     * @param args Settings like --replay.file=lag.trc --replay.speed=max (see {@link Config})
+     * @throws Exception If the trace can't be read or we're interrupted
+     */
+    public static void main(String[] args) throws Exception {
+        try {
+            Config.load(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java TraceReplay --replay.file=FILE [--replay.speed=1|N|max] [--replay.ui=true]");
+            System.exit(1);
+        }
+        String file = Config.getString("replay.file", "");
+        String speedSetting = Config.getString("replay.speed", "1");
+        boolean showWindow = Config.getBoolean("replay.ui", false);
+        String nickname = Config.getString("replay.nickname", "replay");
+        if (file.isEmpty()) {
+            System.err.println("Usage: java TraceReplay --replay.file=FILE [--replay.speed=1|N|max] [--replay.ui=true]");
+            System.exit(1);
+        }
+
+        // Don't record the replay over the trace we're reading
+        Path path = Paths.get(file).toAbsolutePath().normalize();
+        String traceFile = Config.getString("trace.file", "");
+        if (!traceFile.isEmpty() && Paths.get(traceFile).toAbsolutePath().normalize().equals(path)) {
+            System.err.println("trace.file is the file being replayed - turn recording off or pick another file");
+            System.exit(1);
+        }
+
+        double speed;
+        try {
+            speed = speedSetting.equalsIgnoreCase("max") ? 0 : Double.parseDouble(speedSetting);
+        } catch (NumberFormatException e) {
+            System.err.println("replay.speed must be a number or max, not " + speedSetting);
+            System.exit(1);
+            return;
+        }
+
+        PacketTrace.Reader reader;
+        try {
+            reader = new PacketTrace.Reader(path);
+        } catch (IOException e) {
+            System.err.println("Cannot read " + file + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        ReplayTransport transport = new ReplayTransport(reader, speed);
+        System.out.println("Replaying " + file + " (recorded " + new java.util.Date(reader.getStartMillis()) + "), rooms: " +
+                           String.join(", ", transport.rooms) + ", speed: " + (speed > 0 ? speed + "x" : "max"));
+
+        if (showWindow) {
+            // The chat window joins the lobby itself; we join the other rooms through it
+            ThemeManager.applyTheme();
+            SwingUtilities.invokeLater(() -> {
+                ChatWindow window = new ChatWindow(nickname, transport);
+                for (String room : transport.rooms) {
+                    window.joinRoom(room);
+                }
+            });
+            transport.finished.await();
+            System.out.println(String.format("Replayed %d datagrams in %.2f s", transport.replayed, transport.elapsedNanos / 1e9));
+            return; // The window stays open
+        }
+
+        // Without a window: count what would be shown, as fast as the workers go
+        CountingListener listener = new CountingListener();
+        MulticastManager manager = new MulticastManager(nickname, listener, transport, Runnable::run);
+        for (String room : transport.rooms) {
+            manager.joinRoom(room);
+        }
+        Thread receiver = new Thread(manager::receiveMessages, "Receiver-Thread");
+        receiver.setDaemon(true);
+        receiver.start();
+        transport.finished.await();
+        Thread.sleep(200); // Let the workers finish the last packets
+
+        double seconds = transport.elapsedNanos / 1e9;
+        System.out.println(String.format("Replayed %d datagrams (%d skipped) in %.2f s: %.0f datagrams/s, trace covered %.2f s",
+                                         transport.replayed, transport.skipped, seconds,
+                                         transport.replayed / Math.max(seconds, 1e-9), transport.traceNanos / 1e9));
+        System.out.println("Shown: " + listener.messages.sum() + " messages, " + listener.privateMessages.sum() +
+                           " private messages, " + listener.users.size() + " users, " + listener.errors.sum() + " errors");
+        System.out.println(manager.getReceiveStats());
+        manager.shutdown();
+        System.exit(0);
+    }
+}
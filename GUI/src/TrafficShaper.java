@@ -0,0 +1,303 @@
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces outgoing messages so one client can't flood the network.
+ *
+ * On Wi-Fi, multicast is sent at the slowest basic rate, so a user pasting
+ * a big script in a loop (or a bot) can easily fill the air for everyone.
+ * Every message therefore has to pass a {@link TokenBucket} before it may
+ * go into its room's {@link SendQueue}, or out to the one user a private
+ * message is for. There is one bucket per kind of traffic, shared by all
+ * rooms and private messages, so a big paste can't hold up chat lines or heartbeats:
+ * <ul>
+ *   <li>CONTROL - heartbeats, goodbyes and NACKs; small, and sent first</li>
+ *   <li>CHAT - ordinary chat lines</li>
+ *   <li>BULK - the fragments of big messages</li>
+ * </ul>
+ * Messages that have to wait are kept in order per kind and released as
+ * soon as their bucket has enough tokens again.
+ *
+ * The shaper also backs off when the network seems congested. Every NACK
+ * for our packets tells us that someone lost them, so the chat and bulk
+ * rates are halved (at most once per second). While nobody reports losses,
+ * the rates slowly grow back to their limits.
+ *
+ * All methods are called on the network thread, except the statistics
+ * getters, so everything is synchronized.
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class TrafficShaper {
+    /**
+     * The kinds of traffic, in the order they're released when several are waiting.
+     */
+    public enum TrafficClass { CONTROL, CHAT, BULK }
+
+    /**
+     * Where a message goes once its bucket lets it through: a room's
+     * {@link SendQueue}, or a private message's way out.
+     */
+    public interface Destination {
+        /**
+         * Takes a message that may go now.
+         *
+         * @param frame The encoded frame
+         * @param done Completed once the message has been sent
+         */
+        void enqueue(byte[] frame, CompletableFuture<Void> done);
+    }
+
+    // Rate limits in bytes per second (settings rate.chat, rate.bulk and rate.control, see Config)
+    private static final long CHAT_RATE = Config.getLong("rate.chat", 32 * 1024);
+    private static final long BULK_RATE = Config.getLong("rate.bulk", 128 * 1024);
+    private static final long CONTROL_RATE = Config.getLong("rate.control", 16 * 1024);
+    private static final long BURST_MILLIS = 500; // Each bucket holds half a second's worth of bytes
+
+    // Congestion back-off: halve on loss, grow back by a tenth every second without loss
+    private static final double MIN_RATE_FACTOR = 0.1;
+    private static final double RATE_INCREASE_STEP = 0.1;
+    private static final long ADJUST_INTERVAL_MILLIS = 1000;
+
+    // Send rate measurement: bytes per 1-second slot over the last few seconds
+    private static final int RATE_SLOTS = 5;
+
+    /**
+     * A message waiting for tokens.
+     */
+    private static final class Waiting {
+        final Destination destination;
+        final byte[] frame;
+        final CompletableFuture<Void> done;
+
+        Waiting(Destination destination, byte[] frame, CompletableFuture<Void> done) {
+            this.destination = destination;
+            this.frame = frame;
+            this.done = done;
+        }
+    }
+
+    // Shaper components
+    private final ScheduledExecutorService scheduler; // Runs the delayed releases
+    private final Map<TrafficClass, TokenBucket> buckets = new EnumMap<>(TrafficClass.class);
+    private final Map<TrafficClass, ArrayDeque<Waiting>> waiting = new EnumMap<>(TrafficClass.class);
+    private ScheduledFuture<?> scheduledRelease;      // The release waiting for tokens to drip in
+
+    // Congestion state
+    private double rateFactor = 1.0;    // Share of the configured chat and bulk rates we use right now
+    private long lastLoss = 0;          // When a peer last reported losing our packets
+    private long lastAdjust;            // When we last changed the rate factor
+
+    // Send rate measurement
+    private final long[] sentPerSecond = new long[RATE_SLOTS];
+    private long currentSecond;
+
+    /**
+     * Creates a new traffic shaper.
+     *
+     * @param scheduler The executor that runs the delayed releases (the network thread)
+     * @param maxFrameSize The biggest frame we send, so every bucket can hold at least one
+     */
+    public TrafficShaper(ScheduledExecutorService scheduler, int maxFrameSize) {
+        this.scheduler = scheduler;
+        buckets.put(TrafficClass.CONTROL, newBucket(CONTROL_RATE, maxFrameSize));
+        buckets.put(TrafficClass.CHAT, newBucket(CHAT_RATE, maxFrameSize));
+        buckets.put(TrafficClass.BULK, newBucket(BULK_RATE, maxFrameSize));
+        for (TrafficClass trafficClass : TrafficClass.values()) {
+            waiting.put(trafficClass, new ArrayDeque<>());
+        }
+        this.lastAdjust = System.currentTimeMillis();
+        this.currentSecond = lastAdjust / 1000;
+    }
+
+    /**
+     * Passes a message on as soon as its bucket allows.
+     *
+     * @param trafficClass What kind of message it is
+     * @param destination The send queue of the room it's for, or where a private message goes
+     * @param frame The encoded frame
+     * @param done Completed once the message has been sent
+     */
+    public synchronized void submit(TrafficClass trafficClass, Destination destination, byte[] frame,
+                                    CompletableFuture<Void> done) {
+        adjustRate();
+        ArrayDeque<Waiting> waitingOfClass = waiting.get(trafficClass);
+
+        // Keep the order: only skip the line if nothing of this kind is waiting
+        if (waitingOfClass.isEmpty() && buckets.get(trafficClass).tryConsume(frame.length)) {
+            destination.enqueue(frame, done);
+            return;
+        }
+        waitingOfClass.add(new Waiting(destination, frame, done));
+        scheduleRelease();
+    }
+
+    /**
+     * Records that a peer lost some of our packets (it sent us a NACK),
+     * and slows down if we haven't just done so.
+     */
+    public synchronized void onLossReported() {
+        long now = System.currentTimeMillis();
+        lastLoss = now;
+        if (now - lastAdjust >= ADJUST_INTERVAL_MILLIS) {
+            setRateFactor(Math.max(MIN_RATE_FACTOR, rateFactor / 2));
+            lastAdjust = now;
+        }
+    }
+
+    /**
+     * Counts bytes that went on the wire, for the send rate statistic.
+     *
+     * @param bytes The size of the packet that was sent
+     */
+    public synchronized void recordSent(int bytes) {
+        advanceRateSlots();
+        sentPerSecond[(int) (currentSecond % RATE_SLOTS)] += bytes;
+    }
+
+    /**
+     * Works out how fast we've been sending over the last few seconds.
+     *
+     * @return The average send rate in bytes per second
+     */
+    public synchronized long getSendRate() {
+        advanceRateSlots();
+        long total = 0;
+        for (int i = 0; i < RATE_SLOTS; i++) {
+            // Leave out the second that has only just started
+            if (i != (int) (currentSecond % RATE_SLOTS)) {
+                total += sentPerSecond[i];
+            }
+        }
+        return total / (RATE_SLOTS - 1);
+    }
+
+    /**
+     * Tells how much of the configured rate we currently allow ourselves.
+     *
+     * @return A number between 0.1 (heavily congested) and 1.0 (full speed)
+     */
+    public synchronized double getRateFactor() {
+        return rateFactor;
+    }
+
+    /**
+     * Hands every waiting message to its destination right away, ignoring the
+     * limits. Used when shutting down, so nothing is left behind.
+     */
+    public synchronized void releaseAll() {
+        if (scheduledRelease != null) {
+            scheduledRelease.cancel(false);
+            scheduledRelease = null;
+        }
+        for (ArrayDeque<Waiting> queue : waiting.values()) {
+            for (Waiting message : queue) {
+                message.destination.enqueue(message.frame, message.done);
+            }
+            queue.clear();
+        }
+    }
+
+    /**
+     * Passes on every waiting message whose bucket has enough tokens now,
+     * control traffic first, and schedules another try for the rest.
+     */
+    private synchronized void release() {
+        scheduledRelease = null;
+        adjustRate();
+        for (TrafficClass trafficClass : TrafficClass.values()) {
+            ArrayDeque<Waiting> queue = waiting.get(trafficClass);
+            TokenBucket bucket = buckets.get(trafficClass);
+            while (!queue.isEmpty() && bucket.tryConsume(queue.peek().frame.length)) {
+                Waiting message = queue.poll();
+                message.destination.enqueue(message.frame, message.done);
+            }
+        }
+        scheduleRelease();
+    }
+
+    /**
+     * Schedules the next release for when the first waiting message can go.
+     */
+    private void scheduleRelease() {
+        if (scheduledRelease != null) {
+            return;
+        }
+        long delay = Long.MAX_VALUE;
+        for (TrafficClass trafficClass : TrafficClass.values()) {
+            Waiting next = waiting.get(trafficClass).peek();
+            if (next != null) {
+                delay = Math.min(delay, buckets.get(trafficClass).millisUntilAvailable(next.frame.length));
+            }
+        }
+        if (delay != Long.MAX_VALUE) {
+            scheduledRelease = scheduler.schedule(this::release, Math.max(1, delay), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Grows the rate factor back towards full speed while nobody reports losses.
+     */
+    private void adjustRate() {
+        long now = System.currentTimeMillis();
+        if (rateFactor < 1.0 && now - lastAdjust >= ADJUST_INTERVAL_MILLIS
+                && now - lastLoss >= ADJUST_INTERVAL_MILLIS) {
+            setRateFactor(Math.min(1.0, rateFactor + RATE_INCREASE_STEP));
+            lastAdjust = now;
+        }
+    }
+
+    /**
+     * Applies a new rate factor to the chat and bulk buckets.
+     * Control traffic is tiny and needed to repair losses, so it keeps its rate.
+     */
+    private void setRateFactor(double factor) {
+        rateFactor = factor;
+        buckets.get(TrafficClass.CHAT).setRate((long) (CHAT_RATE * factor));
+        buckets.get(TrafficClass.BULK).setRate((long) (BULK_RATE * factor));
+    }
+
+    /**
+     * Moves the send rate measurement on to the current second,
+     * clearing the slots of the seconds that passed without sending.
+     */
+    private void advanceRateSlots() {
+        long second = System.currentTimeMillis() / 1000;
+        for (long s = Math.max(currentSecond + 1, second - RATE_SLOTS + 1); s <= second; s++) {
+            sentPerSecond[(int) (s % RATE_SLOTS)] = 0;
+        }
+        currentSecond = Math.max(currentSecond, second);
+    }
+
+    /**
+     * Resizes the buckets for a new biggest frame, after the network changed
+     * and the path MTU with it. Rates and waiting messages are kept.
+     *
+     * @param maxFrameSize The biggest frame we send from now on
+     */
+    public synchronized void setMaxFrameSize(int maxFrameSize) {
+        buckets.get(TrafficClass.CONTROL).setCapacity(burstSize(CONTROL_RATE, maxFrameSize));
+        buckets.get(TrafficClass.CHAT).setCapacity(burstSize(CHAT_RATE, maxFrameSize));
+        buckets.get(TrafficClass.BULK).setCapacity(burstSize(BULK_RATE, maxFrameSize));
+    }
+
+    /**
+     * Creates a bucket that allows a short burst but can always hold the biggest frame.
+     */
+    private static TokenBucket newBucket(long bytesPerSecond, int maxFrameSize) {
+        return new TokenBucket(bytesPerSecond, burstSize(bytesPerSecond, maxFrameSize));
+    }
+
+    /**
+     * Half a second's worth of bytes, but at least the biggest frame.
+     */
+    private static long burstSize(long bytesPerSecond, int maxFrameSize) {
+        return Math.max(bytesPerSecond * BURST_MILLIS / 1000, maxFrameSize);
+    }
+}
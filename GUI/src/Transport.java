@@ -0,0 +1,112 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Moves finished packets between chat clients.
+ *
+ * The {@link MulticastManager} does everything that makes a packet a chat
+ * packet - framing, compression, encryption, loss repair - and leaves
+ * getting the bytes across to a transport. {@link UdpTransport} is the real
+ * thing: UDP multicast on the network interfaces. {@link MemoryTransport}
+ * connects clients inside one Java process without any network, so
+ * hundreds of simulated users can chat with each other in a test or a
+ * benchmark, with exactly the same packets.
+ *
+ * Received datagrams are handed over in batches, like the
+ * {@link ReceiveEngine} does: each one tagged with the tag of the room it
+ * arrived for, or with null if it was sent directly to us.
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public interface Transport {
+    /**
+     * Gets ready to send and receive: opens the sockets (or whatever the
+     * transport uses). Called once, before anything else.
+     *
+     * @param listener Gets every batch of received datagrams, on the receive thread
+     * @throws IOException If the transport can't be opened
+     */
+    void open(ReceiveEngine.BatchListener listener) throws IOException;
+
+    /**
+     * Gets the biggest packet that gets through without IP fragmentation,
+     * including the IP and UDP headers.
+     *
+     * @return The MTU in bytes
+     */
+    int getMtu();
+
+    /**
+     * Describes the transport for the status bar, like the local address and interfaces.
+     *
+     * @return A one-line description
+     */
+    String describe();
+
+    /**
+     * Describes the socket options in effect, for the /config command.
+     *
+     * @return A one-line description
+     */
+    String describeSocketOptions();
+
+    /**
+     * Starts receiving a room's packets.
+     *
+     * @param room The room to join
+     * @param tag The tag to put on the room's datagrams (not null)
+     * @return Where we joined, for the status bar
+     * @throws IOException If the room can't be joined
+     */
+    String joinGroup(Room room, Object tag) throws IOException;
+
+    /**
+     * Stops receiving a room's packets. Safe to call from any thread.
+     *
+     * @param room The room to leave
+     */
+    void leaveGroup(Room room);
+
+    /**
+     * Sends a packet to everyone in a room.
+     *
+     * @param room The room to send it to
+     * @param packet The packet, from position to limit (the position is not moved)
+     * @throws IOException If the packet couldn't be sent
+     */
+    void sendToGroup(Room room, ByteBuffer packet) throws IOException;
+
+    /**
+     * Sends a packet straight to one user.
+     *
+     * @param target The address the user's heartbeats came from
+     * @param packet The packet, from position to limit
+     * @throws IOException If the packet couldn't be sent
+     */
+    void sendTo(SocketAddress target, ByteBuffer packet) throws IOException;
+
+    /**
+     * Checks whether the network interfaces changed and, if they did, moves
+     * the sending and every joined room over to the new ones. Called every
+     * few hundred milliseconds on the network thread, so it must be cheap
+     * when nothing changed. Transports without interfaces do nothing.
+     *
+     * @return What changed, for the status bar, or null if nothing did
+     * @throws IOException If moving to the new interfaces failed
+     */
+    default String refreshInterfaces() throws IOException {
+        return null;
+    }
+
+    /**
+     * Receives packets until the transport is closed. Runs on the receive thread.
+     */
+    void run();
+
+    /**
+     * Stops receiving and releases everything the transport uses.
+     */
+    void close();
+}
@@ -0,0 +1,816 @@
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The real transport: UDP multicast on the network interfaces.
+ *
+ * Every room is its own multicast group with its own receiving channel.
+ * We send on one channel per interface (in multi-homed mode), so our
+ * messages reach every network segment we're on, and the same channels
+ * receive the private messages other users send straight to us.
+ * All channels are read by one {@link ReceiveEngine}.
+ *
+ * The interfaces come from the shared {@link InterfaceMonitor}. When they
+ * change - the laptop left its dock, the Wi-Fi came back -
+ * {@link #refreshInterfaces()} opens sending channels on the new ones and
+ * moves every room's group membership over, without closing the rooms.
+ *
+ * Some access points and VPNs filter multicast but pass subnet broadcast.
+ * Every room also listens for broadcasts to its port, and if its group
+ * can't be joined, the room falls back to sending directed broadcasts
+ * (like 192.168.1.255) instead - same packets, same encryption. Clients
+ * that have multicast and hear broadcast users forward between the two
+ * with a {@link BroadcastBridge}, so nobody is cut off.
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class UdpTransport implements Transport {
+    // Multi-homed mode joins and sends on every multicast-capable interface
+    // instead of only the first one (turn off with multihomed=false)
+    private static final boolean MULTI_HOMED = Config.getBoolean("multihomed", true);
+    private static final int DEFAULT_MTU = 1500; // Used when an interface doesn't report its MTU
+    private static final long SEND_WAIT_MILLIS = 1000; // Longest we wait for room in a full send buffer
+
+    // Options for our sending sockets
+    private static final int SEND_BUFFER_SIZE = Config.getInt("socket.sndbuf", 0);          // 0 keeps the system's default
+    private static final int MULTICAST_TTL = Config.getInt("multicast.ttl", 1);             // 1 = don't cross routers
+    private static final boolean MULTICAST_LOOPBACK = Config.getBoolean("multicast.loopback", true); // Our own messages come back to us this way
+    private static final int DSCP = Config.getInt("socket.dscp", 0);                        // Traffic class for QoS, like 46 (EF); 0 leaves it alone
+
+    // Subnet broadcast: "auto" falls back to it where multicast doesn't work and bridges,
+    // "always" doesn't even try multicast, "off" never uses it
+    private static final String BROADCAST = Config.getString("broadcast", "auto");
+    private static final boolean BROADCAST_OFF = BROADCAST.equalsIgnoreCase("off");
+    private static final boolean BROADCAST_ONLY = BROADCAST.equalsIgnoreCase("always");
+    private static final long BRIDGE_TIMEOUT = Config.getLong("bridge.timeout", 60000); // Keep bridging this long after the last broadcast user was heard (ms)
+
+    /**
+     * A room we're in: its receiving channels and the interfaces it joined the group on.
+     */
+    private final class Membership {
+        final Room room;
+        final Object tag;                  // The tag the listener wants on the room's datagrams
+        final DatagramChannel channel;     // Receives the room's multicast group
+        final Map<InterfaceMonitor.Interface, MembershipKey> keys = new HashMap<>(); // Only touched on the network thread
+        final Source multicastSource = new Source(this, false);
+        final Source broadcastSource = new Source(this, true);
+        final BroadcastBridge.Target toMulticast;  // Where the bridge forwards broadcast packets
+        final BroadcastBridge.Target toBroadcast;  // Where the bridge forwards multicast packets
+        volatile List<DatagramChannel> broadcastChannels = Collections.emptyList(); // Receive the room's broadcasts
+        volatile List<InetSocketAddress> broadcastTargets = Collections.emptyList(); // Where the room's broadcasts go
+        volatile boolean fallback;         // The group couldn't be joined - the room only uses broadcast
+        volatile long lastBroadcastHeard;  // When a broadcast user last sent something new (ms)
+
+        Membership(Room room, Object tag, DatagramChannel channel) {
+            this.room = room;
+            this.tag = tag;
+            this.channel = channel;
+            this.toMulticast = packet -> sendMulticast(room, packet);
+            this.toBroadcast = packet -> sendBroadcast(this, packet);
+        }
+
+        /**
+         * Checks whether we should forward between multicast and broadcast users in this room.
+         *
+         * @param now The current time (ms)
+         * @return True if we have multicast and heard a broadcast user lately
+         */
+        boolean bridging(long now) {
+            return !fallback && now - lastBroadcastHeard < BRIDGE_TIMEOUT;
+        }
+    }
+
+    /**
+     * Tells which channel a datagram arrived on, until {@link #bridgeBatch} swaps in the room's tag.
+     */
+    private static final class Source {
+        final Membership membership;
+        final boolean broadcast;          // Arrived by broadcast rather than multicast
+
+        Source(Membership membership, boolean broadcast) {
+            this.membership = membership;
+            this.broadcast = broadcast;
+        }
+    }
+
+    // Network components. The lists are replaced, never changed, when the interfaces change.
+    private volatile List<InterfaceMonitor.Interface> interfaces = Collections.emptyList(); // Interfaces we join and send on
+    private volatile List<DatagramChannel> sendChannels = Collections.emptyList();         // One sending channel per interface
+    private final Map<String, Membership> groupChannels = new ConcurrentHashMap<>();        // Receiving channel of each room, by name
+    private ReceiveEngine receiveEngine;  // Drains incoming datagrams in batches
+    private volatile int pathMtu = DEFAULT_MTU; // Smallest MTU of the interfaces we send on
+    private long inventoryVersion;        // The interface list we're set up for
+    private volatile List<InetAddress> broadcastAddresses = Collections.emptyList(); // Our subnets' broadcast addresses
+    private BroadcastBridge bridge;       // Forwards between multicast and broadcast users (null if broadcast is off)
+    private final Object sendLock = new Object(); // Guards the write selector
+    private Selector writeSelector;       // Waits for room in a full send buffer (made when first needed)
+
+    /**
+     * Finds the interfaces and opens a sending channel on each of them.
+     *
+     * @param listener Gets every batch of received datagrams
+     * @throws IOException If a channel can't be opened
+     */
+    @Override
+    public void open(ReceiveEngine.BatchListener listener) throws IOException {
+        // The receive engine reads from all our channels on the receive thread.
+        // The bridge sees each batch first and puts the rooms' tags on it.
+        receiveEngine = new ReceiveEngine(batch -> {
+            bridgeBatch(batch);
+            listener.onBatch(batch);
+        });
+        if (!BROADCAST_OFF) {
+            bridge = new BroadcastBridge();
+        }
+
+        // Pick the interfaces we'll use and open a sending channel on each
+        InterfaceMonitor.Inventory inventory = InterfaceMonitor.current();
+        inventoryVersion = inventory.getVersion();
+        interfaces = pickInterfaces(inventory);
+        sendChannels = openSendChannels(interfaces);
+        broadcastAddresses = BROADCAST_OFF ? Collections.emptyList() : inventory.findBroadcastAddresses();
+
+        // Packets are packed up to the smallest MTU of our interfaces
+        pathMtu = findPathMtu();
+
+        // Print network information for debugging
+        System.out.println("Local address: " + sendChannels.get(0).getLocalAddress());
+        System.out.println("Send interfaces: " + describeInterfaces());
+        if (!BROADCAST_OFF) {
+            System.out.println("Broadcast addresses: " + broadcastAddresses);
+        }
+    }
+
+    /**
+     * Puts the rooms' own tags back on a batch's datagrams and lets the
+     * bridge forward what's new between the multicast and broadcast users.
+     * Runs on the receive thread.
+     *
+     * @param batch The datagrams the receive engine drained
+     */
+    private void bridgeBatch(List<ReceiveEngine.Datagram> batch) {
+        long now = System.currentTimeMillis();
+        for (ReceiveEngine.Datagram datagram : batch) {
+            if (!(datagram.tag instanceof Source)) {
+                continue; // Sent straight to us
+            }
+            Source source = (Source) datagram.tag;
+            Membership membership = source.membership;
+            datagram.tag = membership.tag;
+            if (bridge == null || membership.fallback) {
+                continue; // Without multicast there's nothing to bridge to
+            }
+            if (source.broadcast) {
+                // Something new from a broadcast user: forward it to the multicast users.
+                // (Where broadcast channels are bound to the port only, this may also be a
+                // multicast packet; then it's just a copy everyone throws away.)
+                if (bridge.received(datagram.data, true, membership.toMulticast)) {
+                    membership.lastBroadcastHeard = now;
+                }
+            } else if (membership.bridging(now)) {
+                bridge.received(datagram.data, false, membership.toBroadcast);
+            }
+        }
+    }
+
+    /**
+     * Picks the interfaces we'll use: all usable ones in multi-homed mode, otherwise the best one.
+     *
+     * @param inventory The interfaces there are
+     * @return The interfaces to join and send on (may be empty)
+     */
+    private static List<InterfaceMonitor.Interface> pickInterfaces(InterfaceMonitor.Inventory inventory) {
+        if (MULTI_HOMED) {
+            return inventory.findMulticastInterfaces();
+        }
+        InterfaceMonitor.Interface nif = inventory.findMulticastInterface();
+        return nif == null ? Collections.emptyList() : Collections.singletonList(nif);
+    }
+
+    /**
+     * Creates a sending channel bound to each interface and registers it with the receive engine.
+     * They're non-blocking because the receive engine also reads from them:
+     * other users send private messages to the address our heartbeats come from.
+     *
+     * @param interfaces The interfaces to send on
+     * @return The new channels (at least one)
+     * @throws IOException If a channel can't be opened
+     */
+    private List<DatagramChannel> openSendChannels(List<InterfaceMonitor.Interface> interfaces) throws IOException {
+        List<DatagramChannel> channels = new ArrayList<>();
+        for (InterfaceMonitor.Interface nif : interfaces) {
+            DatagramChannel channel = openSendChannel();
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, nif.nif);
+            channels.add(channel);
+        }
+
+        // If no interface was usable, let the operating system choose
+        if (channels.isEmpty()) {
+            channels.add(openSendChannel());
+        }
+
+        // Our sending channels get private messages sent straight to us
+        for (DatagramChannel channel : channels) {
+            receiveEngine.register(channel, null);
+        }
+        return channels;
+    }
+
+    /**
+     * Opens a non-blocking sending channel with the configured socket options.
+     * It's bound to any free port; the caller picks the interface.
+     *
+     * @return The new channel
+     * @throws IOException If the channel can't be opened or an option is refused
+     */
+    private DatagramChannel openSendChannel() throws IOException {
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        if (SEND_BUFFER_SIZE > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER_SIZE);
+        }
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, MULTICAST_TTL);
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, MULTICAST_LOOPBACK);
+        if (!BROADCAST_OFF) {
+            channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+        }
+        if (DSCP > 0) {
+            // DSCP is the top six bits of the old IPv4 TOS byte
+            channel.setOption(StandardSocketOptions.IP_TOS, (DSCP & 0x3F) << 2);
+        }
+        channel.bind(new InetSocketAddress(0)); // Bind to any available port
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    @Override
+    public int getMtu() {
+        return pathMtu;
+    }
+
+    /**
+     * Shows detailed network information for the status bar.
+     *
+     * @return The local address, interfaces, TTL and send buffer size
+     */
+    @Override
+    public String describe() {
+        List<DatagramChannel> channels = sendChannels;
+        if (channels.isEmpty()) {
+            return "Not connected";
+        }
+        try {
+            DatagramChannel primary = channels.get(0);
+            return "Local: " + primary.getLocalAddress() +
+                   " | Interfaces: " + describeInterfaces() +
+                   " | TTL: " + primary.getOption(StandardSocketOptions.IP_MULTICAST_TTL) +
+                   " | Buffer: " + primary.getOption(StandardSocketOptions.SO_SNDBUF) + "B";
+        } catch (IOException e) {
+            return "Interfaces: " + describeInterfaces();
+        }
+    }
+
+    /**
+     * Reads back the socket options the operating system actually gave us.
+     * They can differ from the settings, e.g. Linux doubles buffer sizes
+     * and caps them at net.core.rmem_max / wmem_max.
+     *
+     * @return A one-line summary of the options in effect
+     */
+    @Override
+    public String describeSocketOptions() {
+        List<DatagramChannel> channels = sendChannels;
+        if (channels.isEmpty()) {
+            return "Socket options: no sending channel";
+        }
+        try {
+            // The receive buffer is set on the rooms' channels
+            DatagramChannel primary = channels.get(0);
+            Object receiveBuffer = "-";
+            for (Membership membership : groupChannels.values()) {
+                receiveBuffer = membership.channel.getOption(StandardSocketOptions.SO_RCVBUF);
+                break;
+            }
+            return "Socket options in effect: SO_SNDBUF=" + primary.getOption(StandardSocketOptions.SO_SNDBUF) +
+                   " SO_RCVBUF=" + receiveBuffer +
+                   " TTL=" + primary.getOption(StandardSocketOptions.IP_MULTICAST_TTL) +
+                   " loopback=" + primary.getOption(StandardSocketOptions.IP_MULTICAST_LOOP) +
+                   " DSCP=" + (primary.getOption(StandardSocketOptions.IP_TOS) >> 2) +
+                   " broadcast=" + BROADCAST +
+                   (bridge != null ? " (bridge: " + bridge.describe() + ")" : "");
+        } catch (IOException e) {
+            return "Socket options: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Opens a channel for the room's multicast group and joins the group on
+     * our interfaces. The room also listens for broadcasts; if the group
+     * can't be joined anywhere, it uses only those.
+     *
+     * @param room The room to join
+     * @param tag The tag to put on the room's datagrams
+     * @return The interface details for the status bar
+     * @throws IOException If the room can't be reached by multicast or broadcast
+     */
+    @Override
+    public String joinGroup(Room room, Object tag) throws IOException {
+        Membership membership = new Membership(room, tag, ReceiveEngine.openGroupChannel(room.getGroup(), room.getPort()));
+        List<InterfaceMonitor.Interface> joinedOn = joinGroup(membership, interfaces);
+        openBroadcastChannels(membership);
+        if (joinedOn.isEmpty()) {
+            if (membership.broadcastChannels.isEmpty()) {
+                membership.channel.close();
+                throw new IOException("No multicast interface found for room #" + room.getName());
+            }
+            membership.fallback = true;
+            System.err.println("Cannot join the multicast group of room #" + room.getName() + " - using subnet broadcast");
+        }
+        groupChannels.put(room.getName(), membership);
+        receiveEngine.register(membership.channel, membership.multicastSource);
+        for (DatagramChannel channel : membership.broadcastChannels) {
+            receiveEngine.register(channel, membership.broadcastSource);
+        }
+        return membership.fallback ? describeBroadcast(membership) : describeJoin(joinedOn, room);
+    }
+
+    /**
+     * Opens the channels that receive a room's broadcasts: one bound to
+     * each of our broadcast addresses, or a single one bound to just the
+     * port where that isn't allowed. They're registered by the caller.
+     *
+     * @param membership The room
+     */
+    private void openBroadcastChannels(Membership membership) {
+        List<DatagramChannel> channels = new ArrayList<>();
+        List<InetSocketAddress> targets = new ArrayList<>();
+        int port = membership.room.getPort();
+        for (InetAddress broadcast : BROADCAST_OFF ? Collections.<InetAddress>emptyList() : broadcastAddresses) {
+            targets.add(new InetSocketAddress(broadcast, port));
+            try {
+                DatagramChannel channel = ReceiveEngine.openBroadcastChannel(broadcast, port);
+                channels.add(channel);
+                if (((InetSocketAddress) channel.getLocalAddress()).getAddress().isAnyLocalAddress()) {
+                    break; // Bound to the port only - it hears every subnet's broadcasts
+                }
+            } catch (IOException e) {
+                System.err.println("Cannot listen for broadcasts to " + broadcast.getHostAddress() + ": " + e.getMessage());
+            }
+        }
+        if (channels.isEmpty()) {
+            targets.clear(); // We couldn't hear the answers
+        }
+        membership.broadcastChannels = channels;
+        membership.broadcastTargets = targets;
+    }
+
+    /**
+     * Closes the room's channels, which also leaves its multicast group,
+     * so its traffic no longer even reaches us.
+     *
+     * @param room The room to leave
+     */
+    @Override
+    public void leaveGroup(Room room) {
+        Membership membership = groupChannels.remove(room.getName());
+        if (membership != null) {
+            receiveEngine.unregister(membership.channel);
+            for (DatagramChannel channel : membership.broadcastChannels) {
+                receiveEngine.unregister(channel);
+            }
+        }
+    }
+
+    /**
+     * Checks whether the interfaces changed and, if they did, moves over to
+     * the new ones: new sending channels first, so we can always send, then
+     * every room's group membership. The rooms' channels stay open, so
+     * nothing that's already arrived is lost.
+     *
+     * @return What changed, like "eth0 -> wlan0", or null if nothing we use changed
+     * @throws IOException If a new sending channel can't be opened
+     */
+    @Override
+    public String refreshInterfaces() throws IOException {
+        InterfaceMonitor.Inventory inventory = InterfaceMonitor.poll();
+        if (receiveEngine == null || inventory.getVersion() == inventoryVersion) {
+            return null;
+        }
+        inventoryVersion = inventory.getVersion();
+        List<InterfaceMonitor.Interface> wanted = pickInterfaces(inventory);
+        List<InterfaceMonitor.Interface> old = interfaces;
+        List<InetAddress> broadcasts = BROADCAST_OFF ? Collections.emptyList() : inventory.findBroadcastAddresses();
+        boolean interfacesChanged = !wanted.equals(old);
+        boolean broadcastsChanged = !broadcasts.equals(broadcastAddresses);
+        if (!interfacesChanged && !broadcastsChanged) {
+            return null; // Something changed on an interface we don't use
+        }
+
+        // Send on the new interfaces, then close the old channels
+        if (interfacesChanged) {
+            List<DatagramChannel> oldChannels = sendChannels;
+            interfaces = wanted;
+            sendChannels = openSendChannels(wanted);
+            pathMtu = findPathMtu();
+            for (DatagramChannel channel : oldChannels) {
+                receiveEngine.unregister(channel);
+            }
+        }
+        broadcastAddresses = broadcasts;
+
+        for (Membership membership : groupChannels.values()) {
+            // Leave the groups on interfaces we no longer use and join them on the new ones
+            if (interfacesChanged) {
+                membership.keys.entrySet().removeIf(entry -> {
+                    if (wanted.contains(entry.getKey())) {
+                        return false;
+                    }
+                    entry.getValue().drop();
+                    return true;
+                });
+                List<InterfaceMonitor.Interface> missing = new ArrayList<>(wanted);
+                missing.removeAll(membership.keys.keySet());
+                joinGroup(membership, missing);
+            }
+
+            // Listen on the new subnets' broadcast addresses
+            if (broadcastsChanged) {
+                List<DatagramChannel> oldChannels = membership.broadcastChannels;
+                openBroadcastChannels(membership);
+                for (DatagramChannel channel : membership.broadcastChannels) {
+                    receiveEngine.register(channel, membership.broadcastSource);
+                }
+                for (DatagramChannel channel : oldChannels) {
+                    receiveEngine.unregister(channel);
+                }
+            }
+
+            // Multicast may work again here, or have stopped working
+            membership.fallback = membership.keys.isEmpty() && !membership.broadcastChannels.isEmpty();
+            if (membership.keys.isEmpty()) {
+                System.err.println("Room #" + membership.room.getName() + " is not joined on any interface" +
+                                   (membership.fallback ? " - using subnet broadcast" : ""));
+            }
+        }
+        return interfacesChanged ? describeInterfaces(old) + " -> " + describeInterfaces(wanted)
+                                 : "Broadcast addresses: " + broadcasts;
+    }
+
+    /**
+     * Sends a packet to a room: to its multicast group, to our subnets'
+     * broadcast addresses if the room fell back to broadcast, or to both
+     * while we're bridging to broadcast users.
+     *
+     * @param room The room to send it to
+     * @param packet The packet to send (from position to limit)
+     * @throws IOException If sending failed on all interfaces
+     */
+    @Override
+    public void sendToGroup(Room room, ByteBuffer packet) throws IOException {
+        Membership membership = groupChannels.get(room.getName());
+        if (membership != null && membership.fallback) {
+            sendBroadcast(membership, packet);
+            return;
+        }
+        if (membership != null && bridge != null && membership.bridging(System.currentTimeMillis())) {
+            // So it isn't forwarded again when it comes back to us
+            bridge.sent(packet);
+            try {
+                sendBroadcast(membership, packet);
+            } catch (IOException e) {
+                // The multicast users still get it, and a bridge forwards it
+            }
+        }
+        sendMulticast(room, packet);
+    }
+
+    /**
+     * Sends a packet to a room's multicast group on every sending channel.
+     * It only fails if the packet couldn't go out on any interface.
+     *
+     * @param room The room to send it to
+     * @param packet The packet to send (from position to limit)
+     * @throws IOException If sending failed on all interfaces
+     */
+    private void sendMulticast(Room room, ByteBuffer packet) throws IOException {
+        IOException lastError = null;
+        boolean sent = false;
+        for (DatagramChannel channel : sendChannels) {
+            try {
+                send(channel, packet, room.getAddress());
+                sent = true;
+            } catch (IOException e) {
+                // This interface might be down - keep trying the others
+                lastError = e;
+            }
+        }
+        if (!sent && lastError != null) {
+            throw lastError;
+        }
+    }
+
+    /**
+     * Sends a packet to the broadcast address of each of our subnets, on the room's port.
+     * It only fails if the packet couldn't go out to any of them.
+     *
+     * @param membership The room to send it to
+     * @param packet The packet to send (from position to limit)
+     * @throws IOException If sending failed everywhere
+     */
+    private void sendBroadcast(Membership membership, ByteBuffer packet) throws IOException {
+        DatagramChannel channel = sendChannels.get(0);
+        IOException lastError = null;
+        boolean sent = false;
+        for (InetSocketAddress target : membership.broadcastTargets) {
+            try {
+                send(channel, packet, target);
+                sent = true;
+            } catch (IOException e) {
+                lastError = e;
+            }
+        }
+        if (!sent && lastError != null) {
+            throw lastError;
+        }
+    }
+
+    /**
+     * Sends a packet straight to one user, from our first sending channel.
+     *
+     * @param target Where the user can be reached
+     * @param packet The packet to send (from position to limit)
+     * @throws IOException If the packet couldn't be sent
+     */
+    @Override
+    public void sendTo(SocketAddress target, ByteBuffer packet) throws IOException {
+        send(sendChannels.get(0), packet, target);
+    }
+
+    /**
+     * Sends a packet on one of our non-blocking channels. If the channel's
+     * send buffer is full, we wait until there's room again, like a blocking
+     * channel would, so a long message isn't cut off halfway. We only give
+     * up if the buffer stays full for SEND_WAIT_MILLIS.
+     *
+     * @param channel The channel to send on
+     * @param packet The packet to send (from position to limit; the position isn't moved)
+     * @param target Where to send it
+     * @throws IOException If the packet couldn't be sent
+     */
+    private void send(DatagramChannel channel, ByteBuffer packet, SocketAddress target) throws IOException {
+        if (channel.send(packet.duplicate(), target) > 0) {
+            return;
+        }
+        synchronized (sendLock) {
+            if (writeSelector == null) {
+                writeSelector = Selector.open();
+            }
+            // The channel is only interested in writing while we wait on it
+            SelectionKey key = channel.keyFor(writeSelector);
+            if (key == null) {
+                key = channel.register(writeSelector, 0);
+            }
+            long deadline = System.currentTimeMillis() + SEND_WAIT_MILLIS;
+            key.interestOps(SelectionKey.OP_WRITE);
+            try {
+                while (channel.send(packet.duplicate(), target) == 0) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) {
+                        throw new IOException("Send buffer full");
+                    }
+                    writeSelector.select(left);
+                    writeSelector.selectedKeys().clear();
+                }
+            } finally {
+                if (key.isValid()) {
+                    key.interestOps(0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the receive engine until the transport is closed.
+     */
+    @Override
+    public void run() {
+        if (receiveEngine != null) {
+            receiveEngine.run();
+        }
+    }
+
+    /**
+     * Stops the receive engine, which closes all our channels.
+     */
+    @Override
+    public void close() {
+        if (receiveEngine != null) {
+            receiveEngine.close();
+        }
+        if (bridge != null) {
+            bridge.close();
+        }
+        synchronized (sendLock) {
+            if (writeSelector != null) {
+                try {
+                    writeSelector.close();
+                } catch (IOException e) {
+                    // Nothing left to wait for anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * Joins a room's multicast group on some interfaces.
+     * If that didn't work on any of them and the room isn't joined anywhere
+     * yet, every interface that's up is tried instead, so we hear something.
+     * Runs on the network thread.
+     *
+     * @param membership The room's channel and the interfaces it's joined on
+     * @param interfaces The interfaces to join on
+     * @return The interfaces we joined on now (empty if none worked)
+     */
+    private List<InterfaceMonitor.Interface> joinGroup(Membership membership, List<InterfaceMonitor.Interface> interfaces) {
+        InetAddress group = membership.room.getGroup();
+        List<InterfaceMonitor.Interface> joined = new ArrayList<>();
+        if (BROADCAST_ONLY) {
+            return joined;
+        }
+        for (InterfaceMonitor.Interface nif : interfaces) {
+            try {
+                membership.keys.put(nif, membership.channel.join(group, nif.nif));
+                joined.add(nif);
+            } catch (Exception e) {
+                System.err.println("Failed to join multicast group on interface " + nif.displayName + ": " + e.getMessage());
+            }
+        }
+
+        // If that didn't work, try all interfaces one by one
+        if (membership.keys.isEmpty()) {
+            for (InterfaceMonitor.Interface nif : InterfaceMonitor.current().getInterfaces()) {
+                if (nif.up && nif.multicast) {
+                    try {
+                        // Try to join on this interface
+                        membership.keys.put(nif, membership.channel.join(group, nif.nif));
+                        joined.add(nif);
+                        break;
+                    } catch (Exception e) {
+                        // Continue to next interface
+                    }
+                }
+            }
+        }
+        return joined;
+    }
+
+    /**
+     * Describes the interfaces we joined a room on, for the status bar.
+     *
+     * @param joined The interfaces we joined on
+     * @param room The room we joined
+     * @return Details for one interface, or a summary if we joined on several
+     */
+    private String describeJoin(List<InterfaceMonitor.Interface> joined, Room room) {
+        if (joined.size() == 1) {
+            return describeInterface(joined.get(0), room);
+        }
+        return "Multi-homed | Interfaces: " + describeInterfaces() +
+               " | Multicast: " + describeRoom(room) +
+               " | Status: UP";
+    }
+
+    /**
+     * Describes a room that fell back to broadcast, for the status bar.
+     *
+     * @param membership The room
+     * @return Where its broadcasts go
+     */
+    private String describeBroadcast(Membership membership) {
+        StringBuilder targets = new StringBuilder();
+        for (InetSocketAddress target : membership.broadcastTargets) {
+            if (targets.length() > 0) {
+                targets.append(", ");
+            }
+            targets.append(target.getAddress().getHostAddress()).append(":").append(target.getPort());
+        }
+        return "Broadcast fallback | Interfaces: " + describeInterfaces() +
+               " | Broadcast: " + targets +
+               " | Status: UP";
+    }
+
+    /**
+     * Describes where a room lives, like "230.0.0.1:5000".
+     */
+    private static String describeRoom(Room room) {
+        return room.getGroup().getHostAddress() + ":" + room.getPort();
+    }
+
+    /**
+     * Describes the interface we joined on in detail, from what the
+     * {@link InterfaceMonitor} read when it last walked the interfaces.
+     *
+     * @param nif The network interface we joined the group on
+     * @param room The room whose group we joined
+     * @return The interface's addresses, MTU, MAC and state
+     */
+    private String describeInterface(InterfaceMonitor.Interface nif, Room room) {
+        // Get all IPv4 addresses for this interface
+        StringBuilder ipInfo = new StringBuilder();
+        for (InetAddress addr : nif.addresses) {
+            if (addr instanceof Inet4Address) {
+                ipInfo.append(addr.getHostAddress()).append(" ");
+            }
+        }
+
+        // Create a detailed status message
+        return "Interface: " + nif.displayName +
+               " | IP: " + ipInfo +
+               " | Multicast: " + describeRoom(room) +
+               " | MTU: " + nif.mtu +
+               " | MAC: " + formatMacAddress(nif.mac) +
+               " | Speed: " + (nif.virtual ? "Virtual" : "Physical") +
+               " | Status: " + (nif.up ? "UP" : "DOWN") +
+               (nif.loopback ? " (Loopback)" : "");
+    }
+
+    /**
+     * Formats a MAC address as a readable string (like 00:11:22:33:44:55).
+     *
+     * @param mac The MAC address bytes
+     * @return A formatted MAC address string
+     */
+    private String formatMacAddress(byte[] mac) {
+        if (mac == null) {
+            return "Unknown";
+        }
+
+        // Convert each byte to a hex value and join with colons
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mac.length; i++) {
+            sb.append(String.format("%02X", mac[i]));
+            if (i < mac.length - 1) {
+                sb.append(":");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Finds the smallest MTU of the interfaces we send on, so packed
+     * packets fit through every one of them without IP fragmentation.
+     *
+     * @return The path MTU in bytes
+     */
+    private int findPathMtu() {
+        int mtu = Integer.MAX_VALUE;
+        for (InterfaceMonitor.Interface nif : interfaces) {
+            // Skip interfaces that can't tell us their MTU
+            if (nif.mtu > 0) {
+                mtu = Math.min(mtu, nif.mtu);
+            }
+        }
+        // Loopback can report an MTU bigger than any UDP packet
+        return mtu == Integer.MAX_VALUE ? DEFAULT_MTU : Math.min(mtu, 65535);
+    }
+
+    /**
+     * Lists the names of the interfaces we use, like "eth0, wlan0".
+     *
+     * @return A comma separated list of interface names
+     */
+    private String describeInterfaces() {
+        return describeInterfaces(interfaces);
+    }
+
+    /**
+     * Lists the names of some interfaces, like "eth0, wlan0".
+     *
+     * @param interfaces The interfaces
+     * @return A comma separated list of interface names, or "default" if there are none
+     */
+    private static String describeInterfaces(List<InterfaceMonitor.Interface> interfaces) {
+        if (interfaces.isEmpty()) {
+            return "default";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (InterfaceMonitor.Interface nif : interfaces) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(nif.name);
+        }
+        return sb.toString();
+    }
+}
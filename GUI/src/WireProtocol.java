@@ -0,0 +1,425 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+/**
+ * Describes the binary format of the packets our chat app sends.
+ *
+ * Every packet starts with a small header that is NOT encrypted:
+ * <pre>
+ *   byte 0      magic/version (0xC1 = LC32 protocol version 1)
+ *   byte 1      flags (bit 0: the frames are compressed, see {@link Compression};
+ *               bit 1: sent directly to one user instead of the group)
+ *   bytes 2-5   sender id, a random number picked when the app starts
+ *   bytes 6-9   sequence number, counts up with every packet the sender sends
+ *   bytes 10-   IV + AES cipher text of the frames
+ * </pre>
+ * Because the header is readable without decrypting, a receiver can see who
+ * sent a packet and which one it is before doing any expensive work.
+ *
+ * The encrypted part holds one or more frames, one per logical message:
+ * <pre>
+ *   byte 0      message type (chat, heartbeat, goodbye, fragment, nack, compressed, private, roster)
+ *   varint      length of the body
+ *   ...         body, made of length-prefixed UTF-8 fields
+ * </pre>
+ * Lengths are written as varints: 7 bits per byte, with the top bit set on
+ * every byte except the last. Short fields cost one byte, and there is no
+ * upper limit on the size of a message.
+ *
+ * A message too big for one packet is cut into fragment frames, each sent in
+ * its own packet, and put back together by the {@link Reassembler}. Such a
+ * message is compressed as a whole first, so it needs fewer fragments.
+ *
+ * @author LC32 Team
+ * @version 1.0
+ */
+public class WireProtocol {
+    // Header layout
+    public static final byte MAGIC_VERSION = (byte) 0xC1; // Magic nibble 0xC, version 1
+    public static final int HEADER_SIZE = 10;              // magic + flags + sender id + sequence
+
+    // Packet flags
+    public static final byte FLAG_COMPRESSED = 0x01; // Frames are compressed: original size (varint), then deflate data
+    public static final byte FLAG_UNICAST = 0x02;    // Sent to one user; the sequence number counts direct packets only
+    public static final byte FLAG_RELAYED = 0x04;    // Forwarded by a bridge between multicast and broadcast users; not from the sender's address
+
+    // Message types
+    public static final byte TYPE_CHAT = 1;      // Body: nickname, text
+    public static final byte TYPE_HEARTBEAT = 2; // Body: nickname, heartbeat interval in seconds (varint, optional)
+    public static final byte TYPE_GOODBYE = 3;   // Body: nickname
+    public static final byte TYPE_FRAGMENT = 4;  // Body: message id, index, count, piece of the message
+    public static final byte TYPE_NACK = 5;      // Body: sender id, count, missing sequence numbers
+    public static final byte TYPE_COMPRESSED = 6; // Body: original size, deflate data holding more frames
+    public static final byte TYPE_PRIVATE = 7;   // Body: nickname, target nickname, text
+    public static final byte TYPE_ROSTER_REQUEST = 8; // Body: nickname of the user who just joined
+    public static final byte TYPE_ROSTER = 9;    // Body: nicknames of the users in the room, until the end of the frame
+
+    // Fragment body layout: message id (4) + index (2) + count (2), then the piece
+    public static final int FRAGMENT_HEADER_SIZE = 8;
+    public static final int MAX_FRAGMENTS = 0xFFFF;
+
+    /**
+     * The readable header at the front of every packet.
+     * The receiver reuses one of these for every packet it reads.
+     */
+    public static final class Header {
+        public byte flags;    // Packet flags
+        public int senderId;  // Who sent the packet
+        public int sequence;  // Which of the sender's packets this is
+    }
+
+    /**
+     * Writes the packet header into a buffer.
+     *
+     * @param out The buffer to write into
+     * @param flags The packet flags
+     * @param senderId Our sender id
+     * @param sequence The sequence number of this packet
+     */
+    public static void writeHeader(ByteBuffer out, byte flags, int senderId, int sequence) {
+        out.put(MAGIC_VERSION);
+        out.put(flags);
+        out.putInt(senderId);
+        out.putInt(sequence);
+    }
+
+    /**
+     * Reads the packet header and leaves the buffer positioned at the encrypted part.
+     *
+     * @param in The received packet
+     * @param header Where to store the header fields
+     * @return False if this isn't one of our packets
+     */
+    public static boolean readHeader(ByteBuffer in, Header header) {
+        if (in.remaining() < HEADER_SIZE || in.get() != MAGIC_VERSION) {
+            return false; // Too short, or another program / protocol version
+        }
+        header.flags = in.get();
+        header.senderId = in.getInt();
+        header.sequence = in.getInt();
+        return true;
+    }
+
+    /**
+     * Builds a chat frame.
+     *
+     * @param nickname The sender's nickname
+     * @param text The chat text
+     * @return The encoded frame
+     */
+    public static byte[] chatFrame(String nickname, String text) {
+        return frame(TYPE_CHAT, nickname.getBytes(StandardCharsets.UTF_8), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Builds a private message frame.
+     *
+     * @param nickname The sender's nickname
+     * @param target The nickname of the user it's for
+     * @param text The message text
+     * @return The encoded frame
+     */
+    public static byte[] privateFrame(String nickname, String target, String text) {
+        return frame(TYPE_PRIVATE, nickname.getBytes(StandardCharsets.UTF_8), target.getBytes(StandardCharsets.UTF_8),
+                     text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Builds a heartbeat frame that also tells receivers how often to expect
+     * the next one, so they know when to give up on us.
+     *
+     * @param nickname The sender's nickname
+     * @param intervalMillis Our current heartbeat interval
+     * @return The encoded frame
+     */
+    public static byte[] heartbeatFrame(String nickname, long intervalMillis) {
+        byte[] name = nickname.getBytes(StandardCharsets.UTF_8);
+        int seconds = (int) Math.min(Integer.MAX_VALUE, (intervalMillis + 999) / 1000);
+        int bodyLength = varintSize(name.length) + name.length + varintSize(seconds);
+
+        ByteBuffer buffer = ByteBuffer.allocate(1 + varintSize(bodyLength) + bodyLength);
+        buffer.put(TYPE_HEARTBEAT);
+        writeVarint(buffer, bodyLength);
+        writeVarint(buffer, name.length);
+        buffer.put(name);
+        writeVarint(buffer, seconds);
+        return buffer.array();
+    }
+
+    /**
+     * Builds a frame that only carries our nickname: a heartbeat, goodbye or roster request.
+     *
+     * @param type {@link #TYPE_HEARTBEAT}, {@link #TYPE_GOODBYE} or {@link #TYPE_ROSTER_REQUEST}
+     * @param nickname The sender's nickname
+     * @return The encoded frame
+     */
+    public static byte[] presenceFrame(byte type, String nickname) {
+        return frame(type, nickname.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Builds a roster snapshot frame listing the users in a room.
+     * Names that don't fit into one packet are left out; their heartbeats
+     * will bring them in a little later.
+     *
+     * @param names The nicknames to list
+     * @param maxFrameSize The biggest frame that fits into one packet
+     * @return The encoded frame
+     */
+    public static byte[] rosterFrame(List<String> names, int maxFrameSize) {
+        // Leave room for the type and the biggest length varint we could need
+        int room = maxFrameSize - 1 - varintSize(maxFrameSize);
+        List<byte[]> encoded = new ArrayList<>(names.size());
+        int bodyLength = 0;
+        for (String name : names) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            int size = varintSize(bytes.length) + bytes.length;
+            if (bodyLength + size > room) {
+                break;
+            }
+            encoded.add(bytes);
+            bodyLength += size;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(1 + varintSize(bodyLength) + bodyLength);
+        buffer.put(TYPE_ROSTER);
+        writeVarint(buffer, bodyLength);
+        for (byte[] bytes : encoded) {
+            writeVarint(buffer, bytes.length);
+            buffer.put(bytes);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Cuts an encoded frame into fragment frames that each fit into
+     * a packet on their own.
+     *
+     * @param frame The encoded frame that is too big for one packet
+     * @param messageId A number that is unique among our recent fragmented messages
+     * @param maxFrameSize The biggest frame that fits into one packet
+     * @return The fragment frames, in order
+     * @throws IllegalArgumentException If the frame needs more than {@link #MAX_FRAGMENTS} pieces
+     */
+    public static List<byte[]> fragmentFrames(byte[] frame, int messageId, int maxFrameSize) {
+        // Room left for the piece after the frame header and the fragment header
+        int pieceSize = maxFrameSize - 1 - varintSize(maxFrameSize) - FRAGMENT_HEADER_SIZE;
+        int count = (frame.length + pieceSize - 1) / pieceSize;
+        if (count > MAX_FRAGMENTS) {
+            throw new IllegalArgumentException("Message too large (" + frame.length + " bytes)");
+        }
+
+        List<byte[]> fragments = new ArrayList<>(count);
+        for (int index = 0; index < count; index++) {
+            int offset = index * pieceSize;
+            int length = Math.min(pieceSize, frame.length - offset);
+            int bodyLength = FRAGMENT_HEADER_SIZE + length;
+
+            ByteBuffer buffer = ByteBuffer.allocate(1 + varintSize(bodyLength) + bodyLength);
+            buffer.put(TYPE_FRAGMENT);
+            writeVarint(buffer, bodyLength);
+            buffer.putInt(messageId);
+            buffer.putShort((short) index);
+            buffer.putShort((short) count);
+            buffer.put(frame, offset, length);
+            fragments.add(buffer.array());
+        }
+        return fragments;
+    }
+
+    /**
+     * Builds a NACK frame that asks a sender to send some packets again.
+     *
+     * @param targetSenderId The sender whose packets are missing
+     * @param sequences The sequence numbers of the missing packets
+     * @return The encoded frame
+     */
+    public static byte[] nackFrame(int targetSenderId, int[] sequences) {
+        int bodyLength = 4 + varintSize(sequences.length) + 4 * sequences.length;
+
+        ByteBuffer buffer = ByteBuffer.allocate(1 + varintSize(bodyLength) + bodyLength);
+        buffer.put(TYPE_NACK);
+        writeVarint(buffer, bodyLength);
+        buffer.putInt(targetSenderId);
+        writeVarint(buffer, sequences.length);
+        for (int sequence : sequences) {
+            buffer.putInt(sequence);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Reads the missing sequence numbers from a NACK body
+     * (after the target sender id has been read).
+     *
+     * @param in The buffer, positioned at the count
+     * @return The missing sequence numbers
+     * @throws BufferUnderflowException If the list runs past the end of the buffer
+     */
+    public static int[] readSequences(ByteBuffer in) {
+        int count = readVarint(in);
+        if (count > in.remaining() / 4) {
+            throw new BufferUnderflowException();
+        }
+        int[] sequences = new int[count];
+        for (int i = 0; i < count; i++) {
+            sequences[i] = in.getInt();
+        }
+        return sequences;
+    }
+
+    /**
+     * Compresses a frame as a whole, wrapped in a compressed frame.
+     *
+     * @param frame The encoded frame
+     * @return The compressed frame, or null if compression doesn't make it smaller
+     */
+    public static byte[] compressedFrame(byte[] frame) {
+        byte[] compressed = Compression.compress(frame, 0, frame.length);
+        if (compressed == null) {
+            return null;
+        }
+        int bodyLength = varintSize(frame.length) + compressed.length;
+        int frameLength = 1 + varintSize(bodyLength) + bodyLength;
+        if (frameLength >= frame.length) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(frameLength);
+        buffer.put(TYPE_COMPRESSED);
+        writeVarint(buffer, bodyLength);
+        writeVarint(buffer, frame.length);
+        buffer.put(compressed);
+        return buffer.array();
+    }
+
+    /**
+     * Compresses the packed frames of a packet. If this returns a buffer,
+     * the packet must be sent with {@link #FLAG_COMPRESSED}.
+     *
+     * @param frames The packed frames (from position to limit, in a heap buffer)
+     * @return The original size followed by the compressed frames,
+     *         or null if compression doesn't make them smaller
+     */
+    public static ByteBuffer compress(ByteBuffer frames) {
+        int length = frames.remaining();
+        byte[] compressed = Compression.compress(frames.array(), frames.arrayOffset() + frames.position(), length);
+        if (compressed == null || varintSize(length) + compressed.length >= length) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(varintSize(length) + compressed.length);
+        writeVarint(buffer, length);
+        buffer.put(compressed);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decompresses what {@link #compress} or the body of a
+     * {@link #TYPE_COMPRESSED} frame holds.
+     *
+     * @param in The original size followed by the compressed data (position to limit)
+     * @param maxSize The biggest original size we accept
+     * @return A buffer holding the original frames
+     * @throws DataFormatException If the compressed data is damaged or too large
+     */
+    public static ByteBuffer decompress(ByteBuffer in, int maxSize) throws DataFormatException {
+        int originalSize = readVarint(in);
+        return Compression.decompress(in, originalSize, maxSize);
+    }
+
+    /**
+     * Builds a frame from a type and a list of fields.
+     * Each field is written as a varint length followed by its bytes.
+     */
+    private static byte[] frame(byte type, byte[]... fields) {
+        int bodyLength = 0;
+        for (byte[] field : fields) {
+            bodyLength += varintSize(field.length) + field.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(1 + varintSize(bodyLength) + bodyLength);
+        buffer.put(type);
+        writeVarint(buffer, bodyLength);
+        for (byte[] field : fields) {
+            writeVarint(buffer, field.length);
+            buffer.put(field);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Reads a length-prefixed field as raw bytes, without decoding it.
+     * Text that's only shown later can be decoded when (and if) it's needed.
+     *
+     * @param in The buffer, positioned at the field
+     * @return A copy of the field's bytes
+     * @throws BufferUnderflowException If the field runs past the end of the buffer
+     */
+    public static byte[] readBytes(ByteBuffer in) {
+        int length = readVarint(in);
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] value = new byte[length];
+        in.get(value);
+        return value;
+    }
+
+    /**
+     * Writes a non-negative number as a varint.
+     *
+     * @param out The buffer to write into
+     * @param value The number to write
+     */
+    public static void writeVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * Reads a varint written by {@link #writeVarint}.
+     *
+     * @param in The buffer, positioned at the varint
+     * @return The number
+     * @throws BufferUnderflowException If the buffer ends in the middle of the varint
+     * @throws IllegalArgumentException If the varint is too long to be an int
+     */
+    public static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new IllegalArgumentException("Negative length");
+                }
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Works out how many bytes a number takes up as a varint.
+     *
+     * @param value The number
+     * @return The size in bytes (1 to 5)
+     */
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}